@@ -0,0 +1,67 @@
+package nl.mpi.ams2xacml.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nl.mpi.ams2xacml.dao.CorpusStructureDAO;
+import nl.mpi.ams2xacml.dao.InMemoryCorpusStructureDAO;
+import nl.mpi.ams2xacml.dao.NodeInfo;
+import nl.mpi.ams2xacml.xacml.XACMLtemplateHandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses ACL strings the way getReadRightsFor/getWriteRightsFor do, and
+ * turns the parsed rights into the user names of a policy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AclParsingBenchmark {
+
+	@Param({"1", "10", "100", "1000"})
+	public int users;
+
+	@Param({"keep", "strip", "both"})
+	public String usernameFormat;
+
+	private CorpusStructureDAO csDAO;
+	private XACMLtemplateHandler xacmlHandler;
+	private NodeInfo node;
+
+	@Setup
+	public void setUp() throws Exception {
+		csDAO = new InMemoryCorpusStructureDAO();
+		xacmlHandler = new XACMLtemplateHandler();
+		String acl = SyntheticAcls.acl(users, 0);
+		node = new NodeInfo("MPI1#", -1, true, "hdl:1839/00-0000-0000-0000-0001-1", acl, acl);
+	}
+
+	@Benchmark
+	public List<String> readRights() {
+		return csDAO.getReadRightsFor(node);
+	}
+
+	@Benchmark
+	public List<String> writeRights() {
+		return csDAO.getWriteRightsFor(node);
+	}
+
+	@Benchmark
+	public List<String> policyUserNames() {
+		return xacmlHandler.getPolicyUserNames(csDAO.getReadRightsFor(node), usernameFormat);
+	}
+}
@@ -0,0 +1,131 @@
+package nl.mpi.ams2xacml.benchmark;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nl.mpi.ams2xacml.conversion.PolicyGenerator;
+import nl.mpi.ams2xacml.dao.InMemoryCorpusStructureDAO;
+import nl.mpi.ams2xacml.dao.NodeInfo;
+import nl.mpi.ams2xacml.dao.SyntheticCorpusGenerator;
+import nl.mpi.ams2xacml.sink.PolicySink;
+import nl.mpi.ams2xacml.xacml.PolicyCache;
+import nl.mpi.ams2xacml.xacml.XACMLtemplateHandler;
+import nl.mpi.ams2xacml.xacml.XACMLtemplateSplicer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converts a whole synthetic tree, from the node traversal to the policy
+ * sink, against an {@link InMemoryCorpusStructureDAO} filled by the
+ * {@link SyntheticCorpusGenerator}. The policies
+ * are counted and discarded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class ConversionBenchmark {
+
+	@Param({"keep", "strip", "both"})
+	public String usernameFormat;
+
+	@Param({"dom", "splice"})
+	public String renderEngine;
+
+	@Param({"0", "10000"})
+	public int policyCacheEntries;
+
+	/** 100 sessions with 100 resources each */
+	@Param({"100"})
+	public int fanOut;
+
+	private InMemoryCorpusStructureDAO csDAO;
+	private PolicyGenerator generator;
+	private PrintStream stdout;
+	private long bytesWritten;
+
+	@Setup
+	public void setUp() throws Exception {
+		// the per node progress lines would dominate the measurement
+		stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		bytesWritten = 0;
+		SyntheticCorpusGenerator corpus = new SyntheticCorpusGenerator();
+		corpus.setDepth(2);
+		corpus.setFanOut(fanOut);
+		corpus.setDistinctAcls(20);
+		corpus.setUsersPerAcl(10, 10);
+		corpus.setOnsiteRatio(1.0);
+		csDAO = corpus.generate();
+		XACMLtemplateHandler xacmlHandler = new XACMLtemplateHandler();
+		xacmlHandler.setPolicySink(new PolicySink() {
+			public String write(String handle, String name, byte[] policy) {
+				bytesWritten += policy.length;
+				return name;
+			}
+
+			public boolean isStored(String name) {
+				return false;
+			}
+
+			public void flush() {
+			}
+
+			public void close() {
+			}
+		});
+		XACMLtemplateSplicer templateSplicer = null;
+		if (renderEngine.equals("splice"))
+			templateSplicer = new XACMLtemplateSplicer(new XACMLtemplateHandler(), usernameFormat);
+		PolicyCache policyCache = null;
+		if (policyCacheEntries > 0)
+			policyCache = new PolicyCache(policyCacheEntries, 64L * 1024 * 1024);
+		generator = new PolicyGenerator(csDAO, xacmlHandler, usernameFormat, policyCache, templateSplicer);
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.setOut(stdout);
+	}
+
+	@Benchmark
+	public long convertTree() throws Exception {
+		Iterator<String> nodeIds = csDAO.iterateLinkedNodes(Collections.singletonList(InMemoryCorpusStructureDAO.toNodeId(1)));
+		int chunkSize = csDAO.getPrefetchSize();
+		while (nodeIds.hasNext()) {
+			List<String> chunk = new ArrayList<String>(chunkSize);
+			while (chunk.size() < chunkSize && nodeIds.hasNext())
+				chunk.add(nodeIds.next());
+			for (NodeInfo info : csDAO.getNodeInfo(chunk))
+				generator.generatePolicy(info);
+		}
+		return bytesWritten;
+	}
+}
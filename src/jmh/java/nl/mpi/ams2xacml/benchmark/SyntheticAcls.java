@@ -0,0 +1,25 @@
+package nl.mpi.ams2xacml.benchmark;
+
+/**
+ * Builds ACL strings in the format returned by AccessInfo.getReadRights()
+ */
+final class SyntheticAcls {
+
+	private SyntheticAcls() {
+	}
+
+	/**
+	 * @param users the number of users in the ACL
+	 * @param seed distinguishes ACLs with the same number of users
+	 * @return a space separated list of <i>users</i> user names
+	 */
+	static String acl(int users, int seed) {
+		StringBuilder acl = new StringBuilder(users * 24);
+		for (int i = 0; i < users; i++) {
+			if (i > 0)
+				acl.append(' ');
+			acl.append("user").append(seed).append('_').append(i).append("@mpi.nl");
+		}
+		return acl.toString();
+	}
+}
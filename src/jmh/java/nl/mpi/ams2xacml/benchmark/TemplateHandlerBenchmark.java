@@ -0,0 +1,70 @@
+package nl.mpi.ams2xacml.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nl.mpi.ams2xacml.dao.CorpusStructureDAO;
+import nl.mpi.ams2xacml.dao.InMemoryCorpusStructureDAO;
+import nl.mpi.ams2xacml.dao.NodeInfo;
+import nl.mpi.ams2xacml.xacml.PolicyRule;
+import nl.mpi.ams2xacml.xacml.XACMLtemplateHandler;
+import nl.mpi.ams2xacml.xacml.XACMLtemplateSplicer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Renders a single policy with the DOM of {@link XACMLtemplateHandler}
+ * (reset, fill in the user list, serialize) and with
+ * {@link XACMLtemplateSplicer}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TemplateHandlerBenchmark {
+
+	@Param({"1", "10", "100", "1000"})
+	public int users;
+
+	@Param({"keep", "strip", "both"})
+	public String usernameFormat;
+
+	private CorpusStructureDAO csDAO;
+	private NodeInfo node;
+	private XACMLtemplateHandler xacmlHandler;
+	private XACMLtemplateSplicer templateSplicer;
+
+	@Setup
+	public void setUp() throws Exception {
+		csDAO = new InMemoryCorpusStructureDAO();
+		String acl = SyntheticAcls.acl(users, 0);
+		node = new NodeInfo("MPI1#", -1, true, "hdl:1839/00-0000-0000-0000-0001-1", acl, acl);
+		xacmlHandler = new XACMLtemplateHandler();
+		templateSplicer = new XACMLtemplateSplicer(new XACMLtemplateHandler(), usernameFormat);
+	}
+
+	@Benchmark
+	public byte[] dom() throws Exception {
+		List<String> allowedUsers = csDAO.getReadRightsFor(node);
+		xacmlHandler.generateXACMLDocument(PolicyRule.READ_OBJ_DATASTREAM, allowedUsers, usernameFormat);
+		return xacmlHandler.serializeXACMLdocument();
+	}
+
+	@Benchmark
+	public byte[] splice() throws Exception {
+		List<String> allowedUsers = csDAO.getReadRightsFor(node);
+		return templateSplicer.render(PolicyRule.READ_OBJ_DATASTREAM, allowedUsers);
+	}
+}
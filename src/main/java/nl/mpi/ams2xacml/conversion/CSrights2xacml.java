@@ -1,33 +1,114 @@
 package nl.mpi.ams2xacml.conversion;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathFactory;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
+import nl.mpi.ams2xacml.dao.ConnectionPool;
+import nl.mpi.ams2xacml.dao.CorpusSnapshot;
 import nl.mpi.ams2xacml.dao.CorpusStructureDAO;
+import nl.mpi.ams2xacml.dao.CorpusStructureDBDAO;
+import nl.mpi.ams2xacml.dao.InMemoryCorpusStructureDAO;
+import nl.mpi.ams2xacml.dao.LinkedNodeIterator;
+import nl.mpi.ams2xacml.dao.NodeInfo;
+import nl.mpi.ams2xacml.dao.SyntheticCorpusGenerator;
+import nl.mpi.ams2xacml.metrics.Phase;
+import nl.mpi.ams2xacml.metrics.RunMetrics;
+import nl.mpi.ams2xacml.sink.AsyncPolicySink;
+import nl.mpi.ams2xacml.sink.DirectoryPolicySink;
+import nl.mpi.ams2xacml.sink.FedoraPolicySink;
+import nl.mpi.ams2xacml.sink.IndexingPolicySink;
+import nl.mpi.ams2xacml.sink.ManifestPolicySink;
+import nl.mpi.ams2xacml.sink.PolicySink;
+import nl.mpi.ams2xacml.sink.TarPolicySink;
+import nl.mpi.ams2xacml.sink.ZipPolicySink;
+import nl.mpi.ams2xacml.xacml.PolicyCache;
+import nl.mpi.ams2xacml.xacml.PolicyManifest;
+import nl.mpi.ams2xacml.xacml.UserGroups;
 import nl.mpi.ams2xacml.xacml.XACMLtemplateHandler;
-import nl.mpi.corpusstructure.CorpusNode;
-
-import org.w3c.dom.Node;
+import nl.mpi.ams2xacml.xacml.XACMLtemplateSplicer;
 
 public class CSrights2xacml {
 
+	private static final int WRITE_QUEUE_SIZE = 1000;
+
 	private static CorpusStructureDAO csDAO;
 	private static String csdbURL;
 	private static String csdbUser;
 	private static String csdbPassword;
 	private static String usernameFormat;
-	private static XACMLtemplateHandler xacmlHandler;
-
-	private static XPathExpression templateReadObjDSXPath;
-	private static XPathExpression templateReadObjDSRuleXPath;
-	private static XPathExpression templateManageObjXPath;
-	private static XPathExpression templateManageObjRuleXPath;
+	private static int prefetchSize = -1;
+	private static int threads = 1;
+	private static String policiesDir;
+	private static int maxUsersPerGroup = -1;
+	private static int policyCacheEntries = 10000;
+	private static int policyCacheMegabytes = 64;
+	private static PolicyCache policyCache;
+	private static String renderEngine;
+	private static boolean incremental = false;
+	private static PolicyManifest policyManifest;
+	private static String outputArchive;
+	private static String indexFile;
+	private static int hashDirLevels = 0;
+	private static PolicySink policySink;
+	private static int writerThreads = 1;
+	private static boolean fsync = false;
+	private static SyntheticCorpusGenerator syntheticCorpus;
+	private static String exportFile;
+	private static String snapshotFile;
+	private static InMemoryCorpusStructureDAO snapshotCorpus;
+	private static int servePort = 0;
+	private static String auditFile;
+	private static String jobsFile;
+	private static boolean jobsInMemory = false;
+	private static String groupsFile;
+	private static int groupMinUsers = 10;
+	private static UserGroups userGroups;
+	private static Shard shard;
+	private static int mergeShards = 0;
+	private static String fedoraUrl;
+	private static String fedoraCredentials;
+	private static int fedoraRetries = 3;
+	private static int fedoraTimeout = FedoraPolicySink.DEFAULT_TIMEOUT_MILLIS / 1000;
+	private static FedoraPolicySink fedoraSink;
+	/** the options that apply to all jobs of a job file, which the job lines cannot change */
+	private static final String[] RUN_OPTIONS = { "c", "u", "p", "b", "t", "w", "m", "M", "e", "?", "fsync", "resume",
+			"checkpoint", "retry", "db-pool", "db-snapshot", "synthetic", "export", "snapshot", "serve", "progress",
+			"audit", "jobs", "jobs-in-memory", "groups", "group-min", "shard", "merge-shards",
+			"fedora-auth", "fedora-retries", "fedora-timeout" };
+	private static String reportFile;
+	private static int progressSeconds = 10;
+	private static RunMetrics metrics = new RunMetrics();
+	private static int checkpointInterval = 10000;
+	private static boolean resume = false;
+	private static boolean continueOnError = false;
+	private static String retryFile;
+	private static List<String> retryNodeIds;
+	private static Checkpoint checkpoint;
+	private static Checkpoint resumeCheckpoint;
+	private static FailureLog failureLog;
+	private static String dbPoolSettings;
+	private static boolean dbSnapshot = false;
+	private static String inheritFile;
+	private static InheritanceWalker inheritanceWalker;
 	private static List<String> startNodeIds = new ArrayList<String>();
 
 
@@ -38,8 +119,85 @@ public class CSrights2xacml {
 		System.err.println("INF: -c=<URL>   the corpusstructure database URL (default: 'lux08.mpi.nl:5432/corpusstructure')");
 		System.err.println("INF: -u=<DB user>  the username to use when connecting to the database (default: 'imdiArchive')");
 		System.err.println("INF: -p=<DB password>  the password to use when connecting to the database (default: '')");
+		System.err.println("INF: --db-pool=<settings>  the pool of read-only database connections used to look up the nodes, "
+				+ "e.g. 'size=8,idle=600,validate=60': the maximum number of connections, the seconds after which an unused connection "
+				+ "is closed and the seconds a connection may be unused before it is checked. (default: 'size=4,idle=300,validate=30')");
+		System.err.println("INF: --db-snapshot  look up the rights, handles and types of the nodes in one consistent snapshot of the "
+				+ "database (REPEATABLE READ), even while the archive is being edited. The tree itself is walked with the corpusstructure "
+				+ "API, outside the snapshot. The run fails if the batch lookup of the nodes cannot be used in the snapshot");
 		System.err.println("INF: -d=<DIR>  the directory where to output the policy files to. (default: './generatedPolicies/')");
+		System.err.println("INF: -b=<integer>  the number of nodes to look up in the database at once. (default: 500)");
 		System.err.println("INF: -g=<integer>  replace groups with more than <integer> users by the 'authenticated' user. (default: -1, do not replace)");
+		System.err.println("INF: -t=<integer>  the number of threads generating policies. (default: 1)");
+		System.err.println("INF: -w=<integer>  the number of threads writing the policies, 0 writes them on the threads generating them. (default: 1)");
+		System.err.println("INF: --fsync  force every policy file to disk before it replaces the previous version");
+		System.err.println("INF: -m=<integer>  the maximum number of rendered policies to keep in memory for reuse, 0 disables the cache. (default: 10000)");
+		System.err.println("INF: -M=<integer>  the maximum size in megabytes of the rendered policies kept in memory. (default: 64)");
+		System.err.println("INF: -e=<engine>  the way policies are rendered. Possible values are: 'dom' (fill in a copy of the XACML template for each policy) "
+				+ "and 'splice' (write the user names between pre-rendered parts of the template, same output but faster). (default: dom)");
+		System.err.println("INF: -o=<file>  write all policies into one archive instead of the policies directory. "
+				+ "The archive format follows from the file extension: .zip, .tar, .tar.gz or .tgz");
+		System.err.println("INF: --fedora=<URL>  store every policy directly as the POLICY datastream of its object, e.g. lat:1839_00_MEM_1, "
+				+ "through the Fedora REST API at <URL>, e.g. 'http://localhost:8080/fedora', instead of in the policies directory. "
+				+ "The -w writer threads, or the -t threads with -w 0, each send one request at a time. Policies that cannot be stored are listed in the failure "
+				+ "file next to the policies directory. Cannot be combined with -o, --index, --hash-dirs or --incremental");
+		System.err.println("INF: --fedora-auth=<user>:<password>  the user and password to store the policies in Fedora with");
+		System.err.println("INF: --fedora-retries=<integer>  the number of times a request that failed on the network or with a "
+				+ "server error is sent again, waiting 0.5 s, 1 s, 2 s, etc. in between. (default: 3)");
+		System.err.println("INF: --fedora-timeout=<seconds>  how long to wait for a connection to Fedora or for its answer "
+				+ "before the request counts as failed on the network. (default: 60)");
+		System.err.println("INF: --index=<file>  append a JSON line with the handle, path and size of every written policy to <file>");
+		System.err.println("INF: --hash-dirs=<integer>  spread the policies over <integer> levels (1-4) of subdirectories named after "
+				+ "the first bytes of the MD5 hash of the policy name, e.g. '9c/87/lat_1839_00_0000_0000_0001_2345_6.xml'. "
+				+ "Unless --index is given, the index is appended to the file next to the policies directory or archive. (default: 0)");
+		System.err.println("INF: --incremental  only write the policies that changed since the previous run into the same directory, "
+				+ "according to the manifest file next to the policies directory");
+		System.err.println("INF: -r=<file>  write a JSON report with the counters, throughput and per phase latencies of the run to <file>");
+		System.err.println("INF: --progress=<seconds>  print a progress line with an ETA every <seconds> seconds, 0 disables it. (default: 10)");
+		System.err.println("INF: --synthetic=<settings>  convert a generated in-memory corpus instead of the corpusstructure database, "
+				+ "e.g. 'depth=4,fanout=20,acls=500,users=1-50,onsite=0.9,seed=7'. Without <start nodeId> the whole corpus (MPI1#) is converted");
+		System.err.println("INF: --export=<file>  instead of converting, save the nodes, handles and rights of the start nodes "
+				+ "and their descendants to a snapshot file, to convert them later with --snapshot");
+		System.err.println("INF: --snapshot=<file>  convert the nodes of a snapshot file made with --export instead of the corpusstructure "
+				+ "database. Without <start nodeId> all the nodes of the snapshot are converted");
+		System.err.println("INF: --serve=<port>  instead of converting, keep running and serve policies on http://localhost:<port>/ "
+				+ "with -t threads: GET /policy?node=<nodeId> returns the policy of a node, POST /policy?node=<nodeId> stores it, "
+				+ "POST /subtree?node=<nodeId> stores the policies of a node and its descendants and GET /status returns the counters. "
+				+ "Instead of node=<nodeId>, handle=<handle> may be given. A policy that cannot be stored is answered with 502, "
+				+ "or counted as failed by /subtree. The policies are stored on the -t threads, -w is not used");
+		System.err.println("INF: --audit=<file>  instead of converting, check with -t threads that the policies in the policies directory "
+				+ "grant access to the users the corpusstructure gives rights to, and write the mismatching, missing and unreadable "
+				+ "policies, and the policy files of nodes other than the start nodes and their descendants, to <file>. "
+				+ "Exits with status 1 if there are differences. With --inherit=<file>, the nodes listed in the mapping file of an "
+				+ "--inherit run are checked against the policy they inherit");
+		System.err.println("INF: --groups=<file>  instead of listing the users of an ACL with at least --group-min users in every policy, "
+				+ "grant access to the fedoraRole 'acl-<hash of the user names>' and write the users and their roles once to <file>, "
+				+ "in the layout of Fedora's fedora-users.xml. With --serve the file is rewritten before a response that uses a new group");
+		System.err.println("INF: --group-min=<integer>  the minimum number of users of an ACL to reference as a group with --groups. (default: 10)");
+		System.err.println("INF: --jobs=<file>  run the conversion jobs listed in <file> one after another in this process, "
+				+ "sharing the database connections, parsed ACLs and policy cache. Each line holds the start nodes of a job and its "
+				+ "-d, -o, -f, -g, -r, --index, --hash-dirs, --incremental, --inherit, --fedora and --continue-on-error options, "
+				+ "e.g. '-d strip/ -f strip MPI12345#'; the other options, including --fedora-auth, --fedora-retries, --fedora-timeout and the "
+				+ "-w writer threads that set the number of Fedora connections, are given on the command line, "
+				+ "which also sets the defaults of the jobs");
+		System.err.println("INF: --jobs-in-memory  read the nodes of all jobs from the corpusstructure database into memory "
+				+ "before the first job, so that overlapping jobs look up every node only once. Needs memory for all the nodes");
+		System.err.println("INF: --shard=<i>/<N>  only convert the nodes of shard <i> of <N>, chosen by a hash of the node ID, so that "
+				+ "<N> processes or hosts with the same start nodes and options together convert all nodes into the same policies directory. "
+				+ "The checkpoint, retry, manifest, index and metrics files of a shard are named after the policies directory "
+				+ "with '.shard-<i>-of-<N>' appended. The shards write into the policies directory, "
+				+ "so it cannot be combined with -o, nor with --inherit, --groups, --export, --serve or --audit");
+		System.err.println("INF: --merge-shards=<N>  instead of converting, merge the manifests, indexes and metrics of the <N> finished "
+				+ "shards of the policies directory into those of the whole run, and write its report with -r");
+		System.err.println("INF: --checkpoint=<integer>  save the progress of the conversion every <integer> nodes to the checkpoint file "
+				+ "next to the policies directory, 0 disables checkpoints. (default: 10000)");
+		System.err.println("INF: --resume  continue an interrupted conversion after its last checkpoint. The start nodes may be left out");
+		System.err.println("INF: --continue-on-error  when the policy of a node cannot be generated, record the node in the retry file "
+				+ "next to the policies directory and go on with the other nodes, instead of stopping");
+		System.err.println("INF: --inherit=<file>  only write a policy for the nodes whose rights differ from the rights they inherit "
+				+ "from their nearest ancestor, and write the handle and inherited policy name of the other nodes to <file>. "
+				+ "Cannot be combined with --resume or --retry");
+		System.err.println("INF: --retry=<file>  only convert the nodes listed in a retry file, without their descendants");
 		System.err.println("INF: -f=<format>  the username format to use in te output XACML. Possible values are: 'strip' (remove '@domain' from usernames), "
 				+ "'keep' (leave usernames as they are returned from the corpusstructure) and 'both' (generate both versions for each user). (default: keep)");
 	}
@@ -49,10 +207,87 @@ public class CSrights2xacml {
 	 * The main method
 	 */
 	public static void main(String [] args) throws Exception {
-		xacmlHandler = new XACMLtemplateHandler();
 		// check command line arguments
-		OptionParser parser = new OptionParser( "c:u:p:d:g:f:?*" );
+		OptionParser parser = newOptionParser();
 		OptionSet options = parser.parse(args);
+		applyOptions(options);
+		// before any HTTP connection, also for the jobs that use --fedora
+		FedoraPolicySink.setMaxIdleConnections(writerThreads > 0 ? writerThreads : threads);
+
+		if (mergeShards > 0) {
+			mergeShards();
+			return;
+		}
+
+		int failures;
+		if (jobsFile != null) {
+			failures = runJobs(parser, options);
+		} else {
+			init();
+
+			if (exportFile != null) {
+				exportSnapshot();
+				return;
+			}
+			if (servePort > 0) {
+				serve();
+				return;
+			}
+			if (auditFile != null) {
+				audit();
+				return;
+			}
+
+			failures = convert();
+		}
+		csDAO.closeCorpusStructureDB();
+		if (failures > 0) {
+			System.err.println("ERR: Could not generate the policies of " + failures + " nodes");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Creates the parser of the command line options, which also parses
+	 * the lines of a job file
+	 */
+	private static OptionParser newOptionParser() {
+		OptionParser parser = new OptionParser( "c:u:p:d:g:f:b:t:m:M:e:o:r:w:?*" );
+		parser.accepts("incremental");
+		parser.accepts("fsync");
+		parser.accepts("resume");
+		parser.accepts("continue-on-error");
+		parser.accepts("checkpoint").withRequiredArg();
+		parser.accepts("retry").withRequiredArg();
+		parser.accepts("db-pool").withRequiredArg();
+		parser.accepts("db-snapshot");
+		parser.accepts("index").withRequiredArg();
+		parser.accepts("hash-dirs").withRequiredArg();
+		parser.accepts("synthetic").withRequiredArg();
+		parser.accepts("export").withRequiredArg();
+		parser.accepts("snapshot").withRequiredArg();
+		parser.accepts("serve").withRequiredArg();
+		parser.accepts("progress").withRequiredArg();
+		parser.accepts("inherit").withRequiredArg();
+		parser.accepts("audit").withRequiredArg();
+		parser.accepts("jobs").withRequiredArg();
+		parser.accepts("jobs-in-memory");
+		parser.accepts("groups").withRequiredArg();
+		parser.accepts("group-min").withRequiredArg();
+		parser.accepts("shard").withRequiredArg();
+		parser.accepts("merge-shards").withRequiredArg();
+		parser.accepts("fedora").withRequiredArg();
+		parser.accepts("fedora-auth").withRequiredArg();
+		parser.accepts("fedora-retries").withRequiredArg();
+		parser.accepts("fedora-timeout").withRequiredArg();
+		return parser;
+	}
+
+	/**
+	 * Sets the settings of the run from the parsed options, exiting with
+	 * the help text if they are invalid
+	 */
+	private static void applyOptions(OptionSet options) {
 		if (options.has("c"))
 			csdbURL = (String) options.valueOf("c");
 		if (options.has("u"))
@@ -60,11 +295,187 @@ public class CSrights2xacml {
 		if (options.has("p"))
 			csdbPassword = (String) options.valueOf("p");
 		if (options.has("d")) {
-			xacmlHandler.setPoliciesDir((String) options.valueOf("d"));
+			policiesDir = (String) options.valueOf("d");
 		}
 		if (options.has("g")) {
-			int number = Integer.parseInt((String) options.valueOf("g"));
-			xacmlHandler.setMaxUsersPerGroup(number);
+			maxUsersPerGroup = Integer.parseInt((String) options.valueOf("g"));
+		}
+		if (options.has("t")) {
+			threads = Integer.parseInt((String) options.valueOf("t"));
+			if (threads < 1) {
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("b")) {
+			prefetchSize = Integer.parseInt((String) options.valueOf("b"));
+			if (prefetchSize < 1) {
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("w")) {
+			writerThreads = Integer.parseInt((String) options.valueOf("w"));
+			if (writerThreads < 0) {
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("fsync")) {
+			fsync = true;
+		}
+		if (options.has("checkpoint")) {
+			checkpointInterval = Integer.parseInt((String) options.valueOf("checkpoint"));
+			if (checkpointInterval < 0) {
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("resume")) {
+			resume = true;
+		}
+		if (options.has("continue-on-error")) {
+			continueOnError = true;
+		}
+		if (options.has("retry")) {
+			retryFile = (String) options.valueOf("retry");
+		}
+		if (options.has("inherit")) {
+			inheritFile = (String) options.valueOf("inherit");
+		}
+		if (options.has("db-pool")) {
+			dbPoolSettings = (String) options.valueOf("db-pool");
+		}
+		if (options.has("db-snapshot")) {
+			dbSnapshot = true;
+		}
+		if (options.has("m")) {
+			policyCacheEntries = Integer.parseInt((String) options.valueOf("m"));
+		}
+		if (options.has("M")) {
+			policyCacheMegabytes = Integer.parseInt((String) options.valueOf("M"));
+		}
+		if (options.has("e")) {
+			renderEngine = (String) options.valueOf("e");
+			if (!renderEngine.equals("dom") && !renderEngine.equals("splice")) {
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("o")) {
+			outputArchive = (String) options.valueOf("o");
+			if (!outputArchive.endsWith(".zip") && !outputArchive.endsWith(".tar")
+					&& !outputArchive.endsWith(".tar.gz") && !outputArchive.endsWith(".tgz")) {
+				System.err.println("ERR: Unknown archive format: " + outputArchive);
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("r")) {
+			reportFile = (String) options.valueOf("r");
+		}
+		if (options.has("progress")) {
+			progressSeconds = Integer.parseInt((String) options.valueOf("progress"));
+			if (progressSeconds < 0) {
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("index")) {
+			indexFile = (String) options.valueOf("index");
+		}
+		if (options.has("hash-dirs")) {
+			hashDirLevels = Integer.parseInt((String) options.valueOf("hash-dirs"));
+			if (hashDirLevels < 0 || hashDirLevels > 4) {
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("incremental")) {
+			incremental = true;
+		}
+		if (options.has("synthetic")) {
+			try {
+				syntheticCorpus = SyntheticCorpusGenerator.fromSpec((String) options.valueOf("synthetic"));
+			} catch (IllegalArgumentException e) {
+				System.err.println("ERR: " + e.getMessage());
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("export")) {
+			exportFile = (String) options.valueOf("export");
+		}
+		if (options.has("snapshot")) {
+			snapshotFile = (String) options.valueOf("snapshot");
+		}
+		if (options.has("serve")) {
+			servePort = Integer.parseInt((String) options.valueOf("serve"));
+			if (servePort < 1 || servePort > 65535) {
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("audit")) {
+			auditFile = (String) options.valueOf("audit");
+		}
+		if (options.has("jobs")) {
+			jobsFile = (String) options.valueOf("jobs");
+		}
+		if (options.has("jobs-in-memory")) {
+			jobsInMemory = true;
+		}
+		if (options.has("groups")) {
+			groupsFile = (String) options.valueOf("groups");
+		}
+		if (options.has("group-min")) {
+			groupMinUsers = Integer.parseInt((String) options.valueOf("group-min"));
+			// a single user is not worth a group, nor are 'anonymous' and 'authenticated'
+			if (groupMinUsers < 2) {
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("shard")) {
+			try {
+				shard = Shard.fromSpec((String) options.valueOf("shard"));
+			} catch (IllegalArgumentException e) {
+				System.err.println("ERR: " + e.getMessage());
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("merge-shards")) {
+			mergeShards = Integer.parseInt((String) options.valueOf("merge-shards"));
+			if (mergeShards < 1) {
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("fedora")) {
+			fedoraUrl = (String) options.valueOf("fedora");
+			if (!fedoraUrl.startsWith("http://") && !fedoraUrl.startsWith("https://")) {
+				System.err.println("ERR: Invalid Fedora URL: " + fedoraUrl);
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("fedora-auth")) {
+			fedoraCredentials = (String) options.valueOf("fedora-auth");
+		}
+		if (options.has("fedora-retries")) {
+			fedoraRetries = Integer.parseInt((String) options.valueOf("fedora-retries"));
+			if (fedoraRetries < 0) {
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (options.has("fedora-timeout")) {
+			fedoraTimeout = Integer.parseInt((String) options.valueOf("fedora-timeout"));
+			if (fedoraTimeout < 1) {
+				showHelp();
+				System.exit(1);
+			}
 		}
 		if (options.has("f")) {
 			usernameFormat = (String) options.valueOf("f");
@@ -80,7 +491,66 @@ public class CSrights2xacml {
 
 		List<?> noArgs = options.nonOptionArguments();
 		
-		if (noArgs.size() < 1 ){
+		if (resume && retryFile != null) {
+			System.err.println("ERR: --resume and --retry cannot be combined");
+			showHelp();
+			System.exit(1);
+		}
+		if (inheritFile != null && (resume || retryFile != null)) {
+			System.err.println("ERR: --inherit cannot be combined with --resume or --retry");
+			showHelp();
+			System.exit(1);
+		}
+		if (exportFile != null && (resume || retryFile != null || inheritFile != null)) {
+			System.err.println("ERR: --export cannot be combined with --resume, --retry or --inherit");
+			showHelp();
+			System.exit(1);
+		}
+		if (servePort > 0 && (exportFile != null || resume || retryFile != null || inheritFile != null)) {
+			System.err.println("ERR: --serve cannot be combined with --export, --resume, --retry or --inherit");
+			showHelp();
+			System.exit(1);
+		}
+		if (auditFile != null && (outputArchive != null || exportFile != null || servePort > 0 || resume
+				|| retryFile != null)) {
+			System.err.println("ERR: --audit cannot be combined with -o, --export, --serve, --resume or --retry");
+			showHelp();
+			System.exit(1);
+		}
+		if (jobsFile != null && (exportFile != null || servePort > 0 || auditFile != null || resume || retryFile != null)) {
+			System.err.println("ERR: --jobs cannot be combined with --export, --serve, --audit, --resume or --retry");
+			showHelp();
+			System.exit(1);
+		}
+		if (jobsInMemory && jobsFile == null) {
+			System.err.println("ERR: --jobs-in-memory needs --jobs");
+			showHelp();
+			System.exit(1);
+		}
+		if (shard != null && (outputArchive != null || inheritFile != null || groupsFile != null || exportFile != null
+				|| servePort > 0 || auditFile != null)) {
+			System.err.println("ERR: --shard cannot be combined with -o, --inherit, --groups, --export, --serve or --audit");
+			showHelp();
+			System.exit(1);
+		}
+		if (fedoraUrl != null && (outputArchive != null || indexFile != null || hashDirLevels > 0 || incremental)) {
+			System.err.println("ERR: --fedora cannot be combined with -o, --index, --hash-dirs or --incremental");
+			showHelp();
+			System.exit(1);
+		}
+		if (mergeShards > 0 && (shard != null || outputArchive != null || jobsFile != null || exportFile != null || servePort > 0
+				|| auditFile != null)) {
+			System.err.println("ERR: --merge-shards cannot be combined with --shard, -o, --jobs, --export, --serve or --audit");
+			showHelp();
+			System.exit(1);
+		}
+		if (snapshotFile != null && syntheticCorpus != null) {
+			System.err.println("ERR: --snapshot and --synthetic cannot be combined");
+			showHelp();
+			System.exit(1);
+		}
+		if (noArgs.size() < 1 && syntheticCorpus == null && snapshotFile == null && servePort == 0 && !resume && retryFile == null
+				&& jobsFile == null && mergeShards == 0){
 			System.err.println("ERR: At least one <start nodeId> argument should be supplied!");
 			showHelp();
 			System.exit(1);
@@ -96,33 +566,737 @@ public class CSrights2xacml {
 				}
 			}
 		}
+	}
 
-		init();
+	/**
+	 * Runs the jobs of the job file one after another in this process. The
+	 * options on the command line are the defaults of every job. The jobs
+	 * share the corpusstructure connections, the parsed ACLs and the policy
+	 * cache. With --jobs-in-memory the nodes of all jobs are read from the
+	 * database into memory once, so the jobs also share the node lookups.
+	 * A job may store its policies in Fedora; the number of connections
+	 * follows from the run-wide writer threads.
+	 * @param parser the parser of the command line options
+	 * @param defaults the options on the command line
+	 * @return the number of nodes for which policy generation failed
+	 */
+	private static int runJobs(OptionParser parser, OptionSet defaults) throws Exception {
+		List<OptionSet> jobs = readJobs(parser, new File(jobsFile));
+		List<String> allStartNodeIds = new ArrayList<String>();
+		Set<String> outputs = new HashSet<String>();
+		for (int i = 0; i < jobs.size(); i++) {
+			resetJobSettings();
+			applyOptions(defaults);
+			applyOptions(jobs.get(i));
+			String output = outputArchive != null ? outputArchive
+					: policiesDir != null ? policiesDir : XACMLtemplateHandler.DEFAULT_POLICIES_DIR;
+			if (!outputs.add(new File(output).getAbsolutePath()) || (fedoraUrl != null && !outputs.add(fedoraUrl))) {
+				System.err.println("ERR: Job " + (i + 1) + " writes to the output of an earlier job: "
+						+ (fedoraUrl != null ? fedoraUrl + " or " : "") + output);
+				System.exit(1);
+			}
+			for (String startNodeId : startNodeIds) {
+				if (!allStartNodeIds.contains(startNodeId))
+					allStartNodeIds.add(startNodeId);
+			}
+		}
 
-		List<String> nodeIds = csDAO.getAllLinkedNodes(startNodeIds);
-		nodeIds.addAll(startNodeIds);
+		if (snapshotFile != null) {
+			System.out.println("INF: Reading the corpusstructure snapshot " + snapshotFile);
+			snapshotCorpus = CorpusSnapshot.read(new File(snapshotFile));
+		}
+		initCorpusStructure();
+		if (jobsInMemory && csDAO instanceof CorpusStructureDBDAO) {
+			System.out.println("INF: Reading the nodes of " + jobs.size() + " jobs from the corpusstructure");
+			CorpusStructureDAO dbDAO = csDAO;
+			csDAO = CorpusSnapshot.copy(dbDAO, allStartNodeIds);
+			dbDAO.closeCorpusStructureDB();
+			if (prefetchSize != -1)
+				csDAO.setPrefetchSize(prefetchSize);
+		}
 
-		for (String nodeId : nodeIds) {
-                    boolean onSite;
-                    System.out.println("NodeID: "+nodeId);
-                    onSite = csDAO.getOnsite(nodeId);
-                    if (!onSite) {
-                        System.out.println("Node is not onsite, no access permissions known: "+nodeId); 
-                    }
-                    else {
-			generateXACMLDocument(csDAO.getNodeType(nodeId), nodeId);
-			String handle = csDAO.getHandleFor(nodeId);
-			xacmlHandler.storeXACMLfile(handle);
-                    }
+		int failures = 0;
+		for (int i = 0; i < jobs.size(); i++) {
+			resetJobSettings();
+			applyOptions(defaults);
+			applyOptions(jobs.get(i));
+			init();
+			System.out.println("INF: Job " + (i + 1) + "/" + jobs.size() + ": converting " + startNodeIds + " to " + getOutput());
+			failures += convert();
+			if (failures > 0 && failureLog == null) {
+				System.err.println("ERR: Stopping after a failure, use --continue-on-error to run the remaining jobs");
+				break;
+			}
 		}
-		
+		return failures;
+	}
+
+	/**
+	 * Reads the jobs of a job file: one line per job with the options and
+	 * start nodes of the job, separated by whitespace. Empty lines and lines
+	 * starting with '#' are skipped.
+	 */
+	private static List<OptionSet> readJobs(OptionParser parser, File file) throws IOException {
+		List<OptionSet> jobs = new ArrayList<OptionSet>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				OptionSet job = parser.parse(line.split("\\s+"));
+				for (String option : RUN_OPTIONS) {
+					if (job.has(option)) {
+						System.err.println("ERR: Line " + lineNumber + " of " + file + ": option " + option
+								+ " can only be given on the command line");
+						System.exit(1);
+					}
+				}
+				if (job.nonOptionArguments().isEmpty() && syntheticCorpus == null && snapshotFile == null) {
+					System.err.println("ERR: Line " + lineNumber + " of " + file + ": no <start nodeId>");
+					System.exit(1);
+				}
+				jobs.add(job);
+			}
+		} finally {
+			in.close();
+		}
+		if (jobs.isEmpty()) {
+			System.err.println("ERR: No jobs in " + file);
+			System.exit(1);
+		}
+		return jobs;
+	}
+
+	/**
+	 * Forgets the settings and outputs of the previous job
+	 */
+	private static void resetJobSettings() {
+		policiesDir = null;
+		outputArchive = null;
+		usernameFormat = null;
+		maxUsersPerGroup = -1;
+		reportFile = null;
+		indexFile = null;
+		hashDirLevels = 0;
+		incremental = false;
+		inheritFile = null;
+		continueOnError = false;
+		startNodeIds = new ArrayList<String>();
+		checkpoint = null;
+		failureLog = null;
+		policyManifest = null;
+		policySink = null;
+		fedoraUrl = null;
+		fedoraSink = null;
+		inheritanceWalker = null;
+		metrics = new RunMetrics();
+	}
+
+	/**
+	 * Converts the nodes below the start nodes with the settings of the run
+	 * @return the number of nodes for which policy generation failed
+	 */
+	private static int convert() throws Exception {
+		final LinkedNodeIterator nodeIds = inheritanceWalker == null ? newNodeIterator() : null;
+		// the cache is shared by the jobs of a --jobs run, report this job's share
+		long cacheHitsBefore = policyCache != null ? policyCache.getHits() : 0;
+		long cacheMissesBefore = policyCache != null ? policyCache.getMisses() : 0;
+
+		Timer progressTimer = null;
+		if (progressSeconds > 0) {
+			progressTimer = new Timer("progress", true);
+			progressTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					long discoveredNodes = nodeIds != null ? nodeIds.getDiscoveredNodes() : inheritanceWalker.getDiscoveredNodes();
+					// a shard walks all nodes, but converts about 1/N of them
+					if (shard != null)
+						discoveredNodes /= shard.getCount();
+					System.out.println(metrics.getProgressLine(discoveredNodes));
+				}
+			}, progressSeconds * 1000L, progressSeconds * 1000L);
+		}
+
+		int failures = 0;
+		int chunkSize = csDAO.getPrefetchSize();
+		long nodesSinceCheckpoint = 0;
+		boolean stopped = true;
+		try {
+			if (inheritanceWalker != null) {
+				failures = convertInheriting(chunkSize);
+			} else if (threads == 1) {
+				PolicyGenerator generator = newPolicyGenerator();
+				while (nodeIds.hasNext()) {
+					List<NodeInfo> chunk = nextNodeInfo(nodeIds, chunkSize);
+					for (NodeInfo info : chunk) {
+						try {
+							generator.generatePolicy(info);
+						} catch (Exception e) {
+							if (failureLog == null)
+								throw e;
+							failures++;
+							metrics.countFailedNode();
+							System.err.println("ERR: Could not generate policy for node " + info.getNodeId() + ": " + e);
+							failureLog.record(info, e);
+						}
+					}
+					nodesSinceCheckpoint += chunk.size();
+					if (checkpoint != null && nodesSinceCheckpoint >= checkpointInterval) {
+						policySink.flush();
+						saveCheckpoint(nodeIds);
+						nodesSinceCheckpoint = 0;
+					}
+				}
+			} else {
+				List<PolicyGenerator> generators = new ArrayList<PolicyGenerator>(threads);
+				for (int i = 0; i < threads; i++)
+					generators.add(newPolicyGenerator());
+				PolicyWorkerPool pool = new PolicyWorkerPool(generators, 2 * chunkSize);
+				pool.setFailureLog(failureLog);
+				try {
+					while (nodeIds.hasNext()) {
+						if (failureLog == null && pool.getFailures() > 0) {
+							System.err.println("ERR: Stopping after a failure, use --continue-on-error to convert the remaining nodes");
+							break;
+						}
+						List<NodeInfo> chunk = nextNodeInfo(nodeIds, chunkSize);
+						for (NodeInfo info : chunk) {
+							pool.submit(info);
+						}
+						nodesSinceCheckpoint += chunk.size();
+						if (checkpoint != null && nodesSinceCheckpoint >= checkpointInterval) {
+							pool.awaitIdle();
+							policySink.flush();
+							// never checkpoint past a node that failed without being recorded
+							if (failureLog != null || pool.getFailures() == 0) {
+								saveCheckpoint(nodeIds);
+								nodesSinceCheckpoint = 0;
+							}
+						}
+					}
+				} finally {
+					failures = pool.close();
+				}
+			}
+			stopped = false;
+		} finally {
+			if (progressTimer != null)
+				progressTimer.cancel();
+			// let the writer threads end, so the process can exit with the error
+			if (stopped)
+				closeOutputs();
+		}
+		policySink.close();
+		if (fedoraSink != null && fedoraSink.getFailures() > 0) {
+			System.err.println("ERR: " + fedoraSink.getFailures() + " policies could not be stored in Fedora, they are listed in "
+					+ FedoraPolicySink.getFailureFile(getStateOutput()));
+			failures += fedoraSink.getFailures();
+			metrics.setCounter("fedoraFailures", fedoraSink.getFailures());
+		}
+		if (userGroups != null) {
+			userGroups.write(new File(groupsFile));
+			System.out.println("INF: " + userGroups.size() + " user groups written to " + groupsFile);
+		}
+		if (inheritanceWalker != null) {
+			inheritanceWalker.close();
+			System.out.println("INF: " + metrics.getInheritedNodes() + " nodes inherit their policy, see " + inheritFile);
+		}
+		if (failureLog != null) {
+			failureLog.close();
+			if (failureLog.getFailures() > 0)
+				System.err.println("ERR: The nodes that failed are listed in " + FailureLog.getRetryFile(getStateOutput())
+						+ ", convert them again with --retry");
+		}
+		// the run is complete, unless it stopped at a failure
+		if (checkpoint != null && (failures == 0 || failureLog != null))
+			checkpoint.delete();
+
+		if (policyManifest != null) {
+			policyManifest.save();
+			System.out.println("INF: Policies: " + policyManifest.getAdded() + " added, "
+					+ policyManifest.getChanged() + " changed, " + policyManifest.getUnchanged() + " unchanged");
+		}
+
+		if (policyCache != null) {
+			long cacheHits = policyCache.getHits() - cacheHitsBefore;
+			long cacheMisses = policyCache.getMisses() - cacheMissesBefore;
+			System.out.println("INF: Policy cache: " + cacheHits + " hits, "
+					+ cacheMisses + " misses, " + policyCache.size() + " policies cached");
+			metrics.setCounter("policyCacheHits", cacheHits);
+			metrics.setCounter("policyCacheMisses", cacheMisses);
+		}
+		if (policyManifest != null) {
+			metrics.setCounter("policiesAdded", policyManifest.getAdded());
+			metrics.setCounter("policiesChanged", policyManifest.getChanged());
+			metrics.setCounter("policiesUnchanged", policyManifest.getUnchanged());
+		}
+		System.out.println("INF: Converted " + metrics.getNodes() + " nodes in " + Math.round(metrics.getElapsedSeconds()) + " s ("
+				+ Math.round(metrics.getNodesPerSecond()) + " nodes/s): " + metrics.getPolicies() + " policies, "
+				+ metrics.getSkippedNodes() + " not onsite, " + metrics.getUnknownNodes() + " unknown");
+		if (reportFile != null) {
+			metrics.writeReport(new File(reportFile));
+			System.out.println("INF: Run report written to " + reportFile);
+		}
+		if (shard != null) {
+			File metricsFile = RunMetrics.getMetricsFile(getStateOutput());
+			metrics.saveState(metricsFile);
+			System.out.println("INF: Shard " + shard + " done, merge the shards with --merge-shards=" + shard.getCount()
+					+ " when all are done");
+		}
+		return failures;
+	}
+
+	/**
+	 * Closes the sink, the inheritance file and the retry file of a
+	 * conversion that stopped at an error, keeping the policies written so
+	 * far. Errors are only reported, the error that stopped the conversion
+	 * is the one passed on.
+	 */
+	private static void closeOutputs() {
+		try {
+			policySink.close();
+		} catch (Exception e) {
+			System.err.println("ERR: Could not close the policy output: " + e);
+		}
+		try {
+			if (inheritanceWalker != null)
+				inheritanceWalker.close();
+		} catch (Exception e) {
+			System.err.println("ERR: Could not close the inheritance file: " + e);
+		}
+		try {
+			if (failureLog != null)
+				failureLog.close();
+		} catch (Exception e) {
+			System.err.println("ERR: Could not close the retry file: " + e);
+		}
+	}
+
+	/**
+	 * Merges the manifests, indexes and metrics of the finished shards of
+	 * the output into those of the whole run, and removes them
+	 */
+	private static void mergeShards() throws IOException {
+		initPoliciesDir();
+		String output = getOutput();
+		List<String> shardOutputs = new ArrayList<String>(mergeShards);
+		RunMetrics merged = null;
+		for (int i = 1; i <= mergeShards; i++) {
+			String shardOutput = Shard.getStateOutput(output, i, mergeShards);
+			File metricsFile = RunMetrics.getMetricsFile(shardOutput);
+			if (!metricsFile.isFile()) {
+				System.err.println("ERR: Shard " + i + "/" + mergeShards + " has not finished, there is no " + metricsFile);
+				System.exit(1);
+			}
+			RunMetrics shardMetrics = RunMetrics.loadState(metricsFile);
+			if (merged == null)
+				merged = shardMetrics;
+			else
+				merged.merge(shardMetrics);
+			shardOutputs.add(shardOutput);
+		}
+		merged.setSetting("shard", null);
+		merged.setSetting("shards", mergeShards);
+
+		PolicyManifest manifest = null;
+		File index = indexFile != null ? new File(indexFile) : IndexingPolicySink.getIndexFile(output);
+		for (String shardOutput : shardOutputs) {
+			File shardManifest = PolicyManifest.getManifestFile(shardOutput);
+			if (shardManifest.isFile()) {
+				if (manifest == null)
+					manifest = PolicyManifest.load(PolicyManifest.getManifestFile(policiesDir));
+				manifest.merge(shardManifest);
+			}
+			File shardIndex = IndexingPolicySink.getIndexFile(shardOutput);
+			if (shardIndex.isFile()) {
+				OutputStream out = new FileOutputStream(index, true);
+				try {
+					Files.copy(shardIndex.toPath(), out);
+				} finally {
+					out.close();
+				}
+			}
+		}
+		if (manifest != null)
+			manifest.save();
+		merged.setSetting("index", index.isFile() ? index.getPath() : null);
+		// only remove the shard files when everything is merged
+		for (String shardOutput : shardOutputs) {
+			RunMetrics.getMetricsFile(shardOutput).delete();
+			PolicyManifest.getManifestFile(shardOutput).delete();
+			IndexingPolicySink.getIndexFile(shardOutput).delete();
+			if (FailureLog.getRetryFile(shardOutput).isFile())
+				System.err.println("WRN: Shard " + shardOutput + " left nodes to convert again in " + FailureLog.getRetryFile(shardOutput));
+		}
+
+		System.out.println("INF: Merged " + mergeShards + " shards: " + merged.getNodes() + " nodes in "
+				+ Math.round(merged.getElapsedSeconds()) + " s (" + Math.round(merged.getNodesPerSecond()) + " nodes/s): "
+				+ merged.getPolicies() + " policies, " + merged.getSkippedNodes() + " not onsite, "
+				+ merged.getUnknownNodes() + " unknown, " + merged.getFailedNodes() + " failed");
+		if (reportFile != null) {
+			merged.writeReport(new File(reportFile));
+			System.out.println("INF: Run report written to " + reportFile);
+		}
+	}
+
+	/**
+	 * Saves the start nodes and their descendants to the snapshot file
+	 */
+	private static void exportSnapshot() throws IOException {
+		InMemoryCorpusStructureDAO corpus = CorpusSnapshot.copy(csDAO, startNodeIds);
 		csDAO.closeCorpusStructureDB();
+		File snapshot = new File(exportFile);
+		CorpusSnapshot.write(corpus, snapshot);
+		System.out.println("INF: Exported " + corpus.size() + " nodes with " + corpus.getAclCount() + " distinct ACLs to "
+				+ exportFile + " (" + snapshot.length() + " bytes) in " + Math.round(metrics.getElapsedSeconds()) + " s");
+	}
+
+	/**
+	 * Starts the {@link PolicyService}, which keeps running until the
+	 * process is stopped
+	 */
+	private static void serve() throws Exception {
+		List<PolicyGenerator> generators = new ArrayList<PolicyGenerator>(threads);
+		for (int i = 0; i < threads; i++)
+			generators.add(newPolicyGenerator());
+		final PolicyService service = new PolicyService(csDAO, generators, policySink,
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), servePort));
+		if (userGroups != null)
+			service.setUserGroups(userGroups, new File(groupsFile));
+		Runtime.getRuntime().addShutdownHook(new Thread("policy-service-shutdown") {
+			@Override
+			public void run() {
+				try {
+					service.stop(10);
+					policySink.close();
+					if (userGroups != null)
+						userGroups.write(new File(groupsFile));
+					if (policyManifest != null)
+						policyManifest.save();
+					csDAO.closeCorpusStructureDB();
+					if (reportFile != null)
+						metrics.writeReport(new File(reportFile));
+					System.out.println("INF: Policy service stopped after " + metrics.getNodes() + " nodes, "
+							+ metrics.getPolicies() + " policies");
+				} catch (Exception e) {
+					System.err.println("ERR: Could not stop the policy service cleanly: " + e);
+				}
+			}
+		});
+		service.start();
+		System.out.println("INF: Serving policies on http://localhost:" + service.getAddress().getPort() + "/ with "
+				+ threads + " threads");
+	}
+
+	/**
+	 * Checks the policies of the start nodes and their descendants with the
+	 * {@link PolicyAuditor}, exiting with status 1 if there are differences
+	 */
+	private static void audit() throws Exception {
+		List<PolicyGenerator> generators = new ArrayList<PolicyGenerator>(threads);
+		for (int i = 0; i < threads; i++)
+			generators.add(newPolicyGenerator());
+		int chunkSize = csDAO.getPrefetchSize();
+		PolicyAuditor auditor = new PolicyAuditor(generators, policiesDir, hashDirLevels, new File(auditFile), 2 * chunkSize);
+		if (inheritFile != null)
+			auditor.readInheritedPolicies(new File(inheritFile));
+		final LinkedNodeIterator nodeIds = newNodeIterator();
+		Timer progressTimer = null;
+		if (progressSeconds > 0) {
+			progressTimer = new Timer("progress", true);
+			progressTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					System.out.println(metrics.getProgressLine(nodeIds.getDiscoveredNodes()));
+				}
+			}, progressSeconds * 1000L, progressSeconds * 1000L);
+		}
+		try {
+			while (nodeIds.hasNext()) {
+				for (NodeInfo info : nextNodeInfo(nodeIds, chunkSize))
+					auditor.submit(info);
+			}
+		} finally {
+			auditor.close();
+		}
+		if (progressTimer != null)
+			progressTimer.cancel();
+		csDAO.closeCorpusStructureDB();
+
+		System.out.println("INF: Audited " + auditor.getPolicies() + " policies of " + metrics.getNodes() + " nodes in "
+				+ Math.round(metrics.getElapsedSeconds()) + " s: " + auditor.getMismatched() + " mismatching, "
+				+ auditor.getMissing() + " missing, " + auditor.getUnreadable() + " unreadable, "
+				+ auditor.getOrphaned() + " orphaned");
+		metrics.setCounter("auditMismatched", auditor.getMismatched());
+		metrics.setCounter("auditMissing", auditor.getMissing());
+		metrics.setCounter("auditUnreadable", auditor.getUnreadable());
+		metrics.setCounter("auditOrphaned", auditor.getOrphaned());
+		if (reportFile != null) {
+			metrics.writeReport(new File(reportFile));
+			System.out.println("INF: Run report written to " + reportFile);
+		}
+		if (auditor.getDifferences() > 0) {
+			System.err.println("ERR: " + auditor.getDifferences() + " differences, see " + auditFile);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Walks the trees of the start nodes with the {@link InheritanceWalker},
+	 * generating only the policies that differ from the inherited ones
+	 * @return the number of nodes for which policy generation failed
+	 */
+	private static int convertInheriting(int chunkSize) throws Exception {
+		if (threads == 1) {
+			final PolicyGenerator generator = newPolicyGenerator();
+			PolicyTarget target = generator;
+			if (failureLog != null) {
+				target = new PolicyTarget() {
+					@Override
+					public String generatePolicy(NodeInfo info) throws Exception {
+						try {
+							return generator.generatePolicy(info);
+						} catch (Exception e) {
+							metrics.countFailedNode();
+							System.err.println("ERR: Could not generate policy for node " + info.getNodeId() + ": " + e);
+							failureLog.record(info, e);
+							return null;
+						}
+					}
+				};
+			}
+			inheritanceWalker.setStoredBarrier(policySink);
+			inheritanceWalker.walk(startNodeIds, target);
+			return (int) metrics.getFailedNodes();
+		}
+		List<PolicyGenerator> generators = new ArrayList<PolicyGenerator>(threads);
+		for (int i = 0; i < threads; i++)
+			generators.add(newPolicyGenerator());
+		final PolicyWorkerPool pool = new PolicyWorkerPool(generators, 2 * chunkSize);
+		pool.setFailureLog(failureLog);
+		int failures;
+		inheritanceWalker.setStoredBarrier(new Flushable() {
+			@Override
+			public void flush() throws IOException {
+				try {
+					pool.awaitIdle();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for the policy workers");
+				}
+				policySink.flush();
+				// never map nodes to a policy that failed without being recorded
+				if (failureLog == null && pool.getFailures() > 0)
+					throw new ConversionStoppedException();
+			}
+		});
+		try {
+			inheritanceWalker.walk(startNodeIds, new PolicyTarget() {
+				@Override
+				public String generatePolicy(NodeInfo info) throws Exception {
+					if (failureLog == null && pool.getFailures() > 0)
+						throw new ConversionStoppedException();
+					pool.submit(info);
+					// stored by one of the workers
+					return null;
+				}
+			});
+		} catch (ConversionStoppedException e) {
+			System.err.println("ERR: Stopping after a failure, use --continue-on-error to convert the remaining nodes");
+		} finally {
+			failures = pool.close();
+		}
+		return failures;
+	}
+
+	/**
+	 * Thrown to stop a walk of the corpus tree after a failure
+	 */
+	private static class ConversionStoppedException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Creates the iterator over the nodes to convert: the nodes of the retry
+	 * file, or the start nodes and their descendants, after the checkpoint
+	 * when resuming
+	 */
+	private static LinkedNodeIterator newNodeIterator() {
+		if (retryNodeIds != null)
+			return new LinkedNodeIterator(csDAO, retryNodeIds, false);
+		LinkedNodeIterator nodeIds = csDAO.iterateLinkedNodes(startNodeIds);
+		if (resumeCheckpoint != null) {
+			LinkedNodeIterator.Position position = resumeCheckpoint.getPosition();
+			System.out.println("INF: Resuming after node " + position.getNodeId() + ", " + resumeCheckpoint.getNodes()
+					+ " nodes were converted before");
+			if (!nodeIds.resume(position))
+				System.err.println("WRN: The descendants of start node " + startNodeIds.get(position.getStartNodeIndex())
+						+ " changed since the checkpoint, converting all of them");
+		}
+		return nodeIds;
+	}
+
+	/**
+	 * Saves the position of the last node of which the policy is stored
+	 */
+	private static void saveCheckpoint(LinkedNodeIterator nodeIds) throws IOException {
+		LinkedNodeIterator.Position position = nodeIds.getPosition();
+		if (position == null)
+			return;
+		long previousNodes = resumeCheckpoint != null ? resumeCheckpoint.getNodes() : 0;
+		checkpoint.save(position, previousNodes + metrics.getNodes());
+		System.out.println("INF: Checkpoint after node " + position.getNodeId());
+	}
+
+	/**
+	 * @return the policies directory or archive the policies are written to
+	 */
+	private static String getOutput() {
+		return outputArchive != null ? outputArchive : policiesDir;
+	}
+
+	/**
+	 * Takes the next <i>chunkSize</i> node IDs from <i>nodeIds</i> and looks
+	 * up their information, timing both
+	 */
+	private static List<NodeInfo> nextNodeInfo(Iterator<String> nodeIds, int chunkSize) {
+		long start = metrics.startTimer();
+		List<String> chunk = nextChunk(nodeIds, chunkSize);
+		start = metrics.record(Phase.TRAVERSE, start);
+		List<NodeInfo> infos = csDAO.getNodeInfo(chunk);
+		metrics.record(Phase.LOOKUP, start);
+		return infos;
+	}
+
+	/**
+	 * Returns the name the checkpoint, retry, manifest, index and metrics
+	 * files of the run are named after: the output, or the output of the
+	 * shard
+	 */
+	private static String getStateOutput() {
+		return shard != null ? shard.getStateOutput(getOutput()) : getOutput();
+	}
+
+	/**
+	 * Takes the next <i>chunkSize</i> node IDs of this shard from <i>nodeIds</i>
+	 */
+	private static List<String> nextChunk(Iterator<String> nodeIds, int chunkSize) {
+		List<String> chunk = new ArrayList<String>(chunkSize);
+		while (chunk.size() < chunkSize && nodeIds.hasNext()) {
+			String nodeId = nodeIds.next();
+			if (shard == null || shard.contains(nodeId))
+				chunk.add(nodeId);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Creates a {@link PolicyGenerator} with its own configured
+	 * {@link XACMLtemplateHandler}
+	 */
+	private static PolicyGenerator newPolicyGenerator() throws Exception {
+		XACMLtemplateHandler xacmlHandler = new XACMLtemplateHandler();
+		xacmlHandler.setPolicySink(policySink);
+		xacmlHandler.setMaxUsersPerGroup(maxUsersPerGroup);
+		xacmlHandler.setHashDirLevels(hashDirLevels);
+		XACMLtemplateSplicer templateSplicer = null;
+		if (renderEngine.equals("splice"))
+			templateSplicer = new XACMLtemplateSplicer(xacmlHandler, usernameFormat);
+		PolicyGenerator generator = new PolicyGenerator(csDAO, xacmlHandler, usernameFormat, policyCache, templateSplicer);
+		generator.setMetrics(metrics);
+		generator.setUserGroups(userGroups);
+		return generator;
 	}
 
 	public static void init() throws Exception {
 		//fill in defaults
-		if (startNodeIds.isEmpty())
-			startNodeIds.add("MPI301420#");
+		initPoliciesDir();
+		if (resume) {
+			File stateFile = Checkpoint.getStateFile(getStateOutput());
+			if (outputArchive != null || !stateFile.isFile()) {
+				System.err.println("ERR: No checkpoint to resume from: " + stateFile);
+				System.exit(1);
+			}
+			resumeCheckpoint = Checkpoint.load(stateFile);
+			if (startNodeIds.isEmpty()) {
+				startNodeIds.addAll(resumeCheckpoint.getStartNodeIds());
+			} else if (!startNodeIds.equals(resumeCheckpoint.getStartNodeIds())) {
+				System.err.println("ERR: The checkpoint is of a conversion of other start nodes: " + resumeCheckpoint.getStartNodeIds());
+				System.exit(1);
+			}
+		}
+		if (retryFile != null)
+			retryNodeIds = FailureLog.readNodeIds(new File(retryFile));
+		if (snapshotFile != null && snapshotCorpus == null) {
+			System.out.println("INF: Reading the corpusstructure snapshot " + snapshotFile);
+			snapshotCorpus = CorpusSnapshot.read(new File(snapshotFile));
+		}
+		if (startNodeIds.isEmpty()) {
+			if (snapshotCorpus != null)
+				startNodeIds.addAll(snapshotCorpus.getRootNodeIds());
+			else
+				startNodeIds.add(syntheticCorpus != null ? InMemoryCorpusStructureDAO.toNodeId(1) : "MPI301420#");
+		}
+		if (usernameFormat == null)
+			usernameFormat = "keep";
+		if (renderEngine == null)
+			renderEngine = "dom";
+		// an export or audit writes no policies
+		if (exportFile == null && auditFile == null)
+			initOutput();
+		// the jobs of a job file share the corpusstructure and the policy cache
+		if (csDAO == null)
+			initCorpusStructure();
+		// an audit reads the mapping file instead of writing it
+		if (inheritFile != null && auditFile == null) {
+			inheritanceWalker = new InheritanceWalker(csDAO, usernameFormat, maxUsersPerGroup, new File(inheritFile));
+			inheritanceWalker.setMetrics(metrics);
+		}
+		if (policyCache == null && policyCacheEntries > 0)
+			policyCache = new PolicyCache(policyCacheEntries, policyCacheMegabytes * 1024L * 1024L);
+		if (userGroups == null && groupsFile != null)
+			userGroups = new UserGroups(groupMinUsers);
+
+		metrics.setSetting("startNodes", startNodeIds);
+		metrics.setSetting("corpusstructure", snapshotFile != null ? snapshotFile : syntheticCorpus != null ? "synthetic" : csdbURL);
+		metrics.setSetting("dbSnapshot", dbSnapshot);
+		metrics.setSetting("output", outputArchive != null ? outputArchive : policiesDir);
+		metrics.setSetting("usernameFormat", usernameFormat);
+		metrics.setSetting("renderEngine", renderEngine);
+		metrics.setSetting("threads", threads);
+		metrics.setSetting("prefetchSize", csDAO.getPrefetchSize());
+		metrics.setSetting("maxUsersPerGroup", maxUsersPerGroup);
+		metrics.setSetting("policyCacheEntries", policyCacheEntries);
+		metrics.setSetting("incremental", incremental);
+		metrics.setSetting("writerThreads", writerThreads);
+		metrics.setSetting("hashDirLevels", hashDirLevels);
+		metrics.setSetting("index", indexFile);
+		metrics.setSetting("fsync", fsync);
+		metrics.setSetting("resume", resume);
+		metrics.setSetting("retry", retryFile);
+		metrics.setSetting("inherit", inheritFile);
+		metrics.setSetting("audit", auditFile);
+		metrics.setSetting("groups", groupsFile);
+		metrics.setSetting("groupMinUsers", groupsFile != null ? groupMinUsers : null);
+		metrics.setSetting("shard", shard);
+		metrics.setSetting("fedora", fedoraUrl);
+	}
+
+	private static void initPoliciesDir() {
+		if (policiesDir == null)
+			policiesDir = XACMLtemplateHandler.DEFAULT_POLICIES_DIR;
+		else if (!policiesDir.endsWith("/") && !policiesDir.endsWith(File.separator))
+			policiesDir += File.separator;
+	}
+
+	/**
+	 * Connects to the corpusstructure database, or sets up the snapshot or
+	 * synthetic corpus to convert instead
+	 */
+	private static void initCorpusStructure() {
 		if (csdbUser == null)
 			csdbUser = "imdiArchive";
 		if (csdbPassword == null)
@@ -131,50 +1305,73 @@ public class CSrights2xacml {
 			csdbURL = "jdbc:postgresql://lux08.mpi.nl:5432/corpusstructure";
 		else
 			csdbURL = "jdbc:postgresql://" + csdbURL;
-		if (usernameFormat == null)
-			usernameFormat = "keep";
-
-		csDAO = new CorpusStructureDAO(csdbURL, csdbUser, csdbPassword);
-
-		XPathFactory xPathfactory = XPathFactory.newInstance();
-		XPath xpath = xPathfactory.newXPath();
-
-		templateReadObjDSXPath = xpath.compile("/Policy/Rule[@RuleId='deny-dsid-mime']/Condition"
-				+ "//SubjectAttributeDesignator[@AttributeId='urn:fedora:names:fedora:2.1:subject:loginId']"
-				+ "/following-sibling::node()/AttributeValue[1]");
-
-		templateReadObjDSRuleXPath = xpath.compile("/Policy/Rule[@RuleId='deny-dsid-mime']");
-
-		templateManageObjXPath = xpath.compile("/Policy/Rule[@RuleId='deny-management-functions']/Condition"
-				+ "//SubjectAttributeDesignator[@AttributeId='urn:fedora:names:fedora:2.1:subject:loginId']"
-				+ "/following-sibling::node()/AttributeValue[1]");
-
-		templateManageObjRuleXPath = xpath.compile("/Policy/Rule[@RuleId='deny-management-functions']");
-
-	}
-
-	private static void generateXACMLDocument(int type, String node) throws Exception {
-		xacmlHandler.resetXACMLtemplateDocument();
-		Node templateNode;
-		Node nodeToRemove;
-		List<String> allowedUsers;
-		
-		if (type == CorpusNode.CATALOGUE || type == CorpusNode.SESSION || 
-				type == CorpusNode.CORPUS || type == CorpusNode.UNKNOWN) {
-			//Only deal with write rights. CMDI nodes are always readable.
-			allowedUsers = csDAO.getWriteRightsFor(node);
-			templateNode = xacmlHandler.getXPathTemplateNode(templateManageObjXPath);
-			nodeToRemove = xacmlHandler.getXPathTemplateNode(templateReadObjDSRuleXPath);
+		if (snapshotCorpus != null) {
+			csDAO = snapshotCorpus;
+		} else if (syntheticCorpus != null) {
+			System.out.println("INF: Generating a synthetic corpus of " + syntheticCorpus.getNodeCount() + " nodes");
+			csDAO = syntheticCorpus.generate();
 		} else {
-			//Only deal with read rights on object's OBJ data stream.
-			allowedUsers = csDAO.getReadRightsFor(node);
-			templateNode = xacmlHandler.getXPathTemplateNode(templateReadObjDSXPath);
-			nodeToRemove = xacmlHandler.getXPathTemplateNode(templateManageObjRuleXPath);
+			CorpusStructureDBDAO dbDAO = new CorpusStructureDBDAO(csdbURL, csdbUser, csdbPassword);
+			ConnectionPool connectionPool = dbDAO.getConnectionPool();
+			if (connectionPool != null) {
+				try {
+					if (dbPoolSettings != null)
+						connectionPool.configure(dbPoolSettings);
+				} catch (IllegalArgumentException e) {
+					System.err.println("ERR: " + e.getMessage());
+					showHelp();
+					System.exit(1);
+				}
+				connectionPool.setSnapshot(dbSnapshot);
+			}
+			csDAO = dbDAO;
 		}
-		
-		xacmlHandler.generateXACMLAccessList(allowedUsers, templateNode, nodeToRemove, usernameFormat);
-                
-                
+		if (prefetchSize != -1)
+			csDAO.setPrefetchSize(prefetchSize);
+	}
+
+	/**
+	 * Prepares the checkpoints, the failure log, the manifest and the sink
+	 * the policies are written to
+	 */
+	private static void initOutput() throws IOException {
+		// an archive cannot be resumed, it is written from scratch
+		if (checkpointInterval > 0 && outputArchive == null && retryNodeIds == null && inheritFile == null && servePort == 0)
+			checkpoint = new Checkpoint(Checkpoint.getStateFile(getStateOutput()), startNodeIds);
+		if (continueOnError)
+			failureLog = new FailureLog(FailureLog.getRetryFile(getStateOutput()), resume);
+		if (incremental && shard != null)
+			policyManifest = PolicyManifest.loadForShard(PolicyManifest.getManifestFile(policiesDir),
+					PolicyManifest.getManifestFile(shard.getStateOutput(policiesDir)));
+		else if (incremental)
+			policyManifest = PolicyManifest.load(PolicyManifest.getManifestFile(policiesDir));
+
+		if (fedoraUrl != null) {
+			fedoraSink = new FedoraPolicySink(fedoraUrl, fedoraCredentials, writerThreads > 0 ? writerThreads : threads, fedoraRetries,
+					FedoraPolicySink.getFailureFile(getStateOutput()));
+			fedoraSink.setTimeout(fedoraTimeout * 1000);
+			policySink = fedoraSink;
+		} else if (outputArchive == null) {
+			DirectoryPolicySink directorySink = new DirectoryPolicySink(policiesDir);
+			directorySink.setSync(fsync);
+			policySink = directorySink;
+		} else if (outputArchive.endsWith(".zip"))
+			policySink = new ZipPolicySink(new File(outputArchive));
+		else if (outputArchive.endsWith(".tar"))
+			policySink = new TarPolicySink(new File(outputArchive), false);
+		else
+			policySink = new TarPolicySink(new File(outputArchive), true);
+		// a sharded tree is not listed, the index tells where each policy is
+		if (indexFile == null && hashDirLevels > 0)
+			indexFile = IndexingPolicySink.getIndexFile(getStateOutput()).getPath();
+		if (indexFile != null)
+			policySink = new IndexingPolicySink(policySink, new File(indexFile));
+		// below the writer threads, so a policy is recorded once it is stored
+		if (policyManifest != null)
+			policySink = new ManifestPolicySink(policySink, policyManifest);
+		// the service answers once a policy is stored, and tells if it failed
+		if (writerThreads > 0 && servePort == 0)
+			policySink = new AsyncPolicySink(policySink, WRITE_QUEUE_SIZE, writerThreads);
 	}
 
 }
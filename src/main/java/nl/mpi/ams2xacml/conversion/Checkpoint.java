@@ -0,0 +1,142 @@
+package nl.mpi.ams2xacml.conversion;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import nl.mpi.ams2xacml.dao.LinkedNodeIterator;
+
+/**
+ * The state file of a conversion run, from which an interrupted run can be
+ * resumed: the start nodes and the {@link LinkedNodeIterator.Position
+ * position} of the last node whose policy was stored. The file is written
+ * periodically during the run and removed when the run completes.
+ */
+public class Checkpoint {
+	private final File stateFile;
+	private final List<String> startNodeIds;
+	private LinkedNodeIterator.Position position;
+	private long nodes;
+
+	/**
+	 * @param stateFile the file to save the checkpoints to
+	 * @param startNodeIds the start nodes of the run
+	 */
+	public Checkpoint(File stateFile, List<String> startNodeIds) {
+		this.stateFile = stateFile;
+		this.startNodeIds = new ArrayList<String>(startNodeIds);
+	}
+
+	/**
+	 * Returns the state file that belongs to an output directory or archive:
+	 * a file next to it, named after it
+	 * @param output the policies directory or archive
+	 * @return the state file
+	 */
+	public static File getStateFile(String output) {
+		File file = new File(output).getAbsoluteFile();
+		return new File(file.getParentFile(), file.getName() + ".checkpoint");
+	}
+
+	/**
+	 * Reads the last checkpoint of a run
+	 * @param stateFile the state file
+	 * @return the checkpoint
+	 * @throws IOException if the file cannot be read or is not a checkpoint
+	 */
+	public static Checkpoint load(File stateFile) throws IOException {
+		Properties state = new Properties();
+		InputStream in = new FileInputStream(stateFile);
+		try {
+			state.load(in);
+		} finally {
+			in.close();
+		}
+		String startNodes = state.getProperty("startNodes");
+		String startNodeIndex = state.getProperty("startNodeIndex");
+		String offset = state.getProperty("offset");
+		String nodeId = state.getProperty("nodeId");
+		if (startNodes == null || startNodeIndex == null || offset == null || nodeId == null)
+			throw new IOException("Not a checkpoint file: " + stateFile);
+		Checkpoint checkpoint = new Checkpoint(stateFile, Arrays.asList(startNodes.split(" ")));
+		try {
+			checkpoint.position = new LinkedNodeIterator.Position(Integer.parseInt(startNodeIndex), Integer.parseInt(offset), nodeId);
+			checkpoint.nodes = Long.parseLong(state.getProperty("nodes", "0"));
+		} catch (NumberFormatException e) {
+			throw new IOException("Not a checkpoint file: " + stateFile, e);
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * Saves a checkpoint, replacing the previous one. All the nodes up to
+	 * and including <i>position</i> must be handled and their policies stored.
+	 * @param position the position of the last handled node
+	 * @param handledNodes the number of nodes handled so far
+	 * @throws IOException
+	 */
+	public void save(LinkedNodeIterator.Position position, long handledNodes) throws IOException {
+		this.position = position;
+		this.nodes = handledNodes;
+		StringBuilder startNodes = new StringBuilder();
+		for (String startNodeId : startNodeIds) {
+			if (startNodes.length() > 0)
+				startNodes.append(' ');
+			startNodes.append(startNodeId);
+		}
+		Properties state = new Properties();
+		state.setProperty("startNodes", startNodes.toString());
+		state.setProperty("startNodeIndex", Integer.toString(position.getStartNodeIndex()));
+		state.setProperty("offset", Integer.toString(position.getOffset()));
+		state.setProperty("nodeId", position.getNodeId());
+		state.setProperty("nodes", Long.toString(handledNodes));
+
+		File tmpFile = new File(stateFile.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmpFile);
+		try {
+			state.store(out, "csrights2xacml checkpoint");
+		} finally {
+			out.close();
+		}
+		Files.move(tmpFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Removes the state file, once the run is complete
+	 */
+	public void delete() {
+		stateFile.delete();
+	}
+
+	public File getStateFile() {
+		return stateFile;
+	}
+
+	public List<String> getStartNodeIds() {
+		return startNodeIds;
+	}
+
+	/**
+	 * @return the position of the last handled node, or null if nothing
+	 * was saved yet
+	 */
+	public LinkedNodeIterator.Position getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return the number of nodes handled up to the checkpoint
+	 */
+	public long getNodes() {
+		return nodes;
+	}
+}
@@ -0,0 +1,102 @@
+package nl.mpi.ams2xacml.conversion;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import nl.mpi.ams2xacml.dao.NodeInfo;
+
+/**
+ * The retry file of a conversion run: one line per node whose policy could
+ * not be generated, with the node ID, a tab and the error. The node IDs
+ * can be converted again with {@link #readNodeIds(File)}.
+ */
+public class FailureLog {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Writer out;
+	private int failures = 0;
+
+	/**
+	 * @param retryFile the file to write the failing nodes to
+	 * @param append true to keep the failures of an earlier run
+	 * @throws IOException
+	 */
+	public FailureLog(File retryFile, boolean append) throws IOException {
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(retryFile, append), UTF8));
+	}
+
+	/**
+	 * Returns the retry file that belongs to an output directory or archive:
+	 * a file next to it, named after it
+	 * @param output the policies directory or archive
+	 * @return the retry file
+	 */
+	public static File getRetryFile(String output) {
+		File file = new File(output).getAbsoluteFile();
+		return new File(file.getParentFile(), file.getName() + ".retry");
+	}
+
+	/**
+	 * Records a node whose policy could not be generated
+	 * @param info the node
+	 * @param error the reason
+	 */
+	public synchronized void record(NodeInfo info, Exception error) {
+		failures++;
+		try {
+			out.write(info.getNodeId());
+			out.write('\t');
+			out.write(String.valueOf(error).replace('\n', ' '));
+			out.write('\n');
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("ERR: Could not record the failure of node " + info.getNodeId() + ": " + e);
+		}
+	}
+
+	/**
+	 * @return the number of failures recorded by this log
+	 */
+	public synchronized int getFailures() {
+		return failures;
+	}
+
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Reads the node IDs of a retry file
+	 * @param retryFile the retry file
+	 * @return the node IDs, in the order of the file, without duplicates
+	 * @throws IOException
+	 */
+	public static List<String> readNodeIds(File retryFile) throws IOException {
+		Set<String> nodeIds = new LinkedHashSet<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(retryFile), UTF8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int tabIdx = line.indexOf('\t');
+				String nodeId = (tabIdx == -1 ? line : line.substring(0, tabIdx)).trim();
+				if (nodeId.length() > 0 && !nodeId.startsWith("#"))
+					nodeIds.add(nodeId);
+			}
+		} finally {
+			in.close();
+		}
+		return new ArrayList<String>(nodeIds);
+	}
+}
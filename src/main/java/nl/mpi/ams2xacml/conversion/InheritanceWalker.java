@@ -0,0 +1,220 @@
+package nl.mpi.ams2xacml.conversion;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.mpi.ams2xacml.dao.CorpusStructureDAO;
+import nl.mpi.ams2xacml.dao.NodeIdSet;
+import nl.mpi.ams2xacml.dao.NodeInfo;
+import nl.mpi.ams2xacml.metrics.Phase;
+import nl.mpi.ams2xacml.metrics.RunMetrics;
+import nl.mpi.ams2xacml.xacml.PolicyCache;
+import nl.mpi.ams2xacml.xacml.PolicyRule;
+import nl.mpi.ams2xacml.xacml.XACMLtemplateHandler;
+
+/**
+ * Walks the corpus tree top-down from the start nodes and only has a
+ * policy generated for the nodes whose policy differs from the one they
+ * inherit: the policy of the nearest ancestor with the same
+ * {@link PolicyRule rule}. For the other nodes a line with the node's
+ * handle and the name of the inherited policy, separated by a tab, is
+ * written to a mapping file.
+ * <p>Two policies are the same when they have the same
+ * {@link PolicyCache#key(String, PolicyRule, String, int) cache key}.
+ * A node that is linked from more than one parent inherits from the
+ * parent it is reached through first.</p>
+ * <p>The mapping lines are kept until the {@link #setStoredBarrier(Flushable)
+ * stored barrier} has passed, so a line is only written once the policy it
+ * refers to has been stored, or recorded as failed. If the walk stops at
+ * an error, the lines that are still kept are dropped.</p>
+ */
+public class InheritanceWalker {
+	private static final int MAX_PENDING_MAPPING_LINES = 10000;
+
+	private final CorpusStructureDAO csDAO;
+	private final String usernameFormat;
+	private final int maxUsersPerGroup;
+	private final Writer mapping;
+	private final NodeIdSet seen = new NodeIdSet();
+	private final StringBuilder pendingMapping = new StringBuilder();
+	private int pendingMappingLines = 0;
+	private Flushable storedBarrier;
+	private RunMetrics metrics = new RunMetrics();
+	private volatile long discoveredNodes = 0;
+
+	/**
+	 * The policy a node passes on to its descendants
+	 */
+	private static class InheritedPolicy {
+		final String key;
+		final String name;
+
+		InheritedPolicy(String key, String name) {
+			this.key = key;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * A node whose children are still to be walked
+	 */
+	private static class PendingNode {
+		final String nodeId;
+		final Map<PolicyRule, InheritedPolicy> inherited;
+
+		PendingNode(String nodeId, Map<PolicyRule, InheritedPolicy> inherited) {
+			this.nodeId = nodeId;
+			this.inherited = inherited;
+		}
+	}
+
+	/**
+	 * @param csDAO the DAO to walk the tree with
+	 * @param usernameFormat 'keep', 'strip' or 'both'
+	 * @param maxUsersPerGroup the maximum number of users per group, -1 for no maximum
+	 * @param mappingFile the file to write the inherited policy of each node to
+	 * @throws IOException
+	 */
+	public InheritanceWalker(CorpusStructureDAO csDAO, String usernameFormat, int maxUsersPerGroup, File mappingFile) throws IOException {
+		this.csDAO = csDAO;
+		this.usernameFormat = usernameFormat;
+		this.maxUsersPerGroup = maxUsersPerGroup;
+		this.mapping = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mappingFile), Charset.forName("UTF-8")));
+	}
+
+	/**
+	 * @param storedBarrier waits until the policies of the nodes passed to
+	 * the target so far are stored or recorded as failed, and throws if the
+	 * conversion is to stop; null if they are stored when the target returns
+	 */
+	public void setStoredBarrier(Flushable storedBarrier) {
+		this.storedBarrier = storedBarrier;
+	}
+
+	/**
+	 * @param metrics the metrics of the run, to time the walk and to count
+	 * the nodes that inherit their policy
+	 */
+	public void setMetrics(RunMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Walks the trees below the start nodes. The start nodes do not
+	 * inherit a policy.
+	 * @param startNodeIds the node IDs of the start nodes
+	 * @param target the target of the nodes that need a policy of their own,
+	 * and of the nodes that are not onsite or unknown
+	 * @throws Exception
+	 */
+	public void walk(List<String> startNodeIds, PolicyTarget target) throws Exception {
+		Deque<PendingNode> pending = new ArrayDeque<PendingNode>();
+		for (String startNodeId : startNodeIds) {
+			if (!seen.add(startNodeId))
+				continue;
+			discoveredNodes++;
+			NodeInfo startInfo = csDAO.getNodeInfo(Collections.singletonList(startNodeId)).get(0);
+			Map<PolicyRule, InheritedPolicy> nothing = new EnumMap<PolicyRule, InheritedPolicy>(PolicyRule.class);
+			pending.push(new PendingNode(startNodeId, visit(startInfo, nothing, target)));
+			while (!pending.isEmpty()) {
+				PendingNode parent = pending.pop();
+				long start = metrics.startTimer();
+				String[] children = csDAO.getChildren(parent.nodeId);
+				start = metrics.record(Phase.TRAVERSE, start);
+				if (children == null)
+					continue;
+				List<String> childIds = new ArrayList<String>(children.length);
+				for (String childId : children) {
+					if (seen.add(childId))
+						childIds.add(childId);
+				}
+				if (childIds.isEmpty())
+					continue;
+				discoveredNodes += childIds.size();
+				List<NodeInfo> infos = csDAO.getNodeInfo(childIds);
+				metrics.record(Phase.LOOKUP, start);
+				PendingNode[] visited = new PendingNode[infos.size()];
+				for (int i = 0; i < visited.length; i++)
+					visited[i] = new PendingNode(childIds.get(i), visit(infos.get(i), parent.inherited, target));
+				// depth first, in the order of the children
+				for (int i = visited.length - 1; i >= 0; i--)
+					pending.push(visited[i]);
+				if (pendingMappingLines >= MAX_PENDING_MAPPING_LINES)
+					writeMapping();
+			}
+		}
+		writeMapping();
+	}
+
+	/**
+	 * Writes the kept mapping lines once the policies they refer to are stored
+	 */
+	private void writeMapping() throws IOException {
+		if (pendingMappingLines == 0)
+			return;
+		if (storedBarrier != null)
+			storedBarrier.flush();
+		mapping.write(pendingMapping.toString());
+		pendingMapping.setLength(0);
+		pendingMappingLines = 0;
+	}
+
+	/**
+	 * Has the policy of a node generated, or records the policy it inherits
+	 * @param inherited the policies of the node's ancestors, by rule
+	 * @return the policies the node passes on to its children
+	 */
+	private Map<PolicyRule, InheritedPolicy> visit(NodeInfo info, Map<PolicyRule, InheritedPolicy> inherited, PolicyTarget target) throws Exception {
+		if (!info.isOnsite() || info.getHandle() == null) {
+			// reported and counted by the generator
+			target.generatePolicy(info);
+			return inherited;
+		}
+		PolicyRule rule = PolicyGenerator.getPolicyRule(info.getNodeType());
+		List<String> allowedUsers = rule == PolicyRule.MANAGE_OBJECT
+				? csDAO.getWriteRightsFor(info) : csDAO.getReadRightsFor(info);
+		String key = PolicyCache.key(allowedUsers.get(0), rule, usernameFormat, maxUsersPerGroup);
+		InheritedPolicy inheritedPolicy = inherited.get(rule);
+		if (inheritedPolicy != null && inheritedPolicy.key.equals(key)) {
+			pendingMapping.append(info.getHandle()).append('\t').append(inheritedPolicy.name).append('\n');
+			pendingMappingLines++;
+			metrics.countInheritedNode();
+			return inherited;
+		}
+		target.generatePolicy(info);
+		Map<PolicyRule, InheritedPolicy> passedOn = new EnumMap<PolicyRule, InheritedPolicy>(PolicyRule.class);
+		passedOn.putAll(inherited);
+		passedOn.put(rule, new InheritedPolicy(key, XACMLtemplateHandler.getPolicyName(info.getHandle())));
+		return passedOn;
+	}
+
+	/**
+	 * Returns the number of nodes found so far. May be called from another
+	 * thread, e.g. to report progress.
+	 * @return the number of nodes found so far
+	 */
+	public long getDiscoveredNodes() {
+		return discoveredNodes;
+	}
+
+	/**
+	 * Closes the mapping file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		mapping.close();
+	}
+}
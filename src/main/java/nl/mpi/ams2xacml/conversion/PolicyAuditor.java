@@ -0,0 +1,385 @@
+package nl.mpi.ams2xacml.conversion;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLStreamException;
+
+import nl.mpi.ams2xacml.dao.NodeInfo;
+import nl.mpi.ams2xacml.metrics.Phase;
+import nl.mpi.ams2xacml.metrics.RunMetrics;
+import nl.mpi.ams2xacml.xacml.PolicyReader;
+import nl.mpi.ams2xacml.xacml.XACMLtemplateHandler;
+
+/**
+ * Checks the policies in a policies directory against the rights in the
+ * corpusstructure, without writing anything to the directory. Worker
+ * threads read the policy file of every onsite node with a
+ * {@link PolicyReader} and compare the user names and roles of each rule
+ * with those of the policy the node would get now, which is rendered and read once per
+ * distinct set of rights. Nodes are handed to the workers through a bounded
+ * queue, as in the {@link PolicyWorkerPool}.
+ * <p>Every difference is written as a line to the audit report: the kind
+ * (MISMATCH, MISSING, UNREADABLE, ERROR or ORPHANED), the node ID, the
+ * handle, the policy path and a description, separated by tabs. Policy
+ * files that belong to none of the audited nodes are reported as ORPHANED
+ * by {@link #close()}.</p>
+ * <p>For a policies directory written with --inherit, the
+ * {@link #readInheritedPolicies(File) mapping file} tells which nodes have
+ * no policy of their own; their rights are checked against the policy
+ * they inherit.</p>
+ */
+public class PolicyAuditor {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final NodeInfo END_OF_WORK = NodeInfo.unknown(null);
+
+	private final String policiesDir;
+	private final int hashDirLevels;
+	private final RunMetrics metrics;
+	private final BlockingQueue<NodeInfo> queue;
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private final AtomicInteger runningWorkers = new AtomicInteger();
+	/** the subjects by rule of the current policy of each distinct set of rights */
+	private final ConcurrentMap<String, Map<String, Set<String>>> expectedPolicies = new ConcurrentHashMap<String, Map<String, Set<String>>>();
+	private final Writer report;
+	private final AtomicLong policies = new AtomicLong();
+	private final AtomicLong mismatched = new AtomicLong();
+	private final AtomicLong missing = new AtomicLong();
+	private final AtomicLong unreadable = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private long orphaned = 0;
+	/** the hashes of the paths of the audited policies, to find the orphaned files */
+	private long[] pathHashes = new long[1024];
+	private int pathCount = 0;
+	/** the name of the policy each node without a policy of its own inherits, by handle */
+	private Map<String, String> inheritedPolicies = Collections.emptyMap();
+
+	/**
+	 * Starts one worker thread per generator
+	 * @param generators the generators to render the current policies with,
+	 * one per worker thread, sharing one {@link RunMetrics}
+	 * @param policiesDir the policies directory to audit, ending with a separator
+	 * @param hashDirLevels the number of hash-prefix subdirectory levels of the policies
+	 * @param reportFile the file to write the differences to
+	 * @param queueSize the maximum number of nodes waiting to be audited
+	 * @throws IOException if the report file cannot be created
+	 */
+	public PolicyAuditor(List<PolicyGenerator> generators, String policiesDir, int hashDirLevels, File reportFile,
+			int queueSize) throws IOException {
+		this.policiesDir = policiesDir;
+		this.hashDirLevels = hashDirLevels;
+		this.metrics = generators.get(0).getMetrics();
+		this.report = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(reportFile), UTF8));
+		queue = new ArrayBlockingQueue<NodeInfo>(queueSize);
+		for (int i = 0; i < generators.size(); i++) {
+			final PolicyGenerator generator = generators.get(i);
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					try {
+						work(generator, new PolicyReader());
+					} finally {
+						runningWorkers.decrementAndGet();
+					}
+				}
+			}, "policy-auditor-" + (i + 1));
+			workers.add(worker);
+		}
+		runningWorkers.set(workers.size());
+		for (Thread worker : workers)
+			worker.start();
+	}
+
+	/**
+	 * Reads the mapping file of an --inherit run, to audit the nodes listed
+	 * in it against the policy they inherit. Must be called before the first
+	 * node is submitted.
+	 * @param mappingFile the file with the handle and inherited policy name
+	 * of each node, separated by a tab
+	 * @throws IOException
+	 */
+	public void readInheritedPolicies(File mappingFile) throws IOException {
+		Map<String, String> policies = new HashMap<String, String>();
+		// many nodes inherit the same policy, keep its name once
+		Map<String, String> names = new HashMap<String, String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(mappingFile), UTF8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int separatorIdx = line.indexOf('\t');
+				if (separatorIdx == -1)
+					continue;
+				String name = line.substring(separatorIdx + 1);
+				String knownName = names.get(name);
+				if (knownName == null)
+					names.put(name, knownName = name);
+				policies.put(line.substring(0, separatorIdx), knownName);
+			}
+		} finally {
+			in.close();
+		}
+		inheritedPolicies = policies;
+	}
+
+	private void work(PolicyGenerator generator, PolicyReader reader) {
+		while (true) {
+			NodeInfo info;
+			try {
+				info = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (info == END_OF_WORK)
+				return;
+			try {
+				audit(info, generator, reader);
+			} catch (Exception e) {
+				failed.incrementAndGet();
+				metrics.countFailedNode();
+				report("ERROR", info, null, String.valueOf(e));
+			}
+		}
+	}
+
+	/**
+	 * Queues a node for auditing, waiting while the queue is full
+	 * @param info the node to audit the policy of
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if all the worker threads died
+	 */
+	public void submit(NodeInfo info) throws InterruptedException {
+		while (!queue.offer(info, 1, TimeUnit.SECONDS)) {
+			if (runningWorkers.get() == 0)
+				throw new IllegalStateException("All policy auditor threads have stopped");
+		}
+	}
+
+	private void audit(NodeInfo info, PolicyGenerator generator, PolicyReader reader) throws Exception {
+		metrics.countNode();
+		if (!info.isOnsite()) {
+			if (info.isKnown())
+				metrics.countSkippedNode();
+			else
+				metrics.countUnknownNode();
+			return;
+		}
+		String path = XACMLtemplateHandler.getPolicyPath(XACMLtemplateHandler.getPolicyName(info.getHandle()), hashDirLevels);
+		addPathHash(hash(path));
+		String inheritedName = inheritedPolicies.get(info.getHandle());
+		if (inheritedName != null)
+			path = XACMLtemplateHandler.getPolicyPath(inheritedName, hashDirLevels);
+		policies.incrementAndGet();
+		Map<String, Set<String>> expected = getExpectedPolicy(info, generator, reader);
+		long start = metrics.startTimer();
+		File policyFile = new File(policiesDir + path + ".xml");
+		if (!policyFile.isFile()) {
+			missing.incrementAndGet();
+			report("MISSING", info, path, inheritedName != null ? "no inherited policy file" : "no policy file");
+			return;
+		}
+		Map<String, Set<String>> stored;
+		InputStream in = new BufferedInputStream(new FileInputStream(policyFile), 8192);
+		try {
+			stored = reader.readSubjects(in);
+		} catch (XMLStreamException e) {
+			unreadable.incrementAndGet();
+			report("UNREADABLE", info, path, String.valueOf(e.getMessage()));
+			return;
+		} finally {
+			in.close();
+		}
+		metrics.record(Phase.AUDIT, start);
+		if (!stored.equals(expected)) {
+			mismatched.incrementAndGet();
+			report("MISMATCH", info, path, (inheritedName != null ? "inherited, " : "") + describeDifference(expected, stored));
+		}
+	}
+
+	/**
+	 * Returns the subjects by rule of the policy that the node should have,
+	 * rendering and reading it once for every distinct set of rights
+	 */
+	private Map<String, Set<String>> getExpectedPolicy(NodeInfo info, PolicyGenerator generator, PolicyReader reader)
+			throws Exception {
+		String key = generator.getPolicyKey(info);
+		Map<String, Set<String>> expected = expectedPolicies.get(key);
+		if (expected == null) {
+			expected = reader.readSubjects(new ByteArrayInputStream(generator.renderPolicy(info)));
+			expectedPolicies.putIfAbsent(key, expected);
+		}
+		return expected;
+	}
+
+	private static String describeDifference(Map<String, Set<String>> expected, Map<String, Set<String>> stored) {
+		if (!stored.keySet().equals(expected.keySet()))
+			return "rules " + stored.keySet() + ", expected " + expected.keySet();
+		StringBuilder description = new StringBuilder();
+		for (Map.Entry<String, Set<String>> rule : expected.entrySet()) {
+			Set<String> storedUsers = stored.get(rule.getKey());
+			Set<String> missingUsers = new TreeSet<String>(rule.getValue());
+			missingUsers.removeAll(storedUsers);
+			Set<String> extraUsers = new TreeSet<String>(storedUsers);
+			extraUsers.removeAll(rule.getValue());
+			if (missingUsers.isEmpty() && extraUsers.isEmpty())
+				continue;
+			if (description.length() > 0)
+				description.append("; ");
+			description.append(rule.getKey()).append(':');
+			if (!missingUsers.isEmpty())
+				description.append(" missing ").append(missingUsers);
+			if (!extraUsers.isEmpty())
+				description.append(" unexpected ").append(extraUsers);
+		}
+		return description.toString();
+	}
+
+	private synchronized void addPathHash(long hash) {
+		if (pathCount == pathHashes.length)
+			pathHashes = Arrays.copyOf(pathHashes, pathCount * 2);
+		pathHashes[pathCount++] = hash;
+	}
+
+	/**
+	 * The 64-bit FNV-1a hash of a policy path: 8 bytes per policy instead
+	 * of the path itself, a collision could only hide an orphaned file
+	 */
+	private static long hash(String path) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < path.length(); i++) {
+			hash ^= path.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private synchronized void report(String kind, NodeInfo info, String path, String description) {
+		try {
+			report.write(kind);
+			report.write('\t');
+			report.write(info != null ? info.getNodeId() : "");
+			report.write('\t');
+			report.write(info != null && info.getHandle() != null ? info.getHandle() : "");
+			report.write('\t');
+			report.write(path != null ? path : "");
+			report.write('\t');
+			report.write(description.replace('\n', ' ').replace('\t', ' '));
+			report.write('\n');
+		} catch (IOException e) {
+			System.err.println("ERR: Could not write to the audit report: " + e);
+		}
+	}
+
+	/**
+	 * Lets the workers finish the queued nodes, reports the policy files
+	 * that belong to none of the audited nodes and closes the report
+	 * @throws InterruptedException
+	 * @throws IOException if the policies directory cannot be listed
+	 */
+	public void close() throws InterruptedException, IOException {
+		for (int i = 0; i < workers.size(); i++) {
+			while (!queue.offer(END_OF_WORK, 1, TimeUnit.SECONDS)) {
+				if (runningWorkers.get() == 0)
+					break;
+			}
+		}
+		for (Thread worker : workers)
+			worker.join();
+		try {
+			reportOrphans();
+		} finally {
+			report.close();
+		}
+	}
+
+	private synchronized void reportOrphans() throws IOException {
+		final long[] hashes = Arrays.copyOf(pathHashes, pathCount);
+		Arrays.sort(hashes);
+		final Path root = new File(policiesDir).toPath();
+		if (!Files.isDirectory(root))
+			return;
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+				if (attrs.isRegularFile() && name.endsWith(".xml")) {
+					String path = name.substring(0, name.length() - ".xml".length());
+					if (Arrays.binarySearch(hashes, hash(path)) < 0) {
+						orphaned++;
+						report("ORPHANED", null, path, "no audited node has this policy");
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * @return the number of onsite nodes whose policy was audited
+	 */
+	public long getPolicies() {
+		return policies.get();
+	}
+
+	public long getMismatched() {
+		return mismatched.get();
+	}
+
+	public long getMissing() {
+		return missing.get();
+	}
+
+	public long getUnreadable() {
+		return unreadable.get();
+	}
+
+	/**
+	 * @return the number of nodes whose current policy could not be rendered
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return the number of orphaned policy files, known after {@link #close()}
+	 */
+	public synchronized long getOrphaned() {
+		return orphaned;
+	}
+
+	/**
+	 * @return the total number of differences found
+	 */
+	public long getDifferences() {
+		return getMismatched() + getMissing() + getUnreadable() + getFailed() + getOrphaned();
+	}
+}
@@ -0,0 +1,176 @@
+package nl.mpi.ams2xacml.conversion;
+
+import java.util.Collections;
+import java.util.List;
+
+import nl.mpi.ams2xacml.dao.CorpusStructureDAO;
+import nl.mpi.ams2xacml.dao.NodeInfo;
+import nl.mpi.ams2xacml.metrics.Phase;
+import nl.mpi.ams2xacml.metrics.RunMetrics;
+import nl.mpi.ams2xacml.xacml.PolicyCache;
+import nl.mpi.ams2xacml.xacml.PolicyRule;
+import nl.mpi.ams2xacml.xacml.UserGroups;
+import nl.mpi.ams2xacml.xacml.XACMLtemplateHandler;
+import nl.mpi.ams2xacml.xacml.XACMLtemplateSplicer;
+import nl.mpi.corpusstructure.CorpusNode;
+
+/**
+ * Generates and stores the XACML policy of a node. A PolicyGenerator has
+ * its own {@link XACMLtemplateHandler}, with its own compiled XPath
+ * expressions, so it is not thread safe: use one instance per conversion
+ * thread.
+ */
+public class PolicyGenerator implements PolicyTarget {
+	private final CorpusStructureDAO csDAO;
+	private final XACMLtemplateHandler xacmlHandler;
+	private final String usernameFormat;
+	private final PolicyCache policyCache;
+	private final XACMLtemplateSplicer templateSplicer;
+	private UserGroups userGroups;
+	private RunMetrics metrics = new RunMetrics();
+
+	/**
+	 * @param csDAO the DAO used to interpret the rights of the nodes
+	 * @param xacmlHandler the template handler owned by this generator
+	 * @param usernameFormat 'keep', 'strip' or 'both'
+	 * @param policyCache the cache of rendered policies, or null to render
+	 * every policy
+	 * @param templateSplicer the splicer to render the policies with, or
+	 * null to render them with the DOM of <i>xacmlHandler</i>
+	 */
+	public PolicyGenerator(CorpusStructureDAO csDAO, XACMLtemplateHandler xacmlHandler, String usernameFormat,
+			PolicyCache policyCache, XACMLtemplateSplicer templateSplicer) {
+		this.csDAO = csDAO;
+		this.xacmlHandler = xacmlHandler;
+		this.usernameFormat = usernameFormat;
+		this.policyCache = policyCache;
+		this.templateSplicer = templateSplicer;
+	}
+
+	/**
+	 * @param metrics the metrics of the run, shared with the other generators
+	 */
+	public void setMetrics(RunMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param userGroups the groups to reference large user lists by, shared
+	 * with the other generators, or null to write all users into the policies
+	 */
+	public void setUserGroups(UserGroups userGroups) {
+		this.userGroups = userGroups;
+	}
+
+	/**
+	 * Generates the XACML policy of the node described by <i>info</i> and
+	 * stores it under the node's handle. Nodes that are not onsite are skipped.
+	 * @param info the prefetched node information
+	 * @return the path of the stored policy, or null if the node is not
+	 * onsite, or the policy is not stored (yet)
+	 * @throws Exception
+	 */
+	public String generatePolicy(NodeInfo info) throws Exception {
+		metrics.countNode();
+		if (!info.isOnsite()) {
+			if (info.isKnown())
+				metrics.countSkippedNode();
+			else
+				metrics.countUnknownNode();
+			return null;
+		}
+		PolicyRule rule = getPolicyRule(info.getNodeType());
+		List<String> allowedUsers = getAllowedUsers(info, rule);
+		byte[] policy = render(rule, allowedUsers);
+		long start = metrics.startTimer();
+		String path = xacmlHandler.storeXACMLfile(info.getHandle(), policy);
+		metrics.record(Phase.STORE, start);
+		// the first item of a users list is the ACL string itself
+		metrics.countPolicy(allowedUsers.size() - 1, policy.length);
+		return path;
+	}
+
+	/**
+	 * Renders the XACML policy of the node described by <i>info</i>,
+	 * without storing it
+	 * @param info the prefetched node information
+	 * @return the serialized policy, or null if the node is not onsite
+	 * @throws Exception
+	 */
+	public byte[] renderPolicy(NodeInfo info) throws Exception {
+		if (!info.isOnsite())
+			return null;
+		PolicyRule rule = getPolicyRule(info.getNodeType());
+		return render(rule, getAllowedUsers(info, rule));
+	}
+
+	/**
+	 * Returns the key under which the policy of the node is cached: nodes
+	 * with the same key get the same policy
+	 * @param info the prefetched node information of an onsite node
+	 * @return the policy cache key
+	 */
+	public String getPolicyKey(NodeInfo info) {
+		PolicyRule rule = getPolicyRule(info.getNodeType());
+		return PolicyCache.key(getAllowedUsers(info, rule).get(0), rule, usernameFormat, xacmlHandler.getMaxUsersPerGroup());
+	}
+
+	private List<String> getAllowedUsers(NodeInfo info, PolicyRule rule) {
+		return rule == PolicyRule.MANAGE_OBJECT
+				? csDAO.getWriteRightsFor(info) : csDAO.getReadRightsFor(info);
+	}
+
+	/**
+	 * Returns the cached policy for the rights, or renders and caches it
+	 */
+	private byte[] render(PolicyRule rule, List<String> allowedUsers) throws Exception {
+		String cacheKey = null;
+		if (policyCache != null) {
+			cacheKey = PolicyCache.key(allowedUsers.get(0), rule, usernameFormat, xacmlHandler.getMaxUsersPerGroup());
+			byte[] policy = policyCache.get(cacheKey);
+			if (policy != null)
+				return policy;
+		}
+		byte[] policy;
+		long start = metrics.startTimer();
+		List<String> userNames = userGroups != null ? xacmlHandler.getPolicyUserNames(allowedUsers, usernameFormat) : null;
+		if (userNames != null && userGroups.isGroup(userNames)) {
+			// the users are listed once in the group file, the policy refers to their group
+			List<String> roleNames = Collections.singletonList(userGroups.getGroupId(userNames));
+			xacmlHandler.generateXACMLDocument(rule, Collections.<String>emptyList(), roleNames);
+			start = metrics.record(Phase.BUILD, start);
+			policy = xacmlHandler.serializeXACMLdocument();
+			metrics.record(Phase.SERIALIZE, start);
+		} else if (templateSplicer != null) {
+			policy = templateSplicer.render(rule, allowedUsers);
+			metrics.record(Phase.BUILD, start);
+		} else {
+			xacmlHandler.generateXACMLDocument(rule, allowedUsers, usernameFormat);
+			start = metrics.record(Phase.BUILD, start);
+			policy = xacmlHandler.serializeXACMLdocument();
+			metrics.record(Phase.SERIALIZE, start);
+		}
+		if (policyCache != null)
+			policyCache.put(cacheKey, policy);
+		return policy;
+	}
+
+	/**
+	 * Returns the rule that restricts access to nodes of the given type
+	 * @param type the {@link nl.mpi.corpusstructure.Node Node} type
+	 * @return the rule to keep in the policy
+	 */
+	public static PolicyRule getPolicyRule(int type) {
+		if (type == CorpusNode.CATALOGUE || type == CorpusNode.SESSION ||
+				type == CorpusNode.CORPUS || type == CorpusNode.UNKNOWN) {
+			//Only deal with write rights. CMDI nodes are always readable.
+			return PolicyRule.MANAGE_OBJECT;
+		}
+		//Only deal with read rights on object's OBJ data stream.
+		return PolicyRule.READ_OBJ_DATASTREAM;
+	}
+}
@@ -0,0 +1,357 @@
+package nl.mpi.ams2xacml.conversion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.mpi.ams2xacml.dao.CorpusStructureDAO;
+import nl.mpi.ams2xacml.dao.LinkedNodeIterator;
+import nl.mpi.ams2xacml.dao.NodeInfo;
+import nl.mpi.ams2xacml.metrics.JsonWriter;
+import nl.mpi.ams2xacml.metrics.RunMetrics;
+import nl.mpi.ams2xacml.sink.PolicySink;
+import nl.mpi.ams2xacml.xacml.UserGroups;
+import nl.mpi.ams2xacml.xacml.XACMLtemplateHandler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the policies of single nodes and subtrees over HTTP from a long
+ * running process, in which the XACML templates, the caches and the
+ * database connections stay warm. The requests are handled concurrently,
+ * each one with a {@link PolicyGenerator} of its own. The node is given
+ * as 'node=&lt;nodeId&gt;' (the '#' may be left out, or encoded as '%23')
+ * or as 'handle=&lt;handle&gt;':
+ * <ul>
+ * <li>GET /policy: returns the XACML policy of the node</li>
+ * <li>POST /policy: stores the policy of the node in the policy sink, or
+ * answers 502 if the sink could not store it</li>
+ * <li>POST /subtree: stores the policies of the node and its descendants,
+ * counting the ones the sink could not store as failed</li>
+ * <li>GET /status: returns the counters of the service</li>
+ * </ul>
+ * <p>With {@link #setUserGroups(UserGroups, File) user groups}, the group
+ * file is rewritten before a policy that references a new group is
+ * returned or reported as stored.</p>
+ * <p>The policy sink must store a policy before its write returns, not
+ * hand it to an {@link nl.mpi.ams2xacml.sink.AsyncPolicySink}, so that a
+ * policy that was not stored can be told from one that was.</p>
+ */
+public class PolicyService {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final CorpusStructureDAO csDAO;
+	private final PolicySink policySink;
+	private final BlockingQueue<PolicyGenerator> generators;
+	private final RunMetrics metrics;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private UserGroups userGroups;
+	private File groupFile;
+
+	/**
+	 * @param csDAO the DAO to look up the nodes with
+	 * @param generators the generators, one per request handling thread,
+	 * sharing <i>policySink</i> and one {@link RunMetrics}
+	 * @param policySink the sink the generators store the policies in
+	 * @param address the address to listen on
+	 * @throws IOException if the address cannot be bound
+	 */
+	public PolicyService(CorpusStructureDAO csDAO, List<PolicyGenerator> generators, PolicySink policySink,
+			InetSocketAddress address) throws IOException {
+		this.csDAO = csDAO;
+		this.policySink = policySink;
+		this.generators = new ArrayBlockingQueue<PolicyGenerator>(generators.size(), false, generators);
+		this.metrics = generators.get(0).getMetrics();
+		this.server = HttpServer.create(address, 0);
+		this.executor = Executors.newFixedThreadPool(generators.size(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, "policy-service-" + count.incrementAndGet());
+			}
+		});
+		server.setExecutor(executor);
+		server.createContext("/policy", new ServiceHandler() {
+			@Override
+			protected void handle(HttpExchange exchange, Map<String, String> params) throws Exception {
+				if (exchange.getRequestMethod().equals("GET"))
+					renderPolicy(exchange, params);
+				else if (exchange.getRequestMethod().equals("POST"))
+					storePolicy(exchange, params);
+				else
+					respond(exchange, 405, "Use GET or POST\n");
+			}
+		});
+		server.createContext("/subtree", new ServiceHandler() {
+			@Override
+			protected void handle(HttpExchange exchange, Map<String, String> params) throws Exception {
+				if (exchange.getRequestMethod().equals("POST"))
+					storeSubtree(exchange, params);
+				else
+					respond(exchange, 405, "Use POST\n");
+			}
+		});
+		server.createContext("/status", new ServiceHandler() {
+			@Override
+			protected void handle(HttpExchange exchange, Map<String, String> params) throws Exception {
+				writeStatus(exchange);
+			}
+		});
+	}
+
+	/**
+	 * @param userGroups the groups the generators reference large user lists by
+	 * @param groupFile the file to write the users and their groups to
+	 */
+	public void setUserGroups(UserGroups userGroups, File groupFile) {
+		this.userGroups = userGroups;
+		this.groupFile = groupFile;
+	}
+
+	/**
+	 * Starts listening for requests
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * @return the address the service listens on
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	/**
+	 * Stops listening and waits for the requests being handled
+	 * @param delaySeconds the maximum number of seconds to wait
+	 * @throws InterruptedException
+	 */
+	public void stop(int delaySeconds) throws InterruptedException {
+		server.stop(delaySeconds);
+		executor.shutdown();
+		executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Answers a request, turning failures into error responses
+	 */
+	private abstract class ServiceHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				handle(exchange, parseQuery(exchange.getRequestURI().getRawQuery()));
+			} catch (IllegalArgumentException e) {
+				respond(exchange, 400, e.getMessage() + "\n");
+			} catch (Exception e) {
+				System.err.println("ERR: " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + " failed: " + e);
+				respond(exchange, 500, e + "\n");
+			} finally {
+				exchange.close();
+			}
+		}
+
+		protected abstract void handle(HttpExchange exchange, Map<String, String> params) throws Exception;
+	}
+
+	private void renderPolicy(HttpExchange exchange, Map<String, String> params) throws Exception {
+		NodeInfo info = lookUp(exchange, params);
+		if (info == null)
+			return;
+		byte[] policy;
+		PolicyGenerator generator = generators.take();
+		try {
+			policy = generator.renderPolicy(info);
+		} finally {
+			generators.put(generator);
+		}
+		writeGroups();
+		exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=UTF-8");
+		exchange.sendResponseHeaders(200, policy.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(policy);
+		out.close();
+	}
+
+	private void storePolicy(HttpExchange exchange, Map<String, String> params) throws Exception {
+		NodeInfo info = lookUp(exchange, params);
+		if (info == null)
+			return;
+		String path;
+		PolicyGenerator generator = generators.take();
+		try {
+			path = generator.generatePolicy(info);
+		} finally {
+			generators.put(generator);
+		}
+		// the policy is visible to the caller once the response is sent
+		policySink.flush();
+		if (path == null) {
+			respond(exchange, 502, "The policy of node " + info.getNodeId() + " could not be stored\n");
+			return;
+		}
+		writeGroups();
+		StringWriter json = new StringWriter();
+		new JsonWriter(json).beginObject(null)
+				.field("nodeId", info.getNodeId())
+				.field("handle", info.getHandle())
+				.field("policy", XACMLtemplateHandler.getPolicyName(info.getHandle()))
+				.endObject();
+		respondJson(exchange, json.toString());
+	}
+
+	private void storeSubtree(HttpExchange exchange, Map<String, String> params) throws Exception {
+		String nodeId = resolveNodeId(params);
+		if (nodeId == null) {
+			respond(exchange, 404, "Unknown node\n");
+			return;
+		}
+		LinkedNodeIterator subtree = csDAO.iterateLinkedNodes(Collections.singletonList(nodeId));
+		// the corpusstructure tree queries are not thread safe
+		subtree.setLock(csDAO);
+		int nodes = 0;
+		int policies = 0;
+		int skipped = 0;
+		int failed = 0;
+		int chunkSize = csDAO.getPrefetchSize();
+		PolicyGenerator generator = generators.take();
+		try {
+			List<String> chunk = new ArrayList<String>(chunkSize);
+			while (subtree.hasNext()) {
+				chunk.clear();
+				while (chunk.size() < chunkSize && subtree.hasNext())
+					chunk.add(subtree.next());
+				nodes += chunk.size();
+				for (NodeInfo info : csDAO.getNodeInfo(chunk)) {
+					String path = generator.generatePolicy(info);
+					if (!info.isOnsite())
+						skipped++;
+					else if (path == null)
+						failed++;
+					else
+						policies++;
+				}
+			}
+		} finally {
+			generators.put(generator);
+		}
+		policySink.flush();
+		writeGroups();
+		StringWriter json = new StringWriter();
+		new JsonWriter(json).beginObject(null)
+				.field("nodeId", nodeId)
+				.field("nodes", nodes)
+				.field("policies", policies)
+				.field("skippedNodes", skipped)
+				.field("failed", failed)
+				.endObject();
+		respondJson(exchange, json.toString());
+	}
+
+	/**
+	 * Writes the group file if the request registered a new group, so that
+	 * Fedora knows the group before the policy is used
+	 */
+	private void writeGroups() throws IOException {
+		if (userGroups != null)
+			userGroups.writeIfChanged(groupFile);
+	}
+
+	private void writeStatus(HttpExchange exchange) throws IOException {
+		StringWriter json = new StringWriter();
+		new JsonWriter(json).beginObject(null)
+				.field("seconds", metrics.getElapsedSeconds())
+				.field("nodes", metrics.getNodes())
+				.field("policies", metrics.getPolicies())
+				.field("skippedNodes", metrics.getSkippedNodes())
+				.field("unknownNodes", metrics.getUnknownNodes())
+				.endObject();
+		respondJson(exchange, json.toString());
+	}
+
+	/**
+	 * Looks up the node of a request, answering with an error if it is
+	 * unknown or not onsite
+	 * @return the node information, or null if the request is answered
+	 */
+	private NodeInfo lookUp(HttpExchange exchange, Map<String, String> params) throws IOException {
+		String nodeId = resolveNodeId(params);
+		NodeInfo info = nodeId == null ? null : csDAO.getNodeInfo(Collections.singletonList(nodeId)).get(0);
+		if (info == null || !info.isKnown()) {
+			respond(exchange, 404, "Unknown node\n");
+			return null;
+		}
+		if (!info.isOnsite() || info.getHandle() == null) {
+			respond(exchange, 409, "Node " + nodeId + " is not onsite, no access permissions known\n");
+			return null;
+		}
+		return info;
+	}
+
+	/**
+	 * @return the node ID given by the 'node' or 'handle' parameter, or null
+	 * if there is no node with the handle
+	 */
+	private String resolveNodeId(Map<String, String> params) {
+		String nodeId = params.get("node");
+		if (nodeId != null)
+			return nodeId.endsWith("#") ? nodeId : nodeId + "#";
+		String handle = params.get("handle");
+		if (handle == null)
+			throw new IllegalArgumentException("Give the node with node=<nodeId> or handle=<handle>");
+		synchronized (csDAO) {
+			return csDAO.getNodeIdFor(handle);
+		}
+	}
+
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null)
+			return params;
+		for (String param : query.split("&")) {
+			int separatorIdx = param.indexOf('=');
+			if (separatorIdx > 0)
+				params.put(URLDecoder.decode(param.substring(0, separatorIdx), "UTF-8"),
+						URLDecoder.decode(param.substring(separatorIdx + 1), "UTF-8"));
+		}
+		return params;
+	}
+
+	private static void respondJson(HttpExchange exchange, String json) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		send(exchange, 200, json);
+	}
+
+	private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		send(exchange, status, message);
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(UTF8);
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+}
@@ -0,0 +1,21 @@
+package nl.mpi.ams2xacml.conversion;
+
+import nl.mpi.ams2xacml.dao.NodeInfo;
+
+/**
+ * Receives the nodes whose policy is to be generated, e.g. a
+ * {@link PolicyGenerator} that generates it right away, or a wrapper that
+ * hands the node to a {@link PolicyWorkerPool}.
+ */
+public interface PolicyTarget {
+
+	/**
+	 * Generates, or arranges the generation of, the policy of a node
+	 * @param info the prefetched node information
+	 * @return the path of the stored policy, or null if the node is not
+	 * onsite, the policy is stored later by another thread, or it could not
+	 * be stored
+	 * @throws Exception
+	 */
+	String generatePolicy(NodeInfo info) throws Exception;
+}
@@ -0,0 +1,144 @@
+package nl.mpi.ams2xacml.conversion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.mpi.ams2xacml.dao.NodeInfo;
+
+/**
+ * A pool of worker threads that each generate policies with their own
+ * {@link PolicyGenerator}. Nodes are handed to the workers through a
+ * bounded queue, so {@link #submit(NodeInfo)} blocks when the workers
+ * fall behind. A node whose policy cannot be generated is reported,
+ * counted and recorded in the {@link FailureLog}, if there is one; the
+ * remaining nodes are still processed.
+ */
+public class PolicyWorkerPool {
+	private static final NodeInfo END_OF_WORK = NodeInfo.unknown(null);
+
+	private final BlockingQueue<NodeInfo> queue;
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicInteger runningWorkers = new AtomicInteger();
+	private final Object idleLock = new Object();
+	private int pendingNodes = 0;
+	private FailureLog failureLog;
+
+	/**
+	 * Starts one worker thread per generator
+	 * @param generators the generators to use, one per worker thread
+	 * @param queueSize the maximum number of nodes waiting to be processed
+	 */
+	public PolicyWorkerPool(List<PolicyGenerator> generators, int queueSize) {
+		queue = new ArrayBlockingQueue<NodeInfo>(queueSize);
+		for (int i = 0; i < generators.size(); i++) {
+			final PolicyGenerator generator = generators.get(i);
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					try {
+						work(generator);
+					} finally {
+						runningWorkers.decrementAndGet();
+					}
+				}
+			}, "policy-worker-" + (i + 1));
+			workers.add(worker);
+		}
+		runningWorkers.set(workers.size());
+		for (Thread worker : workers)
+			worker.start();
+	}
+
+	private void work(PolicyGenerator generator) {
+		while (true) {
+			NodeInfo info;
+			try {
+				info = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (info == END_OF_WORK)
+				return;
+			try {
+				generator.generatePolicy(info);
+			} catch (Exception e) {
+				failures.incrementAndGet();
+				generator.getMetrics().countFailedNode();
+				System.err.println("ERR: Could not generate policy for node " + info.getNodeId() + ": " + e);
+				if (failureLog != null)
+					failureLog.record(info, e);
+			} finally {
+				synchronized (idleLock) {
+					if (--pendingNodes == 0)
+						idleLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param failureLog the log to record the failing nodes in, or null
+	 */
+	public void setFailureLog(FailureLog failureLog) {
+		this.failureLog = failureLog;
+	}
+
+	/**
+	 * Queues a node for policy generation, waiting while the queue is full
+	 * @param info the node to generate the policy for
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if all the worker threads died
+	 */
+	public void submit(NodeInfo info) throws InterruptedException {
+		synchronized (idleLock) {
+			pendingNodes++;
+		}
+		while (!queue.offer(info, 1, TimeUnit.SECONDS)) {
+			if (runningWorkers.get() == 0)
+				throw new IllegalStateException("All policy worker threads have stopped");
+		}
+	}
+
+	/**
+	 * Waits until the workers have handled all the submitted nodes
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if all the worker threads died
+	 */
+	public void awaitIdle() throws InterruptedException {
+		synchronized (idleLock) {
+			while (pendingNodes > 0) {
+				if (runningWorkers.get() == 0)
+					throw new IllegalStateException("All policy worker threads have stopped");
+				idleLock.wait(1000);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of nodes for which policy generation failed so far
+	 */
+	public int getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Lets the workers finish the queued nodes and waits for them to stop
+	 * @return the number of nodes for which policy generation failed
+	 * @throws InterruptedException
+	 */
+	public int close() throws InterruptedException {
+		for (int i = 0; i < workers.size(); i++) {
+			while (!queue.offer(END_OF_WORK, 1, TimeUnit.SECONDS)) {
+				if (runningWorkers.get() == 0)
+					break;
+			}
+		}
+		for (Thread worker : workers)
+			worker.join();
+		return failures.get();
+	}
+}
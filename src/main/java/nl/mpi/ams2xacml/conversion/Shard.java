@@ -0,0 +1,95 @@
+package nl.mpi.ams2xacml.conversion;
+
+import java.io.File;
+
+import nl.mpi.ams2xacml.dao.NodeIds;
+
+/**
+ * One of the N slices of a conversion that is split over several processes
+ * or hosts. Every process walks the trees of the same start nodes, but only
+ * looks up and converts the nodes of its own shard. A node belongs to a
+ * shard by a hash of its node ID, so the shards are disjoint, of about the
+ * same size, and the same in every run.
+ */
+public class Shard {
+	private final int index;
+	private final int count;
+
+	/**
+	 * @param index the number of the shard, from 1 to <i>count</i>
+	 * @param count the number of shards
+	 */
+	public Shard(int index, int count) {
+		if (count < 1 || index < 1 || index > count)
+			throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+		this.index = index;
+		this.count = count;
+	}
+
+	/**
+	 * Parses a shard given as '&lt;index&gt;/&lt;count&gt;', e.g. '2/8'
+	 * @param spec the shard
+	 * @return the shard
+	 * @throws IllegalArgumentException if the spec is not a valid shard
+	 */
+	public static Shard fromSpec(String spec) {
+		int slashIdx = spec.indexOf('/');
+		if (slashIdx == -1)
+			throw new IllegalArgumentException("Invalid shard " + spec + ", give it as <index>/<count>, e.g. 2/8");
+		try {
+			return new Shard(Integer.parseInt(spec.substring(0, slashIdx).trim()),
+					Integer.parseInt(spec.substring(slashIdx + 1).trim()));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid shard " + spec + ", give it as <index>/<count>, e.g. 2/8");
+		}
+	}
+
+	/**
+	 * @param nodeId a node ID
+	 * @return true if the node is converted by this shard
+	 */
+	public boolean contains(String nodeId) {
+		int number = NodeIds.toNumber(nodeId);
+		long hash = number != -1 ? number : nodeId.hashCode();
+		// spread consecutive node numbers evenly over the shards
+		hash *= 0x9E3779B97F4A7C15L;
+		hash ^= hash >>> 32;
+		return (int) ((hash & Long.MAX_VALUE) % count) == index - 1;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the name the files next to the output of this shard, such as
+	 * the manifest, the checkpoint and the metrics, are named after, so
+	 * that the shards can write to the same policies directory
+	 * @param output the policies directory or archive
+	 * @return the output name with the shard appended
+	 */
+	public String getStateOutput(String output) {
+		return getStateOutput(output, index, count);
+	}
+
+	/**
+	 * @param output the policies directory or archive
+	 * @param index the number of the shard
+	 * @param count the number of shards
+	 * @return the output name with the shard appended
+	 */
+	public static String getStateOutput(String output, int index, int count) {
+		if (output.endsWith("/") || output.endsWith(File.separator))
+			output = output.substring(0, output.length() - 1);
+		return output + ".shard-" + index + "-of-" + count;
+	}
+
+	@Override
+	public String toString() {
+		return index + "/" + count;
+	}
+}
@@ -0,0 +1,69 @@
+package nl.mpi.ams2xacml.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nl.mpi.corpusstructure.AccessInfo;
+
+/**
+ * The parts of a {@link CorpusStructureDAO} that do not depend on where the
+ * corpusstructure information is kept: traversal, rights parsing and the
+ * prefetch size
+ */
+public abstract class AbstractCorpusStructureDAO implements CorpusStructureDAO {
+	private int prefetchSize = 500;
+	private final ParsedAclCache parsedAcls = new ParsedAclCache();
+
+	public List<String> getAllLinkedNodes(List<String> parentNodeIds) {
+		List<String> nodes = new ArrayList<String>();
+		for(String nodeId : parentNodeIds) {
+			String [] descendants = getDescendants(nodeId);
+			if (descendants != null)
+				nodes.addAll(Arrays.asList(descendants));
+		}
+		return nodes;
+	}
+
+	public LinkedNodeIterator iterateLinkedNodes(List<String> startNodeIds) {
+		return new LinkedNodeIterator(this, startNodeIds);
+	}
+
+	public List<String> getReadRightsFor(NodeInfo info) {
+		if (!info.isKnown()) {
+			System.err.println("Unknown node "+info.getNodeId());
+			return parseRights(AccessInfo.NOBODY);
+		}
+		return parseRights(info.getReadRights());
+	}
+
+	public List<String> getWriteRightsFor(NodeInfo info) {
+		if (!info.isKnown()) {
+			System.err.println("Unknown node "+info.getNodeId());
+			return parseRights(AccessInfo.NOBODY);
+		}
+		return parseRights(info.getWriteRights());
+	}
+
+	/**
+	 * Turns an ACL string as returned by AccessInfo.getReadRights() or
+	 * AccessInfo.getWriteRights() into a list of rights. Each distinct ACL
+	 * string is only parsed once.
+	 * @param acl the ACL string
+	 * @return an immutable list of rights: Either one AccessInfo constant
+	 * or an encoded string (first) followed by 1 or more user names.
+	 */
+	protected ParsedAcl parseRights(String acl) {
+		return parsedAcls.get(acl);
+	}
+
+	public int getPrefetchSize() {
+		return prefetchSize;
+	}
+
+	public void setPrefetchSize(int prefetchSize) {
+		if (prefetchSize < 1)
+			throw new IllegalArgumentException("prefetch size must be at least 1");
+		this.prefetchSize = prefetchSize;
+	}
+}
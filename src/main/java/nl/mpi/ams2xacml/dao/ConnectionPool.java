@@ -0,0 +1,336 @@
+package nl.mpi.ams2xacml.dao;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A small pool of read-only JDBC connections to the corpusstructure
+ * database. Idle connections are closed after the idle timeout, and a
+ * connection that was idle for longer than the validation interval is
+ * checked before it is handed out again.
+ * <p>In snapshot mode all connections read the same snapshot of the
+ * database: one extra connection opens a REPEATABLE READ transaction and
+ * exports its snapshot (PostgreSQL's pg_export_snapshot()), and every
+ * pooled connection runs in a REPEATABLE READ transaction that imports
+ * it. The snapshot lasts until the pool is closed.</p>
+ */
+public class ConnectionPool {
+	/** The default maximum number of connections */
+	public static final int DEFAULT_MAX_SIZE = 4;
+	/** The default idle timeout, in milliseconds */
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000L;
+	/** The default validation interval, in milliseconds */
+	public static final long DEFAULT_VALIDATION_INTERVAL = 30 * 1000L;
+
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+	private final String url;
+	private final String user;
+	private final String password;
+	private int maxSize = DEFAULT_MAX_SIZE;
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+	private boolean snapshot = false;
+
+	private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+	private int size = 0;
+	private boolean closed = false;
+	private Connection snapshotHolder;
+	private String snapshotId;
+	/** held while the snapshot is exported, which is done outside the pool's lock */
+	private final Object exportLock = new Object();
+
+	private static class PooledConnection {
+		final Connection connection;
+		long lastUsed;
+
+		PooledConnection(Connection connection) {
+			this.connection = connection;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @param url the JDBC URL of the database
+	 * @param user the database user
+	 * @param password the password of the user
+	 */
+	public ConnectionPool(String url, String user, String password) {
+		this.url = url;
+		this.user = user;
+		this.password = password;
+	}
+
+	/**
+	 * @param maxSize the maximum number of connections
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("pool size must be at least 1");
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param idleTimeout the time in milliseconds after which an unused
+	 * connection is closed
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @param validationInterval the time in milliseconds a connection may be
+	 * unused before it is validated when it is handed out, 0 validates it
+	 * every time
+	 */
+	public synchronized void setValidationInterval(long validationInterval) {
+		this.validationInterval = validationInterval;
+	}
+
+	/**
+	 * Configures the pool from a comma separated list of settings, e.g.
+	 * 'size=8,idle=600,validate=60'. Known settings: size (the maximum
+	 * number of connections), idle (the idle timeout in seconds) and
+	 * validate (the validation interval in seconds).
+	 * @param settings the settings
+	 * @throws IllegalArgumentException for an unknown or invalid setting
+	 */
+	public void configure(String settings) {
+		for (String setting : settings.split(",")) {
+			if (setting.trim().length() == 0)
+				continue;
+			int eqIdx = setting.indexOf('=');
+			if (eqIdx == -1)
+				throw new IllegalArgumentException("Invalid connection pool setting: " + setting);
+			String key = setting.substring(0, eqIdx).trim();
+			String value = setting.substring(eqIdx + 1).trim();
+			if (key.equals("size"))
+				setMaxSize(Integer.parseInt(value));
+			else if (key.equals("idle"))
+				setIdleTimeout(Long.parseLong(value) * 1000L);
+			else if (key.equals("validate"))
+				setValidationInterval(Long.parseLong(value) * 1000L);
+			else
+				throw new IllegalArgumentException("Unknown connection pool setting: " + key);
+		}
+	}
+
+	/**
+	 * Makes all connections read the same consistent snapshot of the
+	 * database. Must be set before the first connection is handed out.
+	 * @param snapshot true to read from one snapshot
+	 */
+	public synchronized void setSnapshot(boolean snapshot) {
+		if (size > 0 || snapshotHolder != null)
+			throw new IllegalStateException("The pool is already in use");
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * @return true if all connections read the same snapshot
+	 */
+	public synchronized boolean isSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Hands out a connection, waiting while all connections are in use.
+	 * The connection must be given back with {@link #release(Connection)},
+	 * or with {@link #discard(Connection)} after an error.
+	 * @return a read-only connection
+	 * @throws SQLException if no connection can be opened
+	 */
+	public Connection borrow() throws SQLException {
+		boolean useSnapshot;
+		synchronized (this) {
+			while (true) {
+				if (closed)
+					throw new SQLException("The connection pool is closed");
+				closeIdleConnections();
+				PooledConnection pooled = idle.pollFirst();
+				if (pooled != null) {
+					if (System.currentTimeMillis() - pooled.lastUsed < validationInterval || isValid(pooled.connection))
+						return pooled.connection;
+					System.err.println("WRN: discarding broken corpusstructure DB connection");
+					closeQuietly(pooled.connection);
+					size--;
+					continue;
+				}
+				if (size < maxSize) {
+					// count it before opening, so the pool never grows beyond its size
+					size++;
+					useSnapshot = snapshot;
+					break;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new SQLException("Interrupted while waiting for a database connection", e);
+				}
+			}
+		}
+		// opened outside the lock, so that the other threads can still
+		// borrow and give back connections in the mean time
+		try {
+			return openConnection(useSnapshot);
+		} catch (SQLException e) {
+			cancelReservation();
+			throw e;
+		} catch (RuntimeException e) {
+			cancelReservation();
+			throw e;
+		}
+	}
+
+	private synchronized void cancelReservation() {
+		size--;
+		notifyAll();
+	}
+
+	/**
+	 * Gives a connection back to the pool
+	 * @param connection a connection handed out by {@link #borrow()}
+	 */
+	public synchronized void release(Connection connection) {
+		if (closed) {
+			closeQuietly(connection);
+			size--;
+		} else {
+			// most recently used first, so the others can time out
+			idle.addFirst(new PooledConnection(connection));
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Closes a connection that may be broken instead of giving it back
+	 * @param connection a connection handed out by {@link #borrow()}
+	 */
+	public synchronized void discard(Connection connection) {
+		closeQuietly(connection);
+		size--;
+		notifyAll();
+	}
+
+	/**
+	 * Closes the idle connections and ends the snapshot. Connections that
+	 * are in use are closed when they are given back.
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (PooledConnection pooled : idle) {
+			closeQuietly(pooled.connection);
+			size--;
+		}
+		idle.clear();
+		if (snapshotHolder != null) {
+			closeQuietly(snapshotHolder);
+			snapshotHolder = null;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return the ID of the exported snapshot, or null if the pool does not
+	 * use a snapshot or no connection was opened yet
+	 */
+	public synchronized String getSnapshotId() {
+		return snapshotId;
+	}
+
+	private Connection openConnection(boolean useSnapshot) throws SQLException {
+		String sharedSnapshotId = useSnapshot ? getOrExportSnapshot() : null;
+		Connection connection = DriverManager.getConnection(url, user, password);
+		try {
+			connection.setReadOnly(true);
+			if (useSnapshot) {
+				connection.setAutoCommit(false);
+				connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+				// must be the first statement of the transaction
+				Statement stmt = connection.createStatement();
+				try {
+					stmt.execute("SET TRANSACTION SNAPSHOT '" + sharedSnapshotId + "'");
+				} finally {
+					stmt.close();
+				}
+			}
+		} catch (SQLException e) {
+			closeQuietly(connection);
+			throw e;
+		}
+		return connection;
+	}
+
+	/**
+	 * @return the ID of the snapshot, which is exported by the first
+	 * connection that needs it
+	 */
+	private String getOrExportSnapshot() throws SQLException {
+		synchronized (exportLock) {
+			synchronized (this) {
+				if (snapshotId != null)
+					return snapshotId;
+			}
+			return exportSnapshot();
+		}
+	}
+
+	private String exportSnapshot() throws SQLException {
+		Connection holder = DriverManager.getConnection(url, user, password);
+		String exportedId;
+		try {
+			holder.setReadOnly(true);
+			holder.setAutoCommit(false);
+			holder.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			Statement stmt = holder.createStatement();
+			try {
+				ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot()");
+				rs.next();
+				exportedId = rs.getString(1);
+				rs.close();
+			} finally {
+				stmt.close();
+			}
+			synchronized (this) {
+				if (closed)
+					throw new SQLException("The connection pool is closed");
+				snapshotHolder = holder;
+				snapshotId = exportedId;
+			}
+		} catch (SQLException e) {
+			closeQuietly(holder);
+			throw e;
+		}
+		System.out.println("INF: Reading corpusstructure snapshot " + exportedId);
+		return exportedId;
+	}
+
+	private void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		while (!idle.isEmpty() && now - idle.peekLast().lastUsed > idleTimeout) {
+			closeQuietly(idle.pollLast().connection);
+			size--;
+		}
+	}
+
+	private static boolean isValid(Connection connection) {
+		try {
+			return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private static void closeQuietly(Connection connection) {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			System.err.println("WRN: error closing corpusstructure DB connection: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package nl.mpi.ams2xacml.dao;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Saves the part of the corpusstructure that the conversion needs (the
+ * tree, the node types, onsite flags, handles and read and write ACLs) to
+ * a compact binary snapshot file, and loads it again as an
+ * {@link InMemoryCorpusStructureDAO}, so that policies can be generated
+ * again without the corpusstructure database.
+ * <p>The file starts with a table of the distinct ACL strings, followed by
+ * the nodes in the order they were added, parents first. Numbers are
+ * written as variable length integers, the node IDs as their number and
+ * each handle as the length of the prefix it shares with the previous one
+ * plus the rest.</p>
+ */
+public class CorpusSnapshot {
+	private static final int MAGIC = 0x43535832; // "CSX2"
+	private static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int FLAG_ONSITE = 1;
+	private static final int FLAG_HANDLE = 2;
+
+	private CorpusSnapshot() {
+	}
+
+	/**
+	 * Copies the trees below the start nodes into an in-memory corpus,
+	 * looking up the children of each node at once. A node that is linked
+	 * from more than one parent is only copied below the first.
+	 * @param csDAO the corpusstructure to copy
+	 * @param startNodeIds the node IDs of the roots of the copied trees
+	 * @return the in-memory copy
+	 */
+	public static InMemoryCorpusStructureDAO copy(CorpusStructureDAO csDAO, List<String> startNodeIds) {
+		InMemoryCorpusStructureDAO copy = new InMemoryCorpusStructureDAO();
+		NodeIdSet seen = new NodeIdSet();
+		Deque<Integer> pending = new ArrayDeque<Integer>();
+		for (String startNodeId : startNodeIds) {
+			if (!seen.add(startNodeId))
+				continue;
+			NodeInfo startInfo = csDAO.getNodeInfo(Collections.singletonList(startNodeId)).get(0);
+			if (!startInfo.isKnown()) {
+				System.err.println("WRN: Unknown start node " + startNodeId);
+				continue;
+			}
+			pending.push(add(copy, 0, startInfo));
+			while (!pending.isEmpty()) {
+				int parent = pending.pop();
+				String[] children = csDAO.getChildren(copy.getNodeId(parent));
+				if (children == null)
+					continue;
+				List<String> childIds = new ArrayList<String>(children.length);
+				for (String childId : children) {
+					if (seen.add(childId))
+						childIds.add(childId);
+				}
+				for (NodeInfo info : csDAO.getNodeInfo(childIds)) {
+					if (info.isKnown())
+						pending.push(add(copy, parent, info));
+				}
+			}
+		}
+		return copy;
+	}
+
+	private static int add(InMemoryCorpusStructureDAO copy, int parent, NodeInfo info) {
+		return copy.addNode(parent, info.getNodeId(), info.getHandle(), info.getNodeType(), info.isOnsite(),
+				info.getReadRights(), info.getWriteRights());
+	}
+
+	/**
+	 * Writes an in-memory corpus to a snapshot file, replacing the previous
+	 * version
+	 * @param corpus the corpus to write
+	 * @param snapshotFile the snapshot file
+	 * @throws IOException
+	 */
+	public static void write(InMemoryCorpusStructureDAO corpus, File snapshotFile) throws IOException {
+		File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeVarInt(out, corpus.getAclCount());
+			for (int acl = 0; acl < corpus.getAclCount(); acl++)
+				writeString(out, corpus.getAcl(acl));
+			writeVarInt(out, corpus.size());
+			String previousHandle = "";
+			for (int node = 1; node <= corpus.size(); node++) {
+				int parent = corpus.getParent(node);
+				// mostly a small distance back to the parent
+				writeVarInt(out, parent == 0 ? 0 : node - parent);
+				String handle = corpus.getHandle(node);
+				out.writeByte((corpus.isOnsite(node) ? FLAG_ONSITE : 0) | (handle != null ? FLAG_HANDLE : 0));
+				writeVarInt(out, corpus.getNodeTypeOf(node) + 1);
+				writeVarInt(out, corpus.getReadAcl(node));
+				writeVarInt(out, corpus.getWriteAcl(node));
+				writeNodeId(out, corpus.getNodeId(node));
+				if (handle != null) {
+					int shared = sharedPrefix(previousHandle, handle);
+					writeVarInt(out, shared);
+					writeString(out, handle.substring(shared));
+					previousHandle = handle;
+				}
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads a snapshot file
+	 * @param snapshotFile the snapshot file
+	 * @return the corpus of the snapshot
+	 * @throws IOException if the file cannot be read or is not a snapshot
+	 */
+	public static InMemoryCorpusStructureDAO read(File snapshotFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), 65536));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a corpusstructure snapshot: " + snapshotFile);
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported snapshot version " + version + ": " + snapshotFile);
+			InMemoryCorpusStructureDAO corpus = new InMemoryCorpusStructureDAO();
+			int aclCount = readVarInt(in);
+			for (int acl = 0; acl < aclCount; acl++)
+				corpus.aclId(readString(in));
+			int size = readVarInt(in);
+			String previousHandle = "";
+			for (int node = 1; node <= size; node++) {
+				int parentDistance = readVarInt(in);
+				int flags = in.readUnsignedByte();
+				int nodeType = readVarInt(in) - 1;
+				int readAcl = readVarInt(in);
+				int writeAcl = readVarInt(in);
+				String nodeId = readNodeId(in);
+				String handle = null;
+				if ((flags & FLAG_HANDLE) != 0) {
+					int shared = readVarInt(in);
+					handle = previousHandle.substring(0, shared) + readString(in);
+					previousHandle = handle;
+				}
+				corpus.addNodeWithAcls(parentDistance == 0 ? 0 : node - parentDistance, nodeId, handle, nodeType,
+						(flags & FLAG_ONSITE) != 0, readAcl, writeAcl);
+			}
+			return corpus;
+		} catch (EOFException e) {
+			throw new IOException("Truncated snapshot: " + snapshotFile, e);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Corrupt snapshot: " + snapshotFile + ": " + e.getMessage(), e);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int sharedPrefix(String a, String b) {
+		int max = Math.min(a.length(), b.length());
+		int shared = 0;
+		while (shared < max && a.charAt(shared) == b.charAt(shared))
+			shared++;
+		return shared;
+	}
+
+	/**
+	 * Writes a node ID of the form 'MPI&lt;number&gt;#' as its number plus
+	 * one, any other node ID as 0 followed by the string
+	 */
+	private static void writeNodeId(DataOutputStream out, String nodeId) throws IOException {
+		int number = NodeIds.toNumber(nodeId);
+		writeVarInt(out, number + 1);
+		if (number == -1)
+			writeString(out, nodeId);
+	}
+
+	private static String readNodeId(DataInputStream in) throws IOException {
+		int value = readVarInt(in);
+		return value == 0 ? readString(in) : NodeIds.toNodeId(value - 1);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[readVarInt(in)];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed number in snapshot");
+	}
+}
@@ -1,263 +1,138 @@
 package nl.mpi.ams2xacml.dao;
 
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
-import nl.mpi.corpusstructure.AccessInfo;
-import nl.mpi.corpusstructure.ArchiveObjectsDB;
-import nl.mpi.corpusstructure.CorpusStructureDB;
-import nl.mpi.corpusstructure.CorpusStructureDBImpl;
-import nl.mpi.corpusstructure.Node;
-import nl.mpi.corpusstructure.UnknownNodeException;
-
 /**
- * A class to do corpusstructure DB lookups
- *
- * @author André Moreira
+ * Lookups of the corpusstructure information needed to convert access
+ * rights to XACML policies. {@link CorpusStructureDBDAO} looks them up in
+ * the corpusstructure database, {@link InMemoryCorpusStructureDAO} keeps
+ * them in memory.
+ * <p>The rights lists returned by the rights lookups contain either one
+ * AccessInfo constant (EVERYBODY, NOBODY or ALL_AUTH) or the encoded ACL
+ * string (first) followed by 1 or more user names. They are immutable
+ * {@link ParsedAcl}s, shared by all nodes with the same ACL.</p>
  */
-public class CorpusStructureDAO {
-	// these values must be set from the init code
-	private String _corpusDbURL;
-	private String _corpusDbUser;
-	private String _corpusDbPassword;
-
-	private CorpusStructureDB csdb;
-	private ArchiveObjectsDB aodb;
-
-	public CorpusStructureDAO(String jdbc, String user, String pass) {
-		_corpusDbURL = jdbc;
-		_corpusDbUser = user;
-		_corpusDbPassword = pass;
-		initCorpusStructureDB();
-	}
-
-	/**
-	 * Given a node ID, return the corresponding {@link nl.mpi.corpusstructure.Node Node} 
-	 * object or null if the database connection is not available or if no such
-	 * nodeId exists.
-	 * @param nodeId
-	 * @return the {@link nl.mpi.corpusstructure.Node Node} object
-	 */
-	public Node getNode(String nodeId) {
-		if(nodeId == null || csdb == null)
-			return null;
-		return csdb.getNode(nodeId);
-	}
+public interface CorpusStructureDAO {
 
 	/**
 	 * Given a node ID, return the {@link nl.mpi.corpusstructure.Node Node} type or
-	 * -1 if the database connection is not available or if no such
-	 * nodeId exists.
+	 * -1 if no such nodeId exists.
 	 * @param nodeId
 	 * @return the {@link nl.mpi.corpusstructure.Node Node} type
 	 */
-	public int getNodeType(String nodeId) {
-		if(nodeId == null || csdb == null)
-			return -1;
-		Node node = getNode(nodeId);
-		if(node == null)
-			return -1;
-		return node.getNodeType();
-	}	
+	int getNodeType(String nodeId);
 
 	/**
-	 * Given a handle (PID), return the node ID of that resource, or
-	 * null if the database connection is not available or if no such
-	 * handle exists.
+	 * Given a handle (PID), return the node ID of that resource, or null if
+	 * no such handle exists.
 	 * @param handle
 	 * @return the {@link nl.mpi.corpusstructure.Node Node} ID
 	 */
-	public String getNodeIdFor(String handle) {
-		if (handle == null || getArchiveObjectsDB() == null)
-			return null;
-		return getArchiveObjectsDB().getObjectForPID(handle);
-	}
-	
+	String getNodeIdFor(String handle);
+
 	/**
-	 * Given a node ID, return the handle (PID) of that resource, or
-	 * null if the database connection is not available or if no such
-	 * nodeId exists.
+	 * Given a node ID, return the handle (PID) of that resource, or null if
+	 * no such nodeId exists.
 	 * @param nodeId
 	 * @return the handle (PID) of the node
 	 */
-	public String getHandleFor(String nodeId) {
-		if (getArchiveObjectsDB() == null)
-			return null;
-		return getArchiveObjectsDB().getObjectPID(nodeId);
-	}
-	
+	String getHandleFor(String nodeId);
+
+	/**
+	 * @param nodeId
+	 * @return true if the node is onsite, so its access rights are known
+	 */
+	boolean getOnsite(String nodeId);
+
+	/**
+	 * Given a node ID, return the node IDs of all its descendants, or null if
+	 * they cannot be looked up.
+	 * @param nodeId the parent node ID
+	 * @return the descendant node IDs of the specified node
+	 */
+	String[] getDescendants(String nodeId);
+
+	/**
+	 * Given a node ID, return the node IDs of its children, or null if
+	 * they cannot be looked up.
+	 * @param nodeId the parent node ID
+	 * @return the child node IDs of the specified node
+	 */
+	String[] getChildren(String nodeId);
+
 	/**
 	 * Given a {@link java.util.List List} of nodeIds, return all the node IDs of
-	 * their descendants, or null if the database connection is not available
-	 * or if no such node IDs exists.
+	 * their descendants.
 	 * @param parentNodeIds {@link java.util.List List} of parent node IDs
 	 * @return a {@link java.util.List List} with all the descendant nodeIds of the
 	 * specified nodes.
 	 */
-	public List<String> getAllLinkedNodes(List<String> parentNodeIds) {
-		List<String> nodes = new ArrayList<String>();
-		for(String nodeId : parentNodeIds) {
-			String [] descendants = csdb.getDescendants(nodeId, -1, "*");
-			nodes.addAll(Arrays.asList(descendants));
-		}
-		return nodes;
-	}
+	List<String> getAllLinkedNodes(List<String> parentNodeIds);
 
 	/**
-	 * Out who has read access to a corpusstructure node, taking a
-	 * corpusstructure node ID as input. Will return AccessInfo.EVERYBODY
-	 * if no nodeId is given or no corpusstructure DB is active to query
-	 * for info.
-	 * <p>The rights can be AccessInfo constants EVERYBODY, NOBODY (CLEARED
-	 * is returned as NOBODY, too) or ALL_AUTH, or a List of users who
-	 * have access.</p><p>Note that this depends on the internal syntax of the
-	 * string returned by AccessInfo.getReadRights()</p>
-	 * @param nodeId a node ID to query
-	 * @return a {@link java.util.List List} of read rights: Either one 
-	 * AccessInfo constant or an encoded string (first) followed by 1 or more user names.
+	 * Given a {@link java.util.List List} of start node IDs, return an
+	 * {@link java.util.Iterator Iterator} over these nodes and all their
+	 * descendants. The descendants are looked up one start node at a time
+	 * while iterating, and every node ID is returned only once.
+	 * @param startNodeIds {@link java.util.List List} of start node IDs
+	 * @return an {@link java.util.Iterator Iterator} over the start nodes
+	 * and their descendant node IDs
 	 */
-	public List<String> getReadRightsFor(String nodeId) {
-		ArrayList<String> list = new ArrayList<String>(1);
-		if (nodeId == null || getCorpusStructureDB() == null) {
-			list.add(AccessInfo.EVERYBODY);
-			return list;
-		}
-		String acl;
-		try {
-			acl = getArchiveObjectsDB().getObjectAccessInfo(nodeId).getReadRights();
+	LinkedNodeIterator iterateLinkedNodes(List<String> startNodeIds);
 
-			if (AccessInfo.EVERYBODY.equals(acl)) {
-				list.add(AccessInfo.EVERYBODY);
-				return list;
-			}
-			if (AccessInfo.NOBODY.equals(acl) || AccessInfo.CLEARED.equals(acl)) {
-				list.add(AccessInfo.NOBODY);
-				return list;
-			}
-			if (AccessInfo.ALL_AUTH.equals(acl)) {
-				list.add(AccessInfo.ALL_AUTH);
-				return list;
-			}
-		} catch (UnknownNodeException e) {
-			System.err.println("Unknown node "+nodeId);
-			list.add(AccessInfo.NOBODY);
-			return list;
-		}
-		// Lists typically have corpman plus a few, up to 50 users, rarely 100s
-		list.add(acl); // special item
-		String[] users = acl.split(" ");
-		list.ensureCapacity(users.length + 1);
-		for (int i=0; i<users.length; i++) {
-			if (users[i].length() > 0)
-				list.add(users[i]);
-		}
-		return list;
-	}	
-	
 	/**
-	 * Out who has write access to a corpusstructure node, taking a
-	 * corpusstructure node ID as input. Will return AccessInfo.EVERYBODY
-	 * if no nodeId is given or no corpusstructure DB is active to query
-	 * for info. Do not use this method, but hasAccessTo() to check for
-	 * a known user ID whether that user has access to a specific node.
-	 * <p>The rights can be AccessInfo constants EVERYBODY, NOBODY (CLEARED
-	 * is returned as NOBODY, too) or ALL_AUTH, or a List of users who
-	 * have access.</p><p>Note that this depends on the internal syntax of the
-	 * string returned by AccessInfo.getWriteRights()</p>
-	 * @param nodeId a node ID to query
-	 * @return a list of write rights: Either one AccessInfo constant
-	 * or an encoded string (first) followed by 1 or more user names.
+	 * Given a {@link java.util.List List} of node IDs, return the onsite flag,
+	 * node type, handle and read/write ACL strings of each of them.
+	 * @param nodeIds {@link java.util.List List} of node IDs
+	 * @return a {@link java.util.List List} of {@link NodeInfo} in the same
+	 * order as <i>nodeIds</i>. Nodes that do not exist are returned as
+	 * {@link NodeInfo#unknown(String) unknown}.
 	 */
-	public List<String> getWriteRightsFor(String nodeId) {
-		ArrayList<String> list = new ArrayList<String>(1);
-		if (nodeId == null || getCorpusStructureDB() == null) {
-			list.add(AccessInfo.EVERYBODY);
-			return list;
-		}
-		String acl;
-		try {
-			acl = getArchiveObjectsDB().getObjectAccessInfo(nodeId).getWriteRights();
+	List<NodeInfo> getNodeInfo(List<String> nodeIds);
 
-			if (AccessInfo.EVERYBODY.equals(acl)) {
-				list.add(AccessInfo.EVERYBODY);
-				return list;
-			}
-			if (AccessInfo.NOBODY.equals(acl) || AccessInfo.CLEARED.equals(acl)) {
-				list.add(AccessInfo.NOBODY);
-				return list;
-			}
-			if (AccessInfo.ALL_AUTH.equals(acl)) {
-				list.add(AccessInfo.ALL_AUTH);
-				return list;
-			}
-		} catch (UnknownNodeException e) {
-			System.err.println("Unknown node "+nodeId);
-			list.add(AccessInfo.NOBODY);
-			return list;
-		}
-		// Lists typically have corpman plus a few, up to 50 users, rarely 100s
-		list.add(acl); // special item
-		String[] users = acl.split(" ");
-		list.ensureCapacity(users.length + 1);
-		for (int i=0; i<users.length; i++) {
-			if (users[i].length() > 0)
-				list.add(users[i]);
-		}
-		return list;
-	}
-        
-        public boolean getOnsite(String nodeId) {
-            return getArchiveObjectsDB().isOnSite(nodeId);
-        }
+	/**
+	 * @return the number of node IDs to pass to {@link #getNodeInfo(List)} at once
+	 */
+	int getPrefetchSize();
 
 	/**
-	 * Initialize the underlying corpusstructure database
+	 * Sets the number of node IDs to pass to {@link #getNodeInfo(List)} at once
+	 * @param prefetchSize number of node IDs
 	 */
-	private void initCorpusStructureDB() {
-		if ((csdb != null) && (aodb != null))
-			return;
-		if (_corpusDbURL == null || "none".equals(_corpusDbURL)) {
-			csdb = null;
-			aodb = null;
-			return;
-		}
-		CorpusStructureDBImpl csdbimpl = new CorpusStructureDBImpl(_corpusDbURL, false, _corpusDbUser, _corpusDbPassword);
-		csdb = csdbimpl;
-		aodb = csdbimpl;
-	}
+	void setPrefetchSize(int prefetchSize);
 
 	/**
-	 * @return the low-level CorpusStructureDB object, do not close!
-	 *         Returns null if no corpusstructure DB is active.
+	 * Out who has read access to a corpusstructure node.
+	 * @param nodeId a node ID to query
+	 * @return a {@link java.util.List List} of read rights
+	 */
+	List<String> getReadRightsFor(String nodeId);
+
+	/**
+	 * Out who has read access to a node, using the read ACL of a prefetched
+	 * {@link NodeInfo}.
+	 * @param info the prefetched node information
+	 * @return a {@link java.util.List List} of read rights
+	 */
+	List<String> getReadRightsFor(NodeInfo info);
+
+	/**
+	 * Out who has write access to a corpusstructure node.
+	 * @param nodeId a node ID to query
+	 * @return a {@link java.util.List List} of write rights
 	 */
-	public CorpusStructureDB getCorpusStructureDB() {
-		if (csdb == null)
-			initCorpusStructureDB();
-		return csdb;
-	}
+	List<String> getWriteRightsFor(String nodeId);
 
 	/**
-	 * @return the low-level ArchiveObjectsDB object, do not close.
-	 *         Returns null if no corpusstructure DB is active.
+	 * Out who has write access to a node, using the write ACL of a
+	 * prefetched {@link NodeInfo}.
+	 * @param info the prefetched node information
+	 * @return a {@link java.util.List List} of write rights
 	 */
-	public ArchiveObjectsDB getArchiveObjectsDB() {
-		if (aodb == null) initCorpusStructureDB();
-		return aodb;
-	}
+	List<String> getWriteRightsFor(NodeInfo info);
 
 	/**
-	 * Closes the low-level CorpussStructureDB and ArchiveObjectsDB
-	 * objects used by CorpusStructureDAO, if any.
+	 * Releases the resources used by the DAO, if any.
 	 */
-	public void closeCorpusStructureDB() {
-		if (csdb != null) {
-			csdb.close();
-			csdb = null;
-		}
-		if (aodb != null) {
-			aodb.close();
-			aodb = null;
-		}
-	}
+	void closeCorpusStructureDB();
 }
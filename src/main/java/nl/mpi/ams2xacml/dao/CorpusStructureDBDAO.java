@@ -0,0 +1,491 @@
+package nl.mpi.ams2xacml.dao;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.mpi.corpusstructure.AccessInfo;
+import nl.mpi.corpusstructure.ArchiveObjectsDB;
+import nl.mpi.corpusstructure.CorpusStructureDB;
+import nl.mpi.corpusstructure.CorpusStructureDBImpl;
+import nl.mpi.corpusstructure.Node;
+import nl.mpi.corpusstructure.UnknownNodeException;
+
+/**
+ * A class to do corpusstructure DB lookups
+ *
+ * @author André Moreira
+ */
+public class CorpusStructureDBDAO extends AbstractCorpusStructureDAO {
+	/*
+	 * Fetches everything generateXACMLDocument needs for a chunk of nodes in
+	 * a single round trip. The node IDs are passed as their integer part
+	 * (MPI12345# -> 12345), as stored in the corpusstructure tables. The
+	 * column names are not part of the corpusstructure API, so the first
+	 * chunk is also looked up node by node and compared, see
+	 * verifyBatchLookup.
+	 */
+	private static final String NODE_INFO_QUERY =
+			"SELECT a.nodeid, c.nodetype, a.onsite, a.pid, a.readrights, a.writerights"
+			+ " FROM archiveobjects a LEFT JOIN corpusnodes c ON c.nodeid = a.nodeid"
+			+ " WHERE a.nodeid = ANY (?)";
+	/*
+	 * The single node reads the first chunk is compared with in snapshot
+	 * mode, where the corpusstructure API would read the live tables
+	 * instead of the snapshot
+	 */
+	private static final String ARCHIVE_OBJECT_QUERY =
+			"SELECT onsite, pid, readrights, writerights FROM archiveobjects WHERE nodeid = ?";
+	private static final String NODE_TYPE_QUERY =
+			"SELECT nodetype FROM corpusnodes WHERE nodeid = ?";
+
+	// these values must be set from the init code
+	private String _corpusDbURL;
+	private String _corpusDbUser;
+	private String _corpusDbPassword;
+
+	private CorpusStructureDB csdb;
+	private ArchiveObjectsDB aodb;
+	private ConnectionPool connectionPool;
+	private volatile boolean batchLookupAvailable = true;
+	private volatile boolean batchLookupVerified = false;
+
+	public CorpusStructureDBDAO(String jdbc, String user, String pass) {
+		_corpusDbURL = jdbc;
+		_corpusDbUser = user;
+		_corpusDbPassword = pass;
+		initCorpusStructureDB();
+	}
+
+	/**
+	 * Given a node ID, return the corresponding {@link nl.mpi.corpusstructure.Node Node} 
+	 * object or null if the database connection is not available or if no such
+	 * nodeId exists.
+	 * @param nodeId
+	 * @return the {@link nl.mpi.corpusstructure.Node Node} object
+	 */
+	public Node getNode(String nodeId) {
+		if(nodeId == null || csdb == null)
+			return null;
+		return csdb.getNode(nodeId);
+	}
+
+	/**
+	 * Given a node ID, return the {@link nl.mpi.corpusstructure.Node Node} type or
+	 * -1 if the database connection is not available or if no such
+	 * nodeId exists.
+	 * @param nodeId
+	 * @return the {@link nl.mpi.corpusstructure.Node Node} type
+	 */
+	public int getNodeType(String nodeId) {
+		if(nodeId == null || csdb == null)
+			return -1;
+		Node node = getNode(nodeId);
+		if(node == null)
+			return -1;
+		return node.getNodeType();
+	}	
+
+	/**
+	 * Given a handle (PID), return the node ID of that resource, or
+	 * null if the database connection is not available or if no such
+	 * handle exists.
+	 * @param handle
+	 * @return the {@link nl.mpi.corpusstructure.Node Node} ID
+	 */
+	public String getNodeIdFor(String handle) {
+		if (handle == null || getArchiveObjectsDB() == null)
+			return null;
+		return getArchiveObjectsDB().getObjectForPID(handle);
+	}
+	
+	/**
+	 * Given a node ID, return the handle (PID) of that resource, or
+	 * null if the database connection is not available or if no such
+	 * nodeId exists.
+	 * @param nodeId
+	 * @return the handle (PID) of the node
+	 */
+	public String getHandleFor(String nodeId) {
+		if (getArchiveObjectsDB() == null)
+			return null;
+		return getArchiveObjectsDB().getObjectPID(nodeId);
+	}
+	
+	/**
+	 * Given a node ID, return the node IDs of all its descendants, or null if
+	 * the database connection is not available.
+	 * @param nodeId the parent node ID
+	 * @return the descendant node IDs of the specified node
+	 */
+	public String[] getDescendants(String nodeId) {
+		if (nodeId == null || getCorpusStructureDB() == null)
+			return null;
+		return getCorpusStructureDB().getDescendants(nodeId, -1, "*");
+	}
+
+	/**
+	 * Given a node ID, return the node IDs of its children, or null if the
+	 * database connection is not available.
+	 * @param nodeId the parent node ID
+	 * @return the child node IDs of the specified node
+	 */
+	public String[] getChildren(String nodeId) {
+		if (nodeId == null || getCorpusStructureDB() == null)
+			return null;
+		Node[] children = getCorpusStructureDB().getChildrenNodes(nodeId);
+		if (children == null)
+			return null;
+		String[] childIds = new String[children.length];
+		for (int i = 0; i < children.length; i++)
+			childIds[i] = children[i].getNodeId();
+		return childIds;
+	}
+
+	/**
+	 * Out who has read access to a corpusstructure node, taking a
+	 * corpusstructure node ID as input. Will return AccessInfo.EVERYBODY
+	 * if no nodeId is given or no corpusstructure DB is active to query
+	 * for info.
+	 * <p>The rights can be AccessInfo constants EVERYBODY, NOBODY (CLEARED
+	 * is returned as NOBODY, too) or ALL_AUTH, or a List of users who
+	 * have access.</p><p>Note that this depends on the internal syntax of the
+	 * string returned by AccessInfo.getReadRights()</p>
+	 * @param nodeId a node ID to query
+	 * @return a {@link java.util.List List} of read rights: Either one 
+	 * AccessInfo constant or an encoded string (first) followed by 1 or more user names.
+	 */
+	public List<String> getReadRightsFor(String nodeId) {
+		if (nodeId == null || getCorpusStructureDB() == null)
+			return parseRights(AccessInfo.EVERYBODY);
+		try {
+			return parseRights(getArchiveObjectsDB().getObjectAccessInfo(nodeId).getReadRights());
+		} catch (UnknownNodeException e) {
+			System.err.println("Unknown node "+nodeId);
+			return parseRights(AccessInfo.NOBODY);
+		}
+	}
+
+	/**
+	 * Out who has write access to a corpusstructure node, taking a
+	 * corpusstructure node ID as input. Will return AccessInfo.EVERYBODY
+	 * if no nodeId is given or no corpusstructure DB is active to query
+	 * for info. Do not use this method, but hasAccessTo() to check for
+	 * a known user ID whether that user has access to a specific node.
+	 * <p>The rights can be AccessInfo constants EVERYBODY, NOBODY (CLEARED
+	 * is returned as NOBODY, too) or ALL_AUTH, or a List of users who
+	 * have access.</p><p>Note that this depends on the internal syntax of the
+	 * string returned by AccessInfo.getWriteRights()</p>
+	 * @param nodeId a node ID to query
+	 * @return a list of write rights: Either one AccessInfo constant
+	 * or an encoded string (first) followed by 1 or more user names.
+	 */
+	public List<String> getWriteRightsFor(String nodeId) {
+		if (nodeId == null || getCorpusStructureDB() == null)
+			return parseRights(AccessInfo.EVERYBODY);
+		try {
+			return parseRights(getArchiveObjectsDB().getObjectAccessInfo(nodeId).getWriteRights());
+		} catch (UnknownNodeException e) {
+			System.err.println("Unknown node "+nodeId);
+			return parseRights(AccessInfo.NOBODY);
+		}
+	}
+
+        public boolean getOnsite(String nodeId) {
+            return getArchiveObjectsDB().isOnSite(nodeId);
+        }
+
+	/**
+	 * Given a {@link java.util.List List} of node IDs, return the onsite flag,
+	 * node type, handle and read/write ACL strings of each of them. The
+	 * nodes are looked up in chunks of {@link #getPrefetchSize() prefetchSize}
+	 * node IDs, one database query per chunk. If the batch query cannot be
+	 * used, or does not return the same as the single node lookups for the
+	 * first chunk, the nodes are looked up one by one instead, except in
+	 * snapshot mode, where the lookup fails rather than read the live tables
+	 * outside the snapshot. The batch queries
+	 * use the {@link #getConnectionPool() connection pool}, so several
+	 * threads can look up nodes at the same time.
+	 * @param nodeIds {@link java.util.List List} of node IDs
+	 * @return a {@link java.util.List List} of {@link NodeInfo} in the same
+	 * order as <i>nodeIds</i>. Nodes that do not exist are returned as
+	 * {@link NodeInfo#unknown(String) unknown}.
+	 * @throws IllegalStateException if the batch query cannot be used in
+	 * snapshot mode
+	 */
+	public List<NodeInfo> getNodeInfo(List<String> nodeIds) {
+		List<NodeInfo> result = new ArrayList<NodeInfo>(nodeIds.size());
+		for (int from = 0; from < nodeIds.size(); from += getPrefetchSize()) {
+			List<String> chunk = nodeIds.subList(from, Math.min(from + getPrefetchSize(), nodeIds.size()));
+			Map<String, NodeInfo> infos = null;
+			if (batchLookupAvailable) {
+				try {
+					infos = queryNodeInfo(chunk);
+					if (!batchLookupVerified && !verifyBatchLookup(chunk, infos))
+						infos = null;
+				} catch (SQLException e) {
+					if (isSnapshot())
+						throw new IllegalStateException("Batch node lookup in the database snapshot failed: " + e.getMessage(), e);
+					System.err.println("WRN: batch node lookup failed, falling back to one lookup per node: " + e.getMessage());
+					batchLookupAvailable = false;
+				}
+			}
+			for (String nodeId : chunk) {
+				NodeInfo info = infos != null ? infos.get(nodeId) : lookupNodeInfo(nodeId);
+				result.add(info != null ? info : NodeInfo.unknown(nodeId));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Compares the result of the batch query for a chunk with the single
+	 * node lookups of the corpusstructure API, which read the same tables
+	 * through AccessInfo, isOnSite and getObjectPID. If any node differs,
+	 * the batch query is not used again. In snapshot mode it is compared
+	 * with single node reads through a snapshot connection instead, and a
+	 * difference fails the lookup.
+	 * @return true if the batch query returned the same for every node
+	 * @throws IllegalStateException if a node differs in snapshot mode
+	 */
+	private synchronized boolean verifyBatchLookup(List<String> nodeIds, Map<String, NodeInfo> infos) throws SQLException {
+		if (batchLookupVerified)
+			return batchLookupAvailable;
+		boolean snapshot = isSnapshot();
+		Map<String, NodeInfo> singles = snapshot ? querySingleNodeInfo(nodeIds) : null;
+		for (String nodeId : nodeIds) {
+			NodeInfo single = snapshot ? singles.get(nodeId) : lookupNodeInfo(nodeId);
+			String difference = compareNodeInfo(infos.get(nodeId), single);
+			if (difference != null && snapshot)
+				throw new IllegalStateException("Batch node lookup returned a different " + difference + " for " + nodeId
+						+ " than the single node reads of the database snapshot");
+			if (difference != null) {
+				System.err.println("WRN: batch node lookup returned a different " + difference + " for " + nodeId
+						+ " than the corpusstructure API, falling back to one lookup per node");
+				batchLookupAvailable = false;
+				break;
+			}
+		}
+		batchLookupVerified = true;
+		return batchLookupAvailable;
+	}
+
+	/**
+	 * @return the name of the first field that differs, or null if both are
+	 * the same
+	 */
+	private static String compareNodeInfo(NodeInfo batch, NodeInfo single) {
+		if (batch == null || single == null)
+			return batch == single ? null : "existence";
+		if (batch.getNodeType() != single.getNodeType())
+			return "node type";
+		if (batch.isOnsite() != single.isOnsite())
+			return "onsite flag";
+		if (!equal(batch.getHandle(), single.getHandle()))
+			return "handle";
+		if (!equal(batch.getReadRights(), single.getReadRights()))
+			return "read ACL";
+		if (!equal(batch.getWriteRights(), single.getWriteRights()))
+			return "write ACL";
+		return null;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private Map<String, NodeInfo> queryNodeInfo(List<String> nodeIds) throws SQLException {
+		Map<String, NodeInfo> infos = new HashMap<String, NodeInfo>(nodeIds.size() * 2);
+		Integer[] ids = new Integer[nodeIds.size()];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = toDbNodeId(nodeIds.get(i));
+		ConnectionPool pool = getConnectionPool();
+		if (pool == null)
+			throw new SQLException("No corpusstructure DB connection available");
+		Connection conn = pool.borrow();
+		try {
+			PreparedStatement stmt = conn.prepareStatement(NODE_INFO_QUERY);
+			try {
+				Array idArray = conn.createArrayOf("integer", ids);
+				stmt.setArray(1, idArray);
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					String nodeId = "MPI" + rs.getInt(1) + "#";
+					int nodeType = rs.getInt(2);
+					if (rs.wasNull())
+						nodeType = -1;
+					infos.put(nodeId, new NodeInfo(nodeId, nodeType, rs.getBoolean(3), rs.getString(4),
+							rs.getString(5), rs.getString(6)));
+				}
+				rs.close();
+				idArray.free();
+			} finally {
+				stmt.close();
+			}
+		} catch (SQLException e) {
+			// a failed statement aborts a snapshot transaction
+			pool.discard(conn);
+			throw e;
+		}
+		pool.release(conn);
+		return infos;
+	}
+
+	/**
+	 * Reads the {@link NodeInfo} of the nodes one by one, through a pooled
+	 * connection
+	 * @return the nodes that exist, by node ID
+	 */
+	private Map<String, NodeInfo> querySingleNodeInfo(List<String> nodeIds) throws SQLException {
+		Map<String, NodeInfo> infos = new HashMap<String, NodeInfo>(nodeIds.size() * 2);
+		ConnectionPool pool = getConnectionPool();
+		if (pool == null)
+			throw new SQLException("No corpusstructure DB connection available");
+		Connection conn = pool.borrow();
+		try {
+			PreparedStatement objectStmt = conn.prepareStatement(ARCHIVE_OBJECT_QUERY);
+			PreparedStatement typeStmt = conn.prepareStatement(NODE_TYPE_QUERY);
+			try {
+				for (String nodeId : nodeIds) {
+					int id = toDbNodeId(nodeId);
+					objectStmt.setInt(1, id);
+					ResultSet rs = objectStmt.executeQuery();
+					if (rs.next()) {
+						boolean onsite = rs.getBoolean(1);
+						String pid = rs.getString(2);
+						String readRights = rs.getString(3);
+						String writeRights = rs.getString(4);
+						typeStmt.setInt(1, id);
+						ResultSet typeRs = typeStmt.executeQuery();
+						int nodeType = -1;
+						if (typeRs.next()) {
+							nodeType = typeRs.getInt(1);
+							if (typeRs.wasNull())
+								nodeType = -1;
+						}
+						typeRs.close();
+						infos.put(nodeId, new NodeInfo(nodeId, nodeType, onsite, pid, readRights, writeRights));
+					}
+					rs.close();
+				}
+			} finally {
+				typeStmt.close();
+				objectStmt.close();
+			}
+		} catch (SQLException e) {
+			// a failed statement aborts a snapshot transaction
+			pool.discard(conn);
+			throw e;
+		}
+		pool.release(conn);
+		return infos;
+	}
+
+	private boolean isSnapshot() {
+		ConnectionPool pool = getConnectionPool();
+		return pool != null && pool.isSnapshot();
+	}
+
+	/**
+	 * Looks up the {@link NodeInfo} of one node with the single node lookups
+	 * of the corpusstructure API
+	 */
+	private synchronized NodeInfo lookupNodeInfo(String nodeId) {
+		if (getArchiveObjectsDB() == null)
+			return null;
+		AccessInfo accessInfo;
+		try {
+			accessInfo = getArchiveObjectsDB().getObjectAccessInfo(nodeId);
+		} catch (UnknownNodeException e) {
+			return null;
+		}
+		return new NodeInfo(nodeId, getNodeType(nodeId), getOnsite(nodeId), getHandleFor(nodeId),
+				accessInfo.getReadRights(), accessInfo.getWriteRights());
+	}
+
+	/**
+	 * Converts a node ID in the form 'MPI12345#' to the integer used in the
+	 * corpusstructure tables
+	 */
+	private static Integer toDbNodeId(String nodeId) throws SQLException {
+		try {
+			return Integer.valueOf(nodeId.substring(3, nodeId.length() - 1));
+		} catch (RuntimeException e) {
+			throw new SQLException("Invalid node ID: " + nodeId);
+		}
+	}
+
+	/**
+	 * Returns the pool of read-only connections used for the batch lookups.
+	 * It can be configured until the first lookup.
+	 * @return the connection pool, or null if no corpusstructure DB is active
+	 */
+	public synchronized ConnectionPool getConnectionPool() {
+		if (connectionPool == null && _corpusDbURL != null && !"none".equals(_corpusDbURL))
+			connectionPool = new ConnectionPool(_corpusDbURL, _corpusDbUser, _corpusDbPassword);
+		return connectionPool;
+	}
+
+	/**
+	 * Initialize the underlying corpusstructure database
+	 */
+	private void initCorpusStructureDB() {
+		if ((csdb != null) && (aodb != null))
+			return;
+		if (_corpusDbURL == null || "none".equals(_corpusDbURL)) {
+			csdb = null;
+			aodb = null;
+			return;
+		}
+		CorpusStructureDBImpl csdbimpl = new CorpusStructureDBImpl(_corpusDbURL, false, _corpusDbUser, _corpusDbPassword);
+		csdb = csdbimpl;
+		aodb = csdbimpl;
+	}
+
+	/**
+	 * @return the low-level CorpusStructureDB object, do not close!
+	 *         Returns null if no corpusstructure DB is active.
+	 */
+	public CorpusStructureDB getCorpusStructureDB() {
+		if (csdb == null)
+			initCorpusStructureDB();
+		return csdb;
+	}
+
+	/**
+	 * @return the low-level ArchiveObjectsDB object, do not close.
+	 *         Returns null if no corpusstructure DB is active.
+	 */
+	public ArchiveObjectsDB getArchiveObjectsDB() {
+		if (aodb == null) initCorpusStructureDB();
+		return aodb;
+	}
+
+	/**
+	 * Closes the low-level CorpussStructureDB and ArchiveObjectsDB
+	 * objects and the batch lookup connections used by CorpusStructureDAO,
+	 * if any.
+	 */
+	public void closeCorpusStructureDB() {
+		if (csdb != null) {
+			csdb.close();
+			csdb = null;
+		}
+		if (aodb != null) {
+			aodb.close();
+			aodb = null;
+		}
+		synchronized (this) {
+			if (connectionPool != null) {
+				connectionPool.close();
+				connectionPool = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,349 @@
+package nl.mpi.ams2xacml.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.mpi.corpusstructure.AccessInfo;
+
+/**
+ * A {@link CorpusStructureDAO} over a corpus tree kept in memory, for
+ * testing and profiling the conversion without a corpusstructure database,
+ * and for converting a {@link CorpusSnapshot snapshot} of it.
+ * Nodes are numbered from 1 in the order they are added. Unless the nodes
+ * are added with their own node ID and handle, node number <i>n</i> has
+ * node ID 'MPI<i>n</i>#' and handle 'hdl:1839/00-MEM-<i>n</i>'.
+ * The tree is stored in primitive arrays, so millions of nodes fit in a
+ * moderate heap. Nodes must be added before the DAO is used.
+ */
+public class InMemoryCorpusStructureDAO extends AbstractCorpusStructureDAO {
+	private static final String HANDLE_PREFIX = "hdl:1839/00-MEM-";
+
+	private int size = 0;
+	private int[] parents = new int[1024];
+	private int[] lastChildren = new int[1024];
+	private int[] firstChildren = new int[1024];
+	private int[] nextSiblings = new int[1024];
+	private int[] nodeTypes = new int[1024];
+	private int[] readAcls = new int[1024];
+	private int[] writeAcls = new int[1024];
+	private final BitSet onsite = new BitSet();
+	private final List<String> acls = new ArrayList<String>();
+	private final Map<String, Integer> aclIds = new HashMap<String, Integer>();
+	// only used when the nodes are added with their own node ID and handle:
+	// the number of the node ID, or -1 for a node ID without number
+	private int[] nodeIdNumbers;
+	private IntIntMap nodesByNumber;
+	private Map<String, Integer> nodesByOtherId;
+	private Map<Integer, String> otherNodeIds;
+	private String[] handles;
+	private Map<String, Integer> nodesByHandle;
+
+	/**
+	 * Adds a node to the tree
+	 * @param parent the number of the parent node, or 0 for a root node
+	 * @param nodeType the {@link nl.mpi.corpusstructure.Node Node} type
+	 * @param isOnsite whether the node is onsite
+	 * @param readRights the read ACL string, as returned by AccessInfo.getReadRights()
+	 * @param writeRights the write ACL string, as returned by AccessInfo.getWriteRights()
+	 * @return the number of the new node
+	 */
+	public int addNode(int parent, int nodeType, boolean isOnsite, String readRights, String writeRights) {
+		if (nodeIdNumbers != null)
+			throw new IllegalStateException("The nodes of this tree have their own node IDs");
+		return addNode(parent, nodeType, isOnsite, aclId(readRights), aclId(writeRights));
+	}
+
+	/**
+	 * Adds a node with its own node ID and handle to the tree. Either all
+	 * nodes or none are added with their own node ID.
+	 * @param parent the number of the parent node, or 0 for a root node
+	 * @param nodeId the node ID, e.g. 'MPI12345#'
+	 * @param handle the handle, or null if the node has none
+	 * @param nodeType the {@link nl.mpi.corpusstructure.Node Node} type
+	 * @param isOnsite whether the node is onsite
+	 * @param readRights the read ACL string, as returned by AccessInfo.getReadRights()
+	 * @param writeRights the write ACL string, as returned by AccessInfo.getWriteRights()
+	 * @return the number of the new node
+	 */
+	public int addNode(int parent, String nodeId, String handle, int nodeType, boolean isOnsite, String readRights, String writeRights) {
+		return addNodeWithAcls(parent, nodeId, handle, nodeType, isOnsite, aclId(readRights), aclId(writeRights));
+	}
+
+	/**
+	 * Adds a node with its own node ID and handle, with the ACLs given by
+	 * their number in the {@link #getAcl(int) ACL table}
+	 */
+	int addNodeWithAcls(int parent, String nodeId, String handle, int nodeType, boolean isOnsite, int readAcl, int writeAcl) {
+		if (nodeIdNumbers == null) {
+			if (size > 0)
+				throw new IllegalStateException("The nodes of this tree are numbered");
+			nodeIdNumbers = new int[parents.length];
+			handles = new String[parents.length];
+			nodesByNumber = new IntIntMap();
+			nodesByOtherId = new HashMap<String, Integer>();
+			otherNodeIds = new HashMap<Integer, String>();
+		}
+		if (toNode(nodeId) != 0)
+			throw new IllegalArgumentException("Duplicate node " + nodeId);
+		int node = addNode(parent, nodeType, isOnsite, readAcl, writeAcl);
+		int number = NodeIds.toNumber(nodeId);
+		nodeIdNumbers[node] = number;
+		if (number != -1) {
+			nodesByNumber.put(number, node);
+		} else {
+			nodesByOtherId.put(nodeId, node);
+			otherNodeIds.put(node, nodeId);
+		}
+		handles[node] = handle;
+		nodesByHandle = null;
+		return node;
+	}
+
+	private int addNode(int parent, int nodeType, boolean isOnsite, int readAcl, int writeAcl) {
+		if (parent < 0 || parent > size)
+			throw new IllegalArgumentException("Unknown parent node " + parent);
+		if (readAcl < 0 || readAcl >= acls.size() || writeAcl < 0 || writeAcl >= acls.size())
+			throw new IllegalArgumentException("Unknown ACL number");
+		int node = ++size;
+		if (node == parents.length)
+			grow();
+		parents[node] = parent;
+		nodeTypes[node] = nodeType;
+		readAcls[node] = readAcl;
+		writeAcls[node] = writeAcl;
+		onsite.set(node, isOnsite);
+		if (parent != 0) {
+			if (firstChildren[parent] == 0)
+				firstChildren[parent] = node;
+			else
+				nextSiblings[lastChildren[parent]] = node;
+			lastChildren[parent] = node;
+		}
+		return node;
+	}
+
+	/**
+	 * Adds an ACL string to the ACL table, if it is not in it yet
+	 * @return the number of the ACL in the table
+	 */
+	int aclId(String acl) {
+		if (acl == null)
+			acl = AccessInfo.NOBODY;
+		Integer id = aclIds.get(acl);
+		if (id == null) {
+			id = acls.size();
+			acls.add(acl);
+			aclIds.put(acl, id);
+		}
+		return id;
+	}
+
+	private void grow() {
+		int capacity = parents.length * 2;
+		parents = Arrays.copyOf(parents, capacity);
+		firstChildren = Arrays.copyOf(firstChildren, capacity);
+		lastChildren = Arrays.copyOf(lastChildren, capacity);
+		nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+		nodeTypes = Arrays.copyOf(nodeTypes, capacity);
+		readAcls = Arrays.copyOf(readAcls, capacity);
+		writeAcls = Arrays.copyOf(writeAcls, capacity);
+		if (nodeIdNumbers != null) {
+			nodeIdNumbers = Arrays.copyOf(nodeIdNumbers, capacity);
+			handles = Arrays.copyOf(handles, capacity);
+		}
+	}
+
+	/**
+	 * @return the number of nodes in the tree
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of distinct ACL strings of the nodes
+	 */
+	public int getAclCount() {
+		return acls.size();
+	}
+
+	String getAcl(int acl) {
+		return acls.get(acl);
+	}
+
+	int getParent(int node) {
+		return parents[node];
+	}
+
+	int getNodeTypeOf(int node) {
+		return nodeTypes[node];
+	}
+
+	boolean isOnsite(int node) {
+		return onsite.get(node);
+	}
+
+	int getReadAcl(int node) {
+		return readAcls[node];
+	}
+
+	int getWriteAcl(int node) {
+		return writeAcls[node];
+	}
+
+	/**
+	 * @param node a node number
+	 * @return the node ID of the node, e.g. 'MPI12345#'
+	 */
+	String getNodeId(int node) {
+		if (nodeIdNumbers == null)
+			return toNodeId(node);
+		int number = nodeIdNumbers[node];
+		return number != -1 ? NodeIds.toNodeId(number) : otherNodeIds.get(node);
+	}
+
+	/**
+	 * @param node a node number
+	 * @return the handle of the node, or null if it has none
+	 */
+	String getHandle(int node) {
+		return nodeIdNumbers != null ? handles[node] : HANDLE_PREFIX + node;
+	}
+
+	/**
+	 * @return the node IDs of the nodes without a parent
+	 */
+	public List<String> getRootNodeIds() {
+		List<String> roots = new ArrayList<String>();
+		for (int node = 1; node <= size; node++) {
+			if (parents[node] == 0)
+				roots.add(getNodeId(node));
+		}
+		return roots;
+	}
+
+	/**
+	 * @param node a node number
+	 * @return the node ID of the numbered node, e.g. 'MPI12345#'
+	 */
+	public static String toNodeId(int node) {
+		return NodeIds.toNodeId(node);
+	}
+
+	/**
+	 * @return the node number of a node ID, or 0 if it is not a node of this tree
+	 */
+	private int toNode(String nodeId) {
+		int number = NodeIds.toNumber(nodeId);
+		if (nodeIdNumbers != null) {
+			if (number != -1)
+				return Math.max(nodesByNumber.get(number), 0);
+			Integer node = nodeId == null ? null : nodesByOtherId.get(nodeId);
+			return node == null ? 0 : node;
+		}
+		return number > 0 && number <= size ? number : 0;
+	}
+
+	public int getNodeType(String nodeId) {
+		int node = toNode(nodeId);
+		return node == 0 ? -1 : nodeTypes[node];
+	}
+
+	public synchronized String getNodeIdFor(String handle) {
+		if (handle == null)
+			return null;
+		if (nodeIdNumbers != null) {
+			if (nodesByHandle == null) {
+				nodesByHandle = new HashMap<String, Integer>();
+				for (int node = 1; node <= size; node++) {
+					if (handles[node] != null)
+						nodesByHandle.put(handles[node], node);
+				}
+			}
+			Integer node = nodesByHandle.get(handle);
+			return node == null ? null : getNodeId(node);
+		}
+		if (!handle.startsWith(HANDLE_PREFIX))
+			return null;
+		String nodeId = "MPI" + handle.substring(HANDLE_PREFIX.length()) + "#";
+		return toNode(nodeId) == 0 ? null : nodeId;
+	}
+
+	public String getHandleFor(String nodeId) {
+		int node = toNode(nodeId);
+		return node == 0 ? null : getHandle(node);
+	}
+
+	public boolean getOnsite(String nodeId) {
+		return onsite.get(toNode(nodeId));
+	}
+
+	public String[] getDescendants(String nodeId) {
+		int root = toNode(nodeId);
+		if (root == 0)
+			return null;
+		List<String> descendants = new ArrayList<String>();
+		// pre-order walk over the first child / next sibling links
+		int node = firstChildren[root];
+		while (node != 0) {
+			descendants.add(getNodeId(node));
+			if (firstChildren[node] != 0) {
+				node = firstChildren[node];
+			} else {
+				while (node != root && nextSiblings[node] == 0)
+					node = parents[node];
+				node = node == root ? 0 : nextSiblings[node];
+			}
+		}
+		return descendants.toArray(new String[descendants.size()]);
+	}
+
+	public String[] getChildren(String nodeId) {
+		int parent = toNode(nodeId);
+		if (parent == 0)
+			return null;
+		List<String> children = new ArrayList<String>();
+		for (int node = firstChildren[parent]; node != 0; node = nextSiblings[node])
+			children.add(getNodeId(node));
+		return children.toArray(new String[children.size()]);
+	}
+
+	public List<NodeInfo> getNodeInfo(List<String> nodeIds) {
+		List<NodeInfo> result = new ArrayList<NodeInfo>(nodeIds.size());
+		for (String nodeId : nodeIds) {
+			int node = toNode(nodeId);
+			if (node == 0)
+				result.add(NodeInfo.unknown(nodeId));
+			else
+				result.add(new NodeInfo(nodeId, nodeTypes[node], onsite.get(node), getHandle(node),
+						acls.get(readAcls[node]), acls.get(writeAcls[node])));
+		}
+		return result;
+	}
+
+	public List<String> getReadRightsFor(String nodeId) {
+		int node = toNode(nodeId);
+		if (node == 0) {
+			System.err.println("Unknown node "+nodeId);
+			return parseRights(AccessInfo.NOBODY);
+		}
+		return parseRights(acls.get(readAcls[node]));
+	}
+
+	public List<String> getWriteRightsFor(String nodeId) {
+		int node = toNode(nodeId);
+		if (node == 0) {
+			System.err.println("Unknown node "+nodeId);
+			return parseRights(AccessInfo.NOBODY);
+		}
+		return parseRights(acls.get(writeAcls[node]));
+	}
+
+	public void closeCorpusStructureDB() {
+		// nothing to release
+	}
+}
@@ -0,0 +1,85 @@
+package nl.mpi.ams2xacml.dao;
+
+import java.util.Arrays;
+
+/**
+ * A map from non-negative int keys to int values, with open addressing in
+ * a single int array, so that it takes 8 to 16 bytes per entry instead of
+ * the ~60 of a HashMap&lt;Integer, Integer&gt;. Not thread safe.
+ */
+class IntIntMap {
+	private static final int FREE = -1;
+
+	private int[] entries;
+	private int size = 0;
+
+	IntIntMap() {
+		entries = new int[2 * 1024];
+		Arrays.fill(entries, FREE);
+	}
+
+	/**
+	 * @param key a non-negative key
+	 * @param value the value
+	 * @return the previous value of the key, or -1 if there was none
+	 */
+	int put(int key, int value) {
+		if (key < 0)
+			throw new IllegalArgumentException("Negative key " + key);
+		int slot = find(key);
+		int previous = entries[slot] == FREE ? FREE : entries[slot + 1];
+		if (previous == FREE) {
+			entries[slot] = key;
+			size++;
+		}
+		entries[slot + 1] = value;
+		// at most half full
+		if (size * 4 > entries.length)
+			rehash();
+		return previous;
+	}
+
+	/**
+	 * @param key a key
+	 * @return the value of the key, or -1 if there is none
+	 */
+	int get(int key) {
+		if (key < 0)
+			return FREE;
+		int slot = find(key);
+		return entries[slot] == FREE ? FREE : entries[slot + 1];
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the slot of the key, or the free slot where it belongs
+	 */
+	private int find(int key) {
+		int mask = entries.length / 2 - 1;
+		int slot = mix(key) & mask;
+		while (entries[2 * slot] != FREE && entries[2 * slot] != key)
+			slot = (slot + 1) & mask;
+		return 2 * slot;
+	}
+
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private void rehash() {
+		int[] old = entries;
+		entries = new int[old.length * 2];
+		Arrays.fill(entries, FREE);
+		for (int i = 0; i < old.length; i += 2) {
+			if (old[i] != FREE) {
+				int slot = find(old[i]);
+				entries[slot] = old[i];
+				entries[slot + 1] = old[i + 1];
+			}
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package nl.mpi.ams2xacml.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over a list of start nodes and all their descendants, one start
+ * node subtree at a time. The subtree is walked depth first, looking up the
+ * children of one node at a time, so only the nodes still to be visited
+ * are kept, as node numbers, and not the whole subtree. Each node ID is
+ * returned once, also when a node is linked from more than one parent or
+ * when the subtrees of the start nodes overlap.
+ * <p>The {@link #getPosition() position} of the iteration can be saved and
+ * an iteration over the same start nodes can be {@link #resume(Position)
+ * resumed} from it later.</p>
+ */
+public class LinkedNodeIterator implements Iterator<String> {
+	private final CorpusStructureDAO csDAO;
+	private final List<String> startNodeIds;
+	private final boolean withDescendants;
+	/** the nodes returned, when there is more than one start node */
+	private final NodeIdSet seen = new NodeIdSet();
+	private int startNodeIdx = -1;
+	/** the nodes reached in the walk of the current start node */
+	private NodeIdSet walked;
+	/** the nodes still to be visited: node numbers, or -1 - the index in unnumbered */
+	private int[] stack = new int[64];
+	private int stackSize = 0;
+	private final List<String> unnumbered = new ArrayList<String>();
+	/** the number of nodes visited in the walk of the current start node */
+	private int walkOffset = 0;
+	private String next;
+	private int nextOffset;
+	private Position position;
+	private volatile long discoveredNodes;
+	private Object lock;
+
+	/**
+	 * The position of an iteration: the last node returned, identified by
+	 * the index of its start node and its offset in the start node's
+	 * sequence, where the start node itself has offset 0 and its
+	 * descendants follow
+	 */
+	public static class Position {
+		private final int startNodeIndex;
+		private final int offset;
+		private final String nodeId;
+
+		public Position(int startNodeIndex, int offset, String nodeId) {
+			this.startNodeIndex = startNodeIndex;
+			this.offset = offset;
+			this.nodeId = nodeId;
+		}
+
+		public int getStartNodeIndex() {
+			return startNodeIndex;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		/**
+		 * @return the ID of the last node returned
+		 */
+		public String getNodeId() {
+			return nodeId;
+		}
+	}
+
+	/**
+	 * @param csDAO the DAO to look up the descendants with
+	 * @param startNodeIds the node IDs of the start nodes
+	 */
+	public LinkedNodeIterator(CorpusStructureDAO csDAO, List<String> startNodeIds) {
+		this(csDAO, startNodeIds, true);
+	}
+
+	/**
+	 * @param csDAO the DAO to look up the descendants with
+	 * @param startNodeIds the node IDs of the start nodes
+	 * @param withDescendants false to only iterate over the start nodes
+	 */
+	public LinkedNodeIterator(CorpusStructureDAO csDAO, List<String> startNodeIds, boolean withDescendants) {
+		this.csDAO = csDAO;
+		this.startNodeIds = new ArrayList<String>(startNodeIds);
+		this.withDescendants = withDescendants;
+		this.discoveredNodes = startNodeIds.size();
+	}
+
+	/**
+	 * Makes the iteration look up the children of each node while holding
+	 * a lock, e.g. the DAO itself when its tree queries are shared with
+	 * other threads. The lock is not held between the lookups.
+	 * @param lock the object to synchronize the lookups on, or null
+	 */
+	public void setLock(Object lock) {
+		this.lock = lock;
+	}
+
+	public boolean hasNext() {
+		while (next == null) {
+			if (stackSize > 0) {
+				String nodeId = pop();
+				walkOffset++;
+				pushChildren(nodeId);
+				if (markSeen(nodeId)) {
+					next = nodeId;
+					nextOffset = walkOffset;
+				}
+			} else if (startNodeIdx + 1 < startNodeIds.size()) {
+				String startNodeId = startNodeIds.get(++startNodeIdx);
+				startWalk(startNodeId);
+				if (markSeen(startNodeId)) {
+					next = startNodeId;
+					nextOffset = 0;
+					pushChildren(startNodeId);
+				}
+				// else covered by the subtree of an earlier start node
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void startWalk(String startNodeId) {
+		walked = new NodeIdSet();
+		walked.add(startNodeId);
+		stackSize = 0;
+		unnumbered.clear();
+		walkOffset = 0;
+	}
+
+	/**
+	 * Looks up the children of a node and puts those that were not reached
+	 * before on the stack, the first child on top
+	 */
+	private void pushChildren(String nodeId) {
+		if (!withDescendants)
+			return;
+		String[] children = getChildren(nodeId);
+		if (children == null)
+			return;
+		for (int i = children.length - 1; i >= 0; i--) {
+			if (walked.add(children[i])) {
+				push(children[i]);
+				discoveredNodes++;
+			}
+		}
+	}
+
+	private String[] getChildren(String nodeId) {
+		if (lock == null)
+			return csDAO.getChildren(nodeId);
+		synchronized (lock) {
+			return csDAO.getChildren(nodeId);
+		}
+	}
+
+	private void push(String nodeId) {
+		int number = NodeIds.toNumber(nodeId);
+		if (number == -1) {
+			unnumbered.add(nodeId);
+			number = -unnumbered.size();
+		}
+		if (stackSize == stack.length)
+			stack = Arrays.copyOf(stack, stackSize * 2);
+		stack[stackSize++] = number;
+	}
+
+	private String pop() {
+		int number = stack[--stackSize];
+		String nodeId;
+		if (number >= 0) {
+			nodeId = NodeIds.toNodeId(number);
+		} else {
+			nodeId = unnumbered.get(-1 - number);
+			unnumbered.set(-1 - number, null);
+		}
+		if (stackSize == 0)
+			unnumbered.clear();
+		return nodeId;
+	}
+
+	public String next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		String result = next;
+		next = null;
+		position = new Position(startNodeIdx, nextOffset, result);
+		return result;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return the position of the last node returned by {@link #next()},
+	 * or null if no node was returned yet
+	 */
+	public Position getPosition() {
+		return position;
+	}
+
+	/**
+	 * Continues an iteration over the same start nodes after the given
+	 * position, by walking the subtree of the start node again up to the
+	 * position, without returning the nodes. If the node at the position
+	 * is not the one that was returned there before, because the subtree
+	 * changed in the mean time, the descendants of the start node are
+	 * iterated from the start. Overlapping subtrees of the start nodes
+	 * before the position are not taken into account. Must be called
+	 * before the iteration starts.
+	 * @param resumePosition the position of the last node that was handled
+	 * @return false if the subtree of the start node changed
+	 * @throws IllegalArgumentException if the position does not fit the start nodes
+	 */
+	public boolean resume(Position resumePosition) {
+		if (startNodeIdx != -1)
+			throw new IllegalStateException("The iteration already started");
+		int idx = resumePosition.getStartNodeIndex();
+		if (idx < 0 || idx >= startNodeIds.size())
+			throw new IllegalArgumentException("No start node " + idx);
+		String startNodeId = startNodeIds.get(idx);
+		startNodeIdx = idx;
+		seen.add(startNodeId);
+		position = resumePosition;
+		startWalk(startNodeId);
+		pushChildren(startNodeId);
+		int offset = resumePosition.getOffset();
+		if (offset == 0)
+			return startNodeId.equals(resumePosition.getNodeId());
+		String nodeId = null;
+		while (walkOffset < offset && stackSize > 0) {
+			nodeId = pop();
+			walkOffset++;
+			pushChildren(nodeId);
+		}
+		if (walkOffset < offset || !nodeId.equals(resumePosition.getNodeId())) {
+			startWalk(startNodeId);
+			pushChildren(startNodeId);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of nodes found so far: the start nodes plus the
+	 * descendants of the start nodes whose parents were visited. Nodes in
+	 * overlapping subtrees are counted more than once. May be called from
+	 * another thread, e.g. to report progress.
+	 * @return the number of nodes found so far
+	 */
+	public long getDiscoveredNodes() {
+		return discoveredNodes;
+	}
+
+	/**
+	 * @return false if the node ID was returned before
+	 */
+	private boolean markSeen(String nodeId) {
+		// with only one start node there is nothing to overlap with
+		if (startNodeIds.size() == 1)
+			return true;
+		return seen.add(nodeId);
+	}
+}
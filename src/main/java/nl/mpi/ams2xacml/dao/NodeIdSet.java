@@ -0,0 +1,63 @@
+package nl.mpi.ams2xacml.dao;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A set of node IDs, kept as a bit per node number. Node IDs without a
+ * {@link NodeIds#toNumber(String) number} are kept as strings. Node numbers
+ * are dense in a corpusstructure database, so a full archive of millions
+ * of nodes takes a few hundred kilobytes. Not thread safe.
+ */
+public class NodeIdSet {
+	private final BitSet numbers = new BitSet();
+	private Set<String> others;
+	private int size = 0;
+
+	/**
+	 * @param nodeId a node ID
+	 * @return true if the node ID was not in the set yet
+	 */
+	public boolean add(String nodeId) {
+		int number = NodeIds.toNumber(nodeId);
+		if (number != -1)
+			return add(number);
+		if (others == null)
+			others = new HashSet<String>();
+		if (!others.add(nodeId))
+			return false;
+		size++;
+		return true;
+	}
+
+	/**
+	 * @param number the number of a node ID
+	 * @return true if the node ID was not in the set yet
+	 */
+	public boolean add(int number) {
+		if (numbers.get(number))
+			return false;
+		numbers.set(number);
+		size++;
+		return true;
+	}
+
+	/**
+	 * @param nodeId a node ID
+	 * @return true if the node ID is in the set
+	 */
+	public boolean contains(String nodeId) {
+		int number = NodeIds.toNumber(nodeId);
+		if (number != -1)
+			return numbers.get(number);
+		return others != null && others.contains(nodeId);
+	}
+
+	/**
+	 * @return the number of node IDs in the set
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,61 @@
+package nl.mpi.ams2xacml.dao;
+
+/**
+ * Converts between corpusstructure node IDs and their number: node ID
+ * 'MPI12345#' has number 12345. Numbers take a fraction of the memory of
+ * the strings, so large sets and lists of node IDs are kept as numbers and
+ * only turned into strings where they are passed to the corpusstructure
+ * API or to the conversion. Node IDs of another form have no number.
+ */
+public final class NodeIds {
+
+	private NodeIds() {
+	}
+
+	/**
+	 * @param nodeId a node ID
+	 * @return the number of the node ID, or -1 if it is not of the form
+	 * 'MPI&lt;number&gt;#', or does not convert back to the same string
+	 */
+	public static int toNumber(String nodeId) {
+		int length = nodeId == null ? 0 : nodeId.length();
+		// 'MPI' + up to 10 digits + '#'
+		if (length < 5 || length > 14 || !nodeId.startsWith("MPI") || nodeId.charAt(length - 1) != '#')
+			return -1;
+		// no leading zeros, or the number would not convert back
+		if (nodeId.charAt(3) == '0' && length > 5)
+			return -1;
+		long number = 0;
+		for (int i = 3; i < length - 1; i++) {
+			char c = nodeId.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			number = number * 10 + (c - '0');
+		}
+		// the largest int is left out, so that number + 1 does not overflow
+		return number < Integer.MAX_VALUE ? (int) number : -1;
+	}
+
+	/**
+	 * @param number a node number
+	 * @return the node ID, e.g. 'MPI12345#'
+	 */
+	public static String toNodeId(int number) {
+		return "MPI" + number + "#";
+	}
+
+	/**
+	 * Converts node IDs to their numbers
+	 * @param nodeIds the node IDs
+	 * @return the numbers, or null if one of the node IDs has no number
+	 */
+	public static int[] toNumbers(String[] nodeIds) {
+		int[] numbers = new int[nodeIds.length];
+		for (int i = 0; i < nodeIds.length; i++) {
+			numbers[i] = toNumber(nodeIds[i]);
+			if (numbers[i] == -1)
+				return null;
+		}
+		return numbers;
+	}
+}
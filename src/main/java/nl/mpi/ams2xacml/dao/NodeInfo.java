@@ -0,0 +1,83 @@
+package nl.mpi.ams2xacml.dao;
+
+/**
+ * The corpusstructure information needed to generate the XACML policy
+ * of a single node, as fetched in one go by
+ * {@link CorpusStructureDAO#getNodeInfo(java.util.List) getNodeInfo}
+ */
+public class NodeInfo {
+	private final String nodeId;
+	private final boolean known;
+	private final int nodeType;
+	private final boolean onsite;
+	private final String handle;
+	private final String readRights;
+	private final String writeRights;
+
+	public NodeInfo(String nodeId, int nodeType, boolean onsite, String handle, String readRights, String writeRights) {
+		this(nodeId, true, nodeType, onsite, handle, readRights, writeRights);
+	}
+
+	private NodeInfo(String nodeId, boolean known, int nodeType, boolean onsite, String handle, String readRights, String writeRights) {
+		this.nodeId = nodeId;
+		this.known = known;
+		this.nodeType = nodeType;
+		this.onsite = onsite;
+		this.handle = handle;
+		this.readRights = readRights;
+		this.writeRights = writeRights;
+	}
+
+	/**
+	 * Returns the information of a node that does not exist in the
+	 * corpusstructure database
+	 * @param nodeId the node ID that was looked up
+	 * @return a {@link NodeInfo} that is not onsite and has no rights
+	 */
+	public static NodeInfo unknown(String nodeId) {
+		return new NodeInfo(nodeId, false, -1, false, null, null, null);
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @return false if the node was not found in the corpusstructure database
+	 */
+	public boolean isKnown() {
+		return known;
+	}
+
+	/**
+	 * @return the {@link nl.mpi.corpusstructure.Node Node} type or -1 if unknown
+	 */
+	public int getNodeType() {
+		return nodeType;
+	}
+
+	public boolean isOnsite() {
+		return onsite;
+	}
+
+	/**
+	 * @return the handle (PID) of the node, or null if it has none
+	 */
+	public String getHandle() {
+		return handle;
+	}
+
+	/**
+	 * @return the raw read ACL string, as returned by AccessInfo.getReadRights()
+	 */
+	public String getReadRights() {
+		return readRights;
+	}
+
+	/**
+	 * @return the raw write ACL string, as returned by AccessInfo.getWriteRights()
+	 */
+	public String getWriteRights() {
+		return writeRights;
+	}
+}
@@ -0,0 +1,94 @@
+package nl.mpi.ams2xacml.dao;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+import nl.mpi.corpusstructure.AccessInfo;
+
+/**
+ * An immutable, parsed ACL: a rights list as returned by the rights
+ * lookups of a {@link CorpusStructureDAO}, either one AccessInfo constant,
+ * or the ACL string followed by its user names. The user names in the
+ * 'keep', 'strip' and 'both' username formats are computed once, when the
+ * ACL is parsed. Instances are created and shared by a {@link ParsedAclCache}.
+ */
+public final class ParsedAcl extends AbstractList<String> implements RandomAccess {
+	/** The rights of everybody, also anonymous users */
+	public static final ParsedAcl EVERYBODY = new ParsedAcl(AccessInfo.EVERYBODY);
+	/** The rights of every authenticated user */
+	public static final ParsedAcl ALL_AUTH = new ParsedAcl(AccessInfo.ALL_AUTH);
+	/** No rights at all */
+	public static final ParsedAcl NOBODY = new ParsedAcl(AccessInfo.NOBODY);
+
+	private final String acl;
+	private final String[] users;
+	private final List<String> keepUserNames;
+	private final List<String> stripUserNames;
+	private final List<String> bothUserNames;
+
+	private ParsedAcl(String constant) {
+		this.acl = constant;
+		this.users = new String[0];
+		this.keepUserNames = Collections.emptyList();
+		this.stripUserNames = keepUserNames;
+		this.bothUserNames = keepUserNames;
+	}
+
+	/**
+	 * @param acl the ACL string
+	 * @param users the user names of the ACL
+	 * @param strippedUsers the user names without their '@domain' part, in
+	 * the same order
+	 */
+	ParsedAcl(String acl, String[] users, String[] strippedUsers) {
+		this.acl = acl;
+		this.users = users;
+		this.keepUserNames = Collections.unmodifiableList(Arrays.asList(users));
+		this.stripUserNames = Collections.unmodifiableList(Arrays.asList(strippedUsers));
+		String[] both = new String[users.length * 2];
+		int count = 0;
+		for (int i = 0; i < users.length; i++) {
+			// a user name without a domain is only listed once
+			if (strippedUsers[i] != users[i])
+				both[count++] = strippedUsers[i];
+			both[count++] = users[i];
+		}
+		this.bothUserNames = Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(both, count)));
+	}
+
+	@Override
+	public String get(int index) {
+		if (index == 0)
+			return acl;
+		return users[index - 1];
+	}
+
+	@Override
+	public int size() {
+		return users.length + 1;
+	}
+
+	/**
+	 * @return the number of user names of the ACL, 0 for the AccessInfo constants
+	 */
+	public int getUserCount() {
+		return users.length;
+	}
+
+	/**
+	 * Returns the user names of the ACL in a username format
+	 * @param usernameFormat 'keep', 'strip' (remove '@domain') or 'both'
+	 * (the stripped name followed by the name as is)
+	 * @return an immutable list of the user names
+	 */
+	public List<String> getUserNames(String usernameFormat) {
+		if (usernameFormat.equals("strip"))
+			return stripUserNames;
+		if (usernameFormat.equals("both"))
+			return bothUserNames;
+		return keepUserNames;
+	}
+}
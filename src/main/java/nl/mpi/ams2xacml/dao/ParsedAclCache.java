@@ -0,0 +1,100 @@
+package nl.mpi.ams2xacml.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nl.mpi.corpusstructure.AccessInfo;
+
+/**
+ * Parses ACL strings into {@link ParsedAcl}s, once per distinct ACL string.
+ * The same few thousand ACLs are shared by millions of nodes, so the parsed
+ * ACLs are kept, and the user names of all ACLs are taken from one shared
+ * dictionary. When the cache is full, new ACLs are still parsed but no
+ * longer kept. The cache is thread safe.
+ */
+public class ParsedAclCache {
+	/** The default maximum number of distinct ACLs to keep */
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	private final int maxEntries;
+	private final ConcurrentHashMap<String, ParsedAcl> acls = new ConcurrentHashMap<String, ParsedAcl>();
+	private final ConcurrentHashMap<String, String> userNames = new ConcurrentHashMap<String, String>();
+
+	public ParsedAclCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param maxEntries the maximum number of distinct ACLs to keep
+	 */
+	public ParsedAclCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Returns the parsed form of an ACL string as returned by
+	 * AccessInfo.getReadRights() or AccessInfo.getWriteRights()
+	 * @param acl the ACL string
+	 * @return the parsed ACL, one of the ParsedAcl constants for the
+	 * AccessInfo constants
+	 */
+	public ParsedAcl get(String acl) {
+		if (acl == null || AccessInfo.NOBODY.equals(acl) || AccessInfo.CLEARED.equals(acl))
+			return ParsedAcl.NOBODY;
+		if (AccessInfo.EVERYBODY.equals(acl))
+			return ParsedAcl.EVERYBODY;
+		if (AccessInfo.ALL_AUTH.equals(acl))
+			return ParsedAcl.ALL_AUTH;
+		ParsedAcl parsed = acls.get(acl);
+		if (parsed == null) {
+			parsed = parse(acl);
+			if (acls.size() < maxEntries) {
+				ParsedAcl previous = acls.putIfAbsent(acl, parsed);
+				if (previous != null)
+					parsed = previous;
+			}
+		}
+		return parsed;
+	}
+
+	private ParsedAcl parse(String acl) {
+		// Lists typically have corpman plus a few, up to 50 users, rarely 100s
+		List<String> users = new ArrayList<String>();
+		int start = 0;
+		while (start < acl.length()) {
+			int end = acl.indexOf(' ', start);
+			if (end == -1)
+				end = acl.length();
+			if (end > start)
+				users.add(intern(acl.substring(start, end)));
+			start = end + 1;
+		}
+		String[] userArray = users.toArray(new String[users.size()]);
+		String[] strippedUsers = new String[userArray.length];
+		for (int i = 0; i < userArray.length; i++) {
+			int atIdx = userArray[i].indexOf('@');
+			strippedUsers[i] = atIdx == -1 ? userArray[i] : intern(userArray[i].substring(0, atIdx));
+		}
+		return new ParsedAcl(acl, userArray, strippedUsers);
+	}
+
+	private String intern(String userName) {
+		String shared = userNames.putIfAbsent(userName, userName);
+		return shared != null ? shared : userName;
+	}
+
+	/**
+	 * @return the number of parsed ACLs kept
+	 */
+	public int size() {
+		return acls.size();
+	}
+
+	/**
+	 * @return the number of distinct user names, with and without domain
+	 */
+	public int getUserNameCount() {
+		return userNames.size();
+	}
+}
@@ -0,0 +1,274 @@
+package nl.mpi.ams2xacml.dao;
+
+import java.util.Random;
+
+import nl.mpi.corpusstructure.AccessInfo;
+import nl.mpi.corpusstructure.CorpusNode;
+
+/**
+ * Generates a synthetic corpus tree in an {@link InMemoryCorpusStructureDAO}.
+ * The tree has a root corpus, <i>depth</i> levels below it with
+ * <i>fanOut</i> children per node: corpora, then sessions on the level
+ * above the leaves, and media or written resources as leaves. Each node
+ * either inherits the rights of its parent or gets rights drawn from a pool
+ * of distinct ACLs and the EVERYBODY/ALL_AUTH/NOBODY constants. The same
+ * settings and seed always generate the same tree.
+ */
+public class SyntheticCorpusGenerator {
+	private int depth = 3;
+	private int fanOut = 10;
+	private double mediaResourceRatio = 0.5;
+	private int distinctAcls = 100;
+	private int minUsers = 1;
+	private int maxUsers = 20;
+	private int userPool = 10000;
+	private double everybodyRatio = 0.3;
+	private double allAuthRatio = 0.1;
+	private double nobodyRatio = 0.05;
+	private double inheritRatio = 0.9;
+	private double onsiteRatio = 0.95;
+	private long seed = 1;
+
+	private Random random;
+	private String[] acls;
+
+	/**
+	 * Creates a generator from a comma separated list of settings, e.g.
+	 * 'depth=4,fanout=20,acls=500,users=1-50,onsite=0.9,seed=7'. Known
+	 * settings: depth, fanout, mr (media resource ratio of the leaves),
+	 * acls, users (min-max users per ACL), userpool, everybody, allauth,
+	 * nobody, inherit, onsite and seed.
+	 * @param spec the settings
+	 * @return the generator
+	 * @throws IllegalArgumentException for an unknown or invalid setting
+	 */
+	public static SyntheticCorpusGenerator fromSpec(String spec) {
+		SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator();
+		// set together, since only their sum is limited
+		double everybodyRatio = generator.everybodyRatio;
+		double allAuthRatio = generator.allAuthRatio;
+		double nobodyRatio = generator.nobodyRatio;
+		for (String setting : spec.split(",")) {
+			if (setting.trim().length() == 0)
+				continue;
+			int eqIdx = setting.indexOf('=');
+			if (eqIdx == -1)
+				throw new IllegalArgumentException("Invalid synthetic corpus setting: " + setting);
+			String key = setting.substring(0, eqIdx).trim();
+			String value = setting.substring(eqIdx + 1).trim();
+			if (key.equals("depth"))
+				generator.setDepth(Integer.parseInt(value));
+			else if (key.equals("fanout"))
+				generator.setFanOut(Integer.parseInt(value));
+			else if (key.equals("mr"))
+				generator.setMediaResourceRatio(Double.parseDouble(value));
+			else if (key.equals("acls"))
+				generator.setDistinctAcls(Integer.parseInt(value));
+			else if (key.equals("users")) {
+				int dashIdx = value.indexOf('-');
+				if (dashIdx == -1)
+					generator.setUsersPerAcl(Integer.parseInt(value), Integer.parseInt(value));
+				else
+					generator.setUsersPerAcl(Integer.parseInt(value.substring(0, dashIdx)), Integer.parseInt(value.substring(dashIdx + 1)));
+			} else if (key.equals("userpool"))
+				generator.setUserPool(Integer.parseInt(value));
+			else if (key.equals("everybody"))
+				everybodyRatio = Double.parseDouble(value);
+			else if (key.equals("allauth"))
+				allAuthRatio = Double.parseDouble(value);
+			else if (key.equals("nobody"))
+				nobodyRatio = Double.parseDouble(value);
+			else if (key.equals("inherit"))
+				generator.setInheritRatio(Double.parseDouble(value));
+			else if (key.equals("onsite"))
+				generator.setOnsiteRatio(Double.parseDouble(value));
+			else if (key.equals("seed"))
+				generator.setSeed(Long.parseLong(value));
+			else
+				throw new IllegalArgumentException("Unknown synthetic corpus setting: " + key);
+		}
+		generator.setConstantRightsRatios(everybodyRatio, allAuthRatio, nobodyRatio);
+		return generator;
+	}
+
+	/**
+	 * @return the number of nodes the generator will create
+	 */
+	public long getNodeCount() {
+		long count = 1;
+		long level = 1;
+		for (int i = 0; i < depth; i++) {
+			level *= fanOut;
+			count += level;
+		}
+		return count;
+	}
+
+	/**
+	 * Generates the tree. The root node is node 1 ('MPI1#').
+	 * @return the DAO holding the tree
+	 */
+	public InMemoryCorpusStructureDAO generate() {
+		if (getNodeCount() > Integer.MAX_VALUE - 1)
+			throw new IllegalArgumentException("Too many nodes: " + getNodeCount());
+		random = new Random(seed);
+		acls = new String[distinctAcls];
+		for (int i = 0; i < distinctAcls; i++)
+			acls[i] = newAcl();
+
+		InMemoryCorpusStructureDAO dao = new InMemoryCorpusStructureDAO();
+		String readRights = randomRights();
+		String writeRights = randomRights();
+		int root = dao.addNode(0, CorpusNode.CORPUS, true, readRights, writeRights);
+		addChildren(dao, root, 1, readRights, writeRights);
+		random = null;
+		acls = null;
+		return dao;
+	}
+
+	private void addChildren(InMemoryCorpusStructureDAO dao, int parent, int level, String parentRead, String parentWrite) {
+		for (int i = 0; i < fanOut; i++) {
+			String readRights = random.nextDouble() < inheritRatio ? parentRead : randomRights();
+			String writeRights = random.nextDouble() < inheritRatio ? parentWrite : randomRights();
+			int nodeType;
+			if (level == depth)
+				nodeType = random.nextDouble() < mediaResourceRatio ? CorpusNode.RESOURCE_MR : CorpusNode.RESOURCE_WR;
+			else if (level == depth - 1)
+				nodeType = CorpusNode.SESSION;
+			else
+				nodeType = CorpusNode.CORPUS;
+			int node = dao.addNode(parent, nodeType, random.nextDouble() < onsiteRatio, readRights, writeRights);
+			if (level < depth)
+				addChildren(dao, node, level + 1, readRights, writeRights);
+		}
+	}
+
+	private String randomRights() {
+		double r = random.nextDouble();
+		if (r < everybodyRatio)
+			return AccessInfo.EVERYBODY;
+		r -= everybodyRatio;
+		if (r < allAuthRatio)
+			return AccessInfo.ALL_AUTH;
+		r -= allAuthRatio;
+		if (r < nobodyRatio || distinctAcls == 0)
+			return AccessInfo.NOBODY;
+		return acls[random.nextInt(distinctAcls)];
+	}
+
+	private String newAcl() {
+		int users = minUsers + random.nextInt(maxUsers - minUsers + 1);
+		StringBuilder acl = new StringBuilder(users * 20);
+		for (int i = 0; i < users; i++) {
+			if (i > 0)
+				acl.append(' ');
+			acl.append("user").append(random.nextInt(userPool)).append("@mpi.nl");
+		}
+		return acl.toString();
+	}
+
+	/**
+	 * @param depth the number of levels below the root
+	 */
+	public void setDepth(int depth) {
+		if (depth < 1)
+			throw new IllegalArgumentException("depth must be at least 1");
+		this.depth = depth;
+	}
+
+	/**
+	 * @param fanOut the number of children of each non-leaf node
+	 */
+	public void setFanOut(int fanOut) {
+		if (fanOut < 1)
+			throw new IllegalArgumentException("fan-out must be at least 1");
+		this.fanOut = fanOut;
+	}
+
+	/**
+	 * @param mediaResourceRatio the fraction of the leaves that are media
+	 * resources, the others are written resources
+	 */
+	public void setMediaResourceRatio(double mediaResourceRatio) {
+		checkRatio("media resource ratio", mediaResourceRatio);
+		this.mediaResourceRatio = mediaResourceRatio;
+	}
+
+	/**
+	 * @param distinctAcls the number of distinct user list ACLs
+	 */
+	public void setDistinctAcls(int distinctAcls) {
+		if (distinctAcls < 0)
+			throw new IllegalArgumentException("the number of ACLs cannot be negative");
+		this.distinctAcls = distinctAcls;
+	}
+
+	/**
+	 * @param minUsers the minimum number of users of an ACL
+	 * @param maxUsers the maximum number of users of an ACL
+	 */
+	public void setUsersPerAcl(int minUsers, int maxUsers) {
+		if (minUsers < 1 || maxUsers < minUsers)
+			throw new IllegalArgumentException("invalid users per ACL: " + minUsers + "-" + maxUsers);
+		this.minUsers = minUsers;
+		this.maxUsers = maxUsers;
+	}
+
+	/**
+	 * @param userPool the number of distinct users the ACLs are made of
+	 */
+	public void setUserPool(int userPool) {
+		if (userPool < 1)
+			throw new IllegalArgumentException("user pool must be at least 1");
+		this.userPool = userPool;
+	}
+
+	/**
+	 * Sets how often non-inherited rights are one of the AccessInfo
+	 * constants instead of a user list
+	 * @param everybodyRatio the fraction of EVERYBODY rights
+	 * @param allAuthRatio the fraction of ALL_AUTH rights
+	 * @param nobodyRatio the fraction of NOBODY rights
+	 * @throws IllegalArgumentException if a fraction is not between 0 and 1,
+	 * or the fractions add up to more than 1
+	 */
+	public void setConstantRightsRatios(double everybodyRatio, double allAuthRatio, double nobodyRatio) {
+		checkRatio("everybody ratio", everybodyRatio);
+		checkRatio("all-auth ratio", allAuthRatio);
+		checkRatio("nobody ratio", nobodyRatio);
+		if (everybodyRatio + allAuthRatio + nobodyRatio > 1)
+			throw new IllegalArgumentException("the everybody, all-auth and nobody ratios add up to more than 1");
+		this.everybodyRatio = everybodyRatio;
+		this.allAuthRatio = allAuthRatio;
+		this.nobodyRatio = nobodyRatio;
+	}
+
+	/**
+	 * @param inheritRatio the probability that a node has the same rights as its parent
+	 */
+	public void setInheritRatio(double inheritRatio) {
+		checkRatio("inherit ratio", inheritRatio);
+		this.inheritRatio = inheritRatio;
+	}
+
+	/**
+	 * @param onsiteRatio the fraction of the nodes that are onsite
+	 */
+	public void setOnsiteRatio(double onsiteRatio) {
+		checkRatio("onsite ratio", onsiteRatio);
+		this.onsiteRatio = onsiteRatio;
+	}
+
+	/**
+	 * @param seed the seed of the random generator
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	private static void checkRatio(String name, double ratio) {
+		// also rejects NaN
+		if (!(ratio >= 0 && ratio <= 1))
+			throw new IllegalArgumentException(name + " must be between 0 and 1: " + ratio);
+	}
+}
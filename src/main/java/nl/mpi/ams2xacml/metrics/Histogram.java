@@ -0,0 +1,155 @@
+package nl.mpi.ams2xacml.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe histogram of non-negative values, e.g. latencies in
+ * nanoseconds. Values below 8 are counted exactly, larger values in 8
+ * buckets per power of two, so the reported percentiles are at most 12.5%
+ * too high.
+ */
+public class Histogram {
+	private static final int SUB_BUCKETS = 8;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value; negative values are recorded as 0
+	 * @param value the value
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long currentMax;
+		while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value))
+			;
+	}
+
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the largest value that falls in the bucket
+	 */
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		if (bucket == BUCKETS - 1)
+			return Long.MAX_VALUE;
+		int nextBucket = bucket + 1;
+		int exponent = nextBucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long lowerBound = (long) (SUB_BUCKETS + nextBucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+		return lowerBound - 1;
+	}
+
+	/**
+	 * @return the number of recorded values
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the sum of the recorded values
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * @return the largest recorded value, or 0 if nothing was recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean of the recorded values, or 0 if nothing was recorded
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Adds the values recorded by another histogram, e.g. one of another
+	 * shard of the run
+	 * @param other the histogram to add
+	 */
+	public void merge(Histogram other) {
+		for (int bucket = 0; bucket < BUCKETS; bucket++)
+			counts.addAndGet(bucket, other.counts.get(bucket));
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		long currentMax;
+		long otherMax = other.max.get();
+		while (otherMax > (currentMax = max.get()) && !max.compareAndSet(currentMax, otherMax))
+			;
+	}
+
+	/**
+	 * @return the histogram as '&lt;count&gt; &lt;sum&gt; &lt;max&gt;
+	 * [&lt;bucket&gt;:&lt;count&gt;,...]', listing the non-empty buckets
+	 */
+	String toState() {
+		StringBuilder state = new StringBuilder();
+		state.append(count.get()).append(' ').append(sum.get()).append(' ').append(max.get()).append(' ');
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			long bucketCount = counts.get(bucket);
+			if (bucketCount > 0)
+				state.append(bucket).append(':').append(bucketCount).append(',');
+		}
+		return state.toString().trim();
+	}
+
+	/**
+	 * @param state a histogram written by {@link #toState()}
+	 * @return the histogram
+	 */
+	static Histogram fromState(String state) {
+		String[] parts = state.split(" ");
+		Histogram histogram = new Histogram();
+		histogram.count.set(Long.parseLong(parts[0]));
+		histogram.sum.set(Long.parseLong(parts[1]));
+		histogram.max.set(Long.parseLong(parts[2]));
+		if (parts.length > 3) {
+			for (String bucket : parts[3].split(",")) {
+				int colonIdx = bucket.indexOf(':');
+				histogram.counts.set(Integer.parseInt(bucket.substring(0, colonIdx)), Long.parseLong(bucket.substring(colonIdx + 1)));
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * @param fraction the percentile as a fraction, e.g. 0.99
+	 * @return an upper bound of the percentile, or 0 if nothing was recorded
+	 */
+	public long getPercentile(double fraction) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(fraction * n));
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts.get(bucket);
+			if (seen >= rank)
+				return Math.min(upperBoundOf(bucket), max.get());
+		}
+		return max.get();
+	}
+}
@@ -0,0 +1,158 @@
+package nl.mpi.ams2xacml.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes indented JSON objects, without a JSON library. The caller is
+ * responsible for the nesting: every {@link #beginObject(String)} needs
+ * an {@link #endObject()}. In compact mode each top level object is
+ * written on a line of its own, as in a JSON lines file.
+ */
+public class JsonWriter {
+	private final Writer out;
+	private final boolean compact;
+	private int depth = 0;
+	private boolean first = true;
+
+	/**
+	 * @param out the writer to write the JSON to
+	 */
+	public JsonWriter(Writer out) {
+		this(out, false);
+	}
+
+	/**
+	 * @param out the writer to write the JSON to
+	 * @param compact true to write every top level object on one line,
+	 * without indentation
+	 */
+	public JsonWriter(Writer out, boolean compact) {
+		this.out = out;
+		this.compact = compact;
+	}
+
+	/**
+	 * Starts an object, as a field of the current object, or as the top
+	 * level object if <i>name</i> is null
+	 * @param name the field name, or null
+	 * @return this writer
+	 * @throws IOException
+	 */
+	public JsonWriter beginObject(String name) throws IOException {
+		if (name != null)
+			name(name);
+		out.write('{');
+		depth++;
+		first = true;
+		return this;
+	}
+
+	/**
+	 * Ends the current object
+	 * @return this writer
+	 * @throws IOException
+	 */
+	public JsonWriter endObject() throws IOException {
+		depth--;
+		newLine();
+		out.write('}');
+		first = false;
+		if (depth == 0)
+			out.write('\n');
+		return this;
+	}
+
+	/**
+	 * Writes a string field; a null value is written as null
+	 * @return this writer
+	 * @throws IOException
+	 */
+	public JsonWriter field(String name, String value) throws IOException {
+		name(name);
+		if (value == null)
+			out.write("null");
+		else
+			out.write(quote(value));
+		return this;
+	}
+
+	/**
+	 * Writes a number field
+	 * @return this writer
+	 * @throws IOException
+	 */
+	public JsonWriter field(String name, long value) throws IOException {
+		name(name);
+		out.write(Long.toString(value));
+		return this;
+	}
+
+	/**
+	 * Writes a number field, rounded to 3 decimals
+	 * @return this writer
+	 * @throws IOException
+	 */
+	public JsonWriter field(String name, double value) throws IOException {
+		name(name);
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			out.write("null");
+		else
+			out.write(Double.toString(Math.round(value * 1000) / 1000.0));
+		return this;
+	}
+
+	/**
+	 * Writes a boolean field
+	 * @return this writer
+	 * @throws IOException
+	 */
+	public JsonWriter field(String name, boolean value) throws IOException {
+		name(name);
+		out.write(value ? "true" : "false");
+		return this;
+	}
+
+	private void name(String name) throws IOException {
+		if (!first)
+			out.write(',');
+		first = false;
+		newLine();
+		out.write(quote(name));
+		out.write(compact ? ":" : ": ");
+	}
+
+	private void newLine() throws IOException {
+		if (compact)
+			return;
+		out.write('\n');
+		for (int i = 0; i < depth; i++)
+			out.write('\t');
+	}
+
+	/**
+	 * @param text a string
+	 * @return the string as a quoted and escaped JSON string
+	 */
+	public static String quote(String text) {
+		StringBuilder quoted = new StringBuilder(text.length() + 2);
+		quoted.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c == '\n')
+				quoted.append("\\n");
+			else if (c == '\r')
+				quoted.append("\\r");
+			else if (c == '\t')
+				quoted.append("\\t");
+			else if (c < 0x20)
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+		quoted.append('"');
+		return quoted.toString();
+	}
+}
@@ -0,0 +1,32 @@
+package nl.mpi.ams2xacml.metrics;
+
+/**
+ * The timed phases of a conversion run
+ */
+public enum Phase {
+	/** Walking the corpus tree: the descendant lookups of the start nodes, per chunk of nodes */
+	TRAVERSE("traverse"),
+	/** Looking up the type, onsite flag, handle and ACLs of a chunk of nodes */
+	LOOKUP("lookup"),
+	/** Filling in the XACML template, or splicing the user names into it */
+	BUILD("build"),
+	/** Serializing the filled in XACML template */
+	SERIALIZE("serialize"),
+	/** Storing a policy in the policy sink */
+	STORE("store"),
+	/** Reading a stored policy and comparing it with the rights of its node */
+	AUDIT("audit");
+
+	private final String reportName;
+
+	private Phase(String reportName) {
+		this.reportName = reportName;
+	}
+
+	/**
+	 * @return the name of the phase in the run report
+	 */
+	public String getReportName() {
+		return reportName;
+	}
+}
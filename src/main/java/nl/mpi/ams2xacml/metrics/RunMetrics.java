@@ -0,0 +1,411 @@
+package nl.mpi.ams2xacml.metrics;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The counters and latency histograms of a conversion run. All methods are
+ * thread safe, one instance is shared by all the conversion threads.
+ * <p>Phases are timed with {@link #startTimer()} and
+ * {@link #record(Phase, long)}:</p>
+ * <pre>
+ * long start = metrics.startTimer();
+ * ...
+ * start = metrics.record(Phase.BUILD, start);
+ * ...
+ * metrics.record(Phase.SERIALIZE, start);
+ * </pre>
+ */
+public class RunMetrics {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private long startMillis = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+	/** the duration of a finished run loaded with {@link #loadState(File)}, or -1 */
+	private double finishedSeconds = -1;
+	private final Map<Phase, Histogram> phases = new EnumMap<Phase, Histogram>(Phase.class);
+	private final Histogram usersPerPolicy = new Histogram();
+	private final AtomicLong nodes = new AtomicLong();
+	private final AtomicLong policies = new AtomicLong();
+	private final AtomicLong policyBytes = new AtomicLong();
+	private final AtomicLong skippedNodes = new AtomicLong();
+	private final AtomicLong unknownNodes = new AtomicLong();
+	private final AtomicLong failedNodes = new AtomicLong();
+	private final AtomicLong inheritedNodes = new AtomicLong();
+	private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+	private final Map<String, String> settings = new LinkedHashMap<String, String>();
+
+	public RunMetrics() {
+		for (Phase phase : Phase.values())
+			phases.put(phase, new Histogram());
+	}
+
+	/**
+	 * @return the start time of a phase
+	 */
+	public long startTimer() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the duration of a phase
+	 * @param phase the phase
+	 * @param startNanos the start time, as returned by {@link #startTimer()}
+	 * @return the end time, to be used as the start time of the next phase
+	 */
+	public long record(Phase phase, long startNanos) {
+		long now = System.nanoTime();
+		phases.get(phase).record(now - startNanos);
+		return now;
+	}
+
+	/**
+	 * @param phase a phase
+	 * @return the histogram of the durations of the phase, in nanoseconds
+	 */
+	public Histogram getPhase(Phase phase) {
+		return phases.get(phase);
+	}
+
+	/**
+	 * Counts a node handed to a policy generator
+	 */
+	public void countNode() {
+		nodes.incrementAndGet();
+	}
+
+	/**
+	 * Counts a generated policy
+	 * @param users the number of user names in the policy
+	 * @param bytes the size of the policy
+	 */
+	public void countPolicy(int users, int bytes) {
+		policies.incrementAndGet();
+		policyBytes.addAndGet(bytes);
+		usersPerPolicy.record(users);
+	}
+
+	/**
+	 * Counts a node that is skipped because it is not onsite
+	 */
+	public void countSkippedNode() {
+		skippedNodes.incrementAndGet();
+	}
+
+	/**
+	 * Counts a node that is not found in the corpusstructure
+	 */
+	public void countUnknownNode() {
+		unknownNodes.incrementAndGet();
+	}
+
+	/**
+	 * Counts a node whose policy could not be generated
+	 */
+	public void countFailedNode() {
+		failedNodes.incrementAndGet();
+	}
+
+	/**
+	 * Counts a node that inherits the policy of an ancestor, instead of
+	 * being handed to a policy generator
+	 */
+	public void countInheritedNode() {
+		nodes.incrementAndGet();
+		inheritedNodes.incrementAndGet();
+	}
+
+	/**
+	 * Sets an additional counter for the run report, e.g. the policy cache hits
+	 * @param name the name of the counter in the report
+	 * @param value the value
+	 */
+	public synchronized void setCounter(String name, long value) {
+		counters.put(name, value);
+	}
+
+	/**
+	 * Sets a setting of the run to include in the run report
+	 * @param name the name of the setting in the report
+	 * @param value the value
+	 */
+	public synchronized void setSetting(String name, Object value) {
+		settings.put(name, value == null ? null : value.toString());
+	}
+
+	public long getNodes() {
+		return nodes.get();
+	}
+
+	public long getPolicies() {
+		return policies.get();
+	}
+
+	public long getSkippedNodes() {
+		return skippedNodes.get();
+	}
+
+	public long getUnknownNodes() {
+		return unknownNodes.get();
+	}
+
+	public long getInheritedNodes() {
+		return inheritedNodes.get();
+	}
+
+	public long getFailedNodes() {
+		return failedNodes.get();
+	}
+
+	/**
+	 * @return the histogram of the number of user names per generated policy
+	 */
+	public Histogram getUsersPerPolicy() {
+		return usersPerPolicy;
+	}
+
+	/**
+	 * @return the number of seconds since the metrics were created
+	 */
+	public double getElapsedSeconds() {
+		if (finishedSeconds >= 0)
+			return finishedSeconds;
+		return (System.nanoTime() - startNanos) / 1e9;
+	}
+
+	/**
+	 * @return the number of nodes processed per second since the start
+	 */
+	public double getNodesPerSecond() {
+		double seconds = getElapsedSeconds();
+		return seconds > 0 ? nodes.get() / seconds : 0;
+	}
+
+	/**
+	 * Builds a progress line for the log
+	 * @param discoveredNodes the number of nodes found so far, see
+	 * {@link nl.mpi.ams2xacml.dao.LinkedNodeIterator#getDiscoveredNodes()}
+	 * @return the progress line
+	 */
+	public String getProgressLine(long discoveredNodes) {
+		long done = nodes.get();
+		double rate = getNodesPerSecond();
+		StringBuilder line = new StringBuilder("INF: Progress: ");
+		line.append(done).append('/').append(discoveredNodes).append(" nodes, ");
+		line.append(Math.round(rate)).append(" nodes/s, ");
+		line.append(skippedNodes.get()).append(" not onsite, ");
+		line.append(unknownNodes.get()).append(" unknown, ");
+		line.append(failedNodes.get()).append(" failed, ETA ");
+		if (rate > 0 && discoveredNodes >= done)
+			line.append(formatDuration(Math.round((discoveredNodes - done) / rate)));
+		else
+			line.append("unknown");
+		return line.toString();
+	}
+
+	private static String formatDuration(long seconds) {
+		return String.format("%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+	}
+
+	/**
+	 * Writes the run report: the settings, the counters, the throughput,
+	 * the latency percentiles of each {@link Phase} and the distribution of
+	 * the number of users per policy
+	 * @param reportFile the JSON file to write
+	 * @throws IOException
+	 */
+	public synchronized void writeReport(File reportFile) throws IOException {
+		SimpleDateFormat timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		timestamp.setTimeZone(TimeZone.getTimeZone("UTC"));
+		double seconds = getElapsedSeconds();
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(reportFile), UTF8));
+		try {
+			JsonWriter json = new JsonWriter(out);
+			json.beginObject(null);
+			json.field("start", timestamp.format(new Date(startMillis)));
+			json.field("end", timestamp.format(new Date(startMillis + Math.round(seconds * 1000))));
+			json.field("seconds", seconds);
+			json.beginObject("settings");
+			for (Map.Entry<String, String> setting : settings.entrySet())
+				json.field(setting.getKey(), setting.getValue());
+			json.endObject();
+			json.beginObject("counters");
+			json.field("nodes", nodes.get());
+			json.field("policies", policies.get());
+			json.field("policyBytes", policyBytes.get());
+			json.field("skippedNodes", skippedNodes.get());
+			json.field("unknownNodes", unknownNodes.get());
+			json.field("failedNodes", failedNodes.get());
+			json.field("inheritedNodes", inheritedNodes.get());
+			for (Map.Entry<String, Long> counter : counters.entrySet())
+				json.field(counter.getKey(), counter.getValue().longValue());
+			json.endObject();
+			json.field("nodesPerSecond", seconds > 0 ? nodes.get() / seconds : 0);
+			json.beginObject("phases");
+			for (Phase phase : Phase.values())
+				writeLatencies(json, phase.getReportName(), phases.get(phase));
+			json.endObject();
+			json.beginObject("usersPerPolicy");
+			json.field("count", usersPerPolicy.getCount());
+			json.field("mean", usersPerPolicy.getMean());
+			json.field("p50", usersPerPolicy.getPercentile(0.5));
+			json.field("p90", usersPerPolicy.getPercentile(0.9));
+			json.field("p99", usersPerPolicy.getPercentile(0.99));
+			json.field("max", usersPerPolicy.getMax());
+			json.endObject();
+			json.endObject();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the metrics file that belongs to an output directory or
+	 * archive: a file next to it, named after it
+	 * @param output the policies directory or archive
+	 * @return the metrics file
+	 */
+	public static File getMetricsFile(String output) {
+		File file = new File(output).getAbsoluteFile();
+		return new File(file.getParentFile(), file.getName() + ".metrics");
+	}
+
+	/**
+	 * Saves the complete metrics, including the histogram buckets, so that
+	 * the metrics of the shards of a run can be merged exactly. The file has
+	 * one tab separated line per value.
+	 * @param metricsFile the file to write
+	 * @throws IOException
+	 */
+	public synchronized void saveState(File metricsFile) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(metricsFile), UTF8));
+		try {
+			out.write("start\t" + startMillis + "\n");
+			out.write("seconds\t" + getElapsedSeconds() + "\n");
+			for (Map.Entry<String, String> setting : settings.entrySet()) {
+				if (setting.getValue() != null)
+					out.write("setting\t" + setting.getKey() + "\t" + setting.getValue().replace('\t', ' ').replace('\n', ' ') + "\n");
+			}
+			out.write("count\tnodes\t" + nodes.get() + "\n");
+			out.write("count\tpolicies\t" + policies.get() + "\n");
+			out.write("count\tpolicyBytes\t" + policyBytes.get() + "\n");
+			out.write("count\tskippedNodes\t" + skippedNodes.get() + "\n");
+			out.write("count\tunknownNodes\t" + unknownNodes.get() + "\n");
+			out.write("count\tfailedNodes\t" + failedNodes.get() + "\n");
+			out.write("count\tinheritedNodes\t" + inheritedNodes.get() + "\n");
+			for (Map.Entry<String, Long> counter : counters.entrySet())
+				out.write("counter\t" + counter.getKey() + "\t" + counter.getValue() + "\n");
+			for (Phase phase : Phase.values())
+				out.write("phase\t" + phase.name() + "\t" + phases.get(phase).toState() + "\n");
+			out.write("usersPerPolicy\t" + usersPerPolicy.toState() + "\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads metrics saved by {@link #saveState(File)}
+	 * @param metricsFile the file to read
+	 * @return the metrics of the finished run
+	 * @throws IOException if the file cannot be read or is not a metrics file
+	 */
+	public static RunMetrics loadState(File metricsFile) throws IOException {
+		RunMetrics metrics = new RunMetrics();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(metricsFile), UTF8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t", 3);
+				if (fields[0].equals("start"))
+					metrics.startMillis = Long.parseLong(fields[1]);
+				else if (fields[0].equals("seconds"))
+					metrics.finishedSeconds = Double.parseDouble(fields[1]);
+				else if (fields[0].equals("setting"))
+					metrics.settings.put(fields[1], fields[2]);
+				else if (fields[0].equals("count"))
+					metrics.getCount(fields[1]).set(Long.parseLong(fields[2]));
+				else if (fields[0].equals("counter"))
+					metrics.counters.put(fields[1], Long.parseLong(fields[2]));
+				else if (fields[0].equals("phase"))
+					metrics.phases.put(Phase.valueOf(fields[1]), Histogram.fromState(fields[2]));
+				else if (fields[0].equals("usersPerPolicy"))
+					metrics.usersPerPolicy.merge(Histogram.fromState(fields[1]));
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid metrics file " + metricsFile + ": " + e, e);
+		} finally {
+			in.close();
+		}
+		if (metrics.finishedSeconds < 0)
+			throw new IOException("Invalid metrics file " + metricsFile + ": no duration");
+		return metrics;
+	}
+
+	private AtomicLong getCount(String name) {
+		if (name.equals("nodes"))
+			return nodes;
+		if (name.equals("policies"))
+			return policies;
+		if (name.equals("policyBytes"))
+			return policyBytes;
+		if (name.equals("skippedNodes"))
+			return skippedNodes;
+		if (name.equals("unknownNodes"))
+			return unknownNodes;
+		if (name.equals("failedNodes"))
+			return failedNodes;
+		if (name.equals("inheritedNodes"))
+			return inheritedNodes;
+		throw new IllegalArgumentException("Unknown count " + name);
+	}
+
+	/**
+	 * Adds the metrics of another shard of the same run: the counters and
+	 * histograms are summed, the run lasts from the first start to the last
+	 * end. The settings of the first shard are kept.
+	 * @param other the finished metrics of the other shard
+	 */
+	public synchronized void merge(RunMetrics other) {
+		double end = startMillis / 1e3 + getElapsedSeconds();
+		double otherEnd = other.startMillis / 1e3 + other.getElapsedSeconds();
+		startMillis = Math.min(startMillis, other.startMillis);
+		finishedSeconds = Math.max(end, otherEnd) - startMillis / 1e3;
+		for (String name : new String[] { "nodes", "policies", "policyBytes", "skippedNodes", "unknownNodes", "failedNodes", "inheritedNodes" })
+			getCount(name).addAndGet(other.getCount(name).get());
+		for (Map.Entry<String, Long> counter : other.counters.entrySet()) {
+			Long value = counters.get(counter.getKey());
+			counters.put(counter.getKey(), (value != null ? value : 0) + counter.getValue());
+		}
+		for (Phase phase : Phase.values())
+			phases.get(phase).merge(other.phases.get(phase));
+		usersPerPolicy.merge(other.usersPerPolicy);
+	}
+
+	private static void writeLatencies(JsonWriter json, String name, Histogram histogram) throws IOException {
+		json.beginObject(name);
+		json.field("count", histogram.getCount());
+		json.field("totalMillis", histogram.getSum() / 1e6);
+		json.field("meanMicros", histogram.getMean() / 1e3);
+		json.field("p50Micros", histogram.getPercentile(0.5) / 1e3);
+		json.field("p90Micros", histogram.getPercentile(0.9) / 1e3);
+		json.field("p99Micros", histogram.getPercentile(0.99) / 1e3);
+		json.field("maxMicros", histogram.getMax() / 1e3);
+		json.endObject();
+	}
+}
@@ -0,0 +1,190 @@
+package nl.mpi.ams2xacml.sink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores the policies on writer threads of its own, so the conversion
+ * threads can go on with the next nodes while the policies are written.
+ * The policies are handed over through a bounded queue: {@link #write}
+ * blocks while the queue is full. Each writer thread takes the queued
+ * policies in groups, writes them to the target sink and then flushes it
+ * once per group. If a policy cannot be written, the next call to
+ * {@link #write} or {@link #close()} throws the error.
+ */
+public class AsyncPolicySink implements PolicySink {
+	private static final int MAX_GROUP_SIZE = 64;
+	private static final Policy END_OF_WORK = new Policy(null, null, null);
+
+	private final PolicySink sink;
+	private final BlockingQueue<Policy> queue;
+	private final List<Thread> writers = new ArrayList<Thread>();
+	private final AtomicInteger runningWriters = new AtomicInteger();
+	private final Object idleLock = new Object();
+	private int pendingPolicies = 0;
+	private volatile IOException failure;
+
+	private static class Policy {
+		final String handle;
+		final String name;
+		final byte[] policy;
+
+		Policy(String handle, String name, byte[] policy) {
+			this.handle = handle;
+			this.name = name;
+			this.policy = policy;
+		}
+	}
+
+	/**
+	 * Starts the writer threads
+	 * @param sink The sink that stores the policies, thread safe if more
+	 * than one writer thread is used
+	 * @param queueSize The maximum number of policies waiting to be written
+	 * @param writerThreads The number of writer threads
+	 */
+	public AsyncPolicySink(PolicySink sink, int queueSize, int writerThreads) {
+		this.sink = sink;
+		this.queue = new ArrayBlockingQueue<Policy>(queueSize);
+		for (int i = 0; i < writerThreads; i++) {
+			Thread writer = new Thread(new Runnable() {
+				public void run() {
+					try {
+						work();
+					} finally {
+						runningWriters.decrementAndGet();
+					}
+				}
+			}, "policy-writer-" + (i + 1));
+			writers.add(writer);
+		}
+		runningWriters.set(writers.size());
+		for (Thread writer : writers)
+			writer.start();
+	}
+
+	private void work() {
+		List<Policy> group = new ArrayList<Policy>(MAX_GROUP_SIZE);
+		boolean done = false;
+		while (!done) {
+			try {
+				group.add(queue.take());
+				queue.drainTo(group, MAX_GROUP_SIZE - 1);
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				for (Policy policy : group) {
+					if (policy == END_OF_WORK) {
+						done = true;
+					} else {
+						sink.write(policy.handle, policy.name, policy.policy);
+					}
+				}
+				sink.flush();
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+				System.err.println("ERR: Could not write policy: " + e);
+				// the other writers still need the end marker if it was in this group
+				if (group.contains(END_OF_WORK))
+					queue.offer(END_OF_WORK);
+				return;
+			} finally {
+				synchronized (idleLock) {
+					for (Policy policy : group) {
+						if (policy != END_OF_WORK)
+							pendingPolicies--;
+					}
+					idleLock.notifyAll();
+				}
+				group.clear();
+			}
+		}
+		// leave the end marker for the other writers; there is room for it
+		// since nothing is queued after it
+		queue.offer(END_OF_WORK);
+	}
+
+	/**
+	 * Queues a policy to be written, waiting while the queue is full
+	 * @return null, the path is only known once the policy is written
+	 */
+	public String write(String handle, String name, byte[] policy) throws IOException {
+		// fail at once rather than waiting for room that dead writers will not make
+		checkWriters();
+		Policy queued = new Policy(handle, name, policy);
+		synchronized (idleLock) {
+			pendingPolicies++;
+		}
+		try {
+			while (!queue.offer(queued, 1, TimeUnit.SECONDS)) {
+				checkWriters();
+			}
+		} catch (InterruptedException e) {
+			synchronized (idleLock) {
+				pendingPolicies--;
+			}
+			throw new IOException("Interrupted while queueing policy " + name, e);
+		}
+		checkWriters();
+		return null;
+	}
+
+	private void checkWriters() throws IOException {
+		if (failure != null)
+			throw new IOException("Writing the policies failed", failure);
+		if (runningWriters.get() == 0)
+			throw new IOException("All policy writer threads have stopped");
+	}
+
+	public boolean isStored(String name) {
+		return sink.isStored(name);
+	}
+
+	/**
+	 * Waits until the writer threads have written and flushed all the
+	 * queued policies
+	 * @throws IOException if a policy could not be written
+	 */
+	public void flush() throws IOException {
+		synchronized (idleLock) {
+			while (pendingPolicies > 0) {
+				checkWriters();
+				try {
+					idleLock.wait(1000);
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while waiting for the policy writers", e);
+				}
+			}
+		}
+		checkWriters();
+	}
+
+	/**
+	 * Lets the writer threads write the queued policies, waits for them to
+	 * stop and closes the target sink
+	 * @throws IOException if a policy could not be written
+	 */
+	public void close() throws IOException {
+		try {
+			while (!queue.offer(END_OF_WORK, 1, TimeUnit.SECONDS)) {
+				if (runningWriters.get() == 0)
+					break;
+			}
+			for (Thread writer : writers)
+				writer.join();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for the policy writers", e);
+		} finally {
+			sink.close();
+		}
+		if (failure != null)
+			throw new IOException("Writing the policies failed", failure);
+	}
+}
@@ -0,0 +1,114 @@
+package nl.mpi.ams2xacml.sink;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes every policy to its own '&lt;name&gt;.xml' file in a directory.
+ * A policy is first written to a temporary file, which is then renamed to
+ * the policy file, so readers never see a partially written policy. With
+ * sync enabled, every policy file is forced to disk before it is renamed,
+ * and the directory itself on every {@link #flush()}.
+ */
+public class DirectoryPolicySink implements PolicySink {
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final String policiesDir;
+	private final Set<File> createdDirs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+	private final Set<File> unsyncedDirs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+	private boolean sync = false;
+
+	/**
+	 * @param policiesDir The output directory, ending with a path separator
+	 */
+	public DirectoryPolicySink(String policiesDir) {
+		this.policiesDir = policiesDir;
+	}
+
+	/**
+	 * @param sync true to force the policy files and the directory to disk
+	 */
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	/**
+	 * @param name The policy name
+	 * @return the path of the policy file, relative to the policies directory
+	 */
+	public static String getPath(String name) {
+		return name + ".xml";
+	}
+
+	public String write(String handle, String name, byte[] policy) throws IOException {
+		String path = getPath(name);
+		File resultFile = new File(policiesDir + path);
+		File dir = resultFile.getAbsoluteFile().getParentFile();
+
+		if (!createdDirs.contains(dir)) {
+			// another conversion thread may create the directory at the same time
+			if(!dir.mkdirs() && !dir.isDirectory())
+				throw new IOException("Cannot create destination XACML directory " + dir);
+			createdDirs.add(dir);
+		}
+
+		// unique per thread, in case two nodes share a handle
+		File tmpFile = new File(dir, resultFile.getName() + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+		FileOutputStream out = new FileOutputStream(tmpFile);
+		try {
+			try {
+				out.write(policy);
+				if (sync)
+					out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			// e.g. a full disk, do not leave a partial policy behind
+			tmpFile.delete();
+			throw e;
+		}
+		try {
+			Files.move(tmpFile.toPath(), resultFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			tmpFile.delete();
+			throw e;
+		}
+		if (sync)
+			unsyncedDirs.add(dir);
+		return path;
+	}
+
+	public boolean isStored(String name) {
+		return new File(policiesDir + getPath(name)).isFile();
+	}
+
+	/**
+	 * With sync enabled, forces the renames of the policies written so far
+	 * to disk. The policy files themselves are synced when they are written.
+	 */
+	public void flush() throws IOException {
+		for (File dir : unsyncedDirs) {
+			unsyncedDirs.remove(dir);
+			FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		// every file is closed right after writing it
+		flush();
+	}
+}
@@ -0,0 +1,232 @@
+package nl.mpi.ams2xacml.sink;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.Base64;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Stores every policy directly as the POLICY datastream of its object in a
+ * Fedora Commons repository, through the REST API, instead of writing it
+ * to a file to be uploaded later. The PID of the object follows from the
+ * policy name, e.g. 'lat_1839_00_0000_0000_0001_2345_6' belongs to
+ * 'lat:1839_00_0000_0000_0001_2345_6'. The datastream is replaced with a
+ * PUT, or added with a POST if the object has no POLICY datastream yet.
+ * <p>At most <i>connections</i> requests are sent at once, over
+ * keep-alive connections, so the sink is usually wrapped in an
+ * {@link AsyncPolicySink} with as many writer threads, and
+ * {@link #setMaxIdleConnections(int)} is called before the first request. A request that
+ * fails on the network or with a server error is retried after a pause
+ * that doubles with every attempt; a request that gets no answer within
+ * the {@link #setTimeout(int) timeout} counts as failed on the network.
+ * A policy that still cannot be stored is
+ * recorded in the failure log, with its handle, PID and the error, and the
+ * conversion goes on.</p>
+ */
+public class FedoraPolicySink implements PolicySink {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String DATASTREAM_ID = "POLICY";
+	private static final long FIRST_RETRY_DELAY_MILLIS = 500;
+	/** The default connect and read timeout, in milliseconds */
+	public static final int DEFAULT_TIMEOUT_MILLIS = 60 * 1000;
+
+	private final String objectsUrl;
+	private final String authorization;
+	private final int retries;
+	private final Semaphore connections;
+	private final File failureFile;
+	private int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+	private Writer failureLog;
+	private int failures = 0;
+
+	/**
+	 * Returns the failure log that belongs to an output: a file next to it,
+	 * named after it
+	 * @param output the policies directory the other sinks would write to
+	 * @return the failure log
+	 */
+	public static File getFailureFile(String output) {
+		File file = new File(output).getAbsoluteFile();
+		return new File(file.getParentFile(), file.getName() + ".fedora-failures");
+	}
+
+	/**
+	 * @param fedoraUrl The base URL of the Fedora REST API, e.g. 'http://localhost:8080/fedora'
+	 * @param credentials '&lt;user&gt;:&lt;password&gt;' for HTTP basic authentication, or null
+	 * @param connections The maximum number of requests sent at once
+	 * @param retries The number of times a failed request is sent again
+	 * @param failureFile The file to record the policies that could not be
+	 * stored in, created when the first policy fails
+	 */
+	public FedoraPolicySink(String fedoraUrl, String credentials, int connections, int retries, File failureFile) {
+		this.objectsUrl = (fedoraUrl.endsWith("/") ? fedoraUrl : fedoraUrl + "/") + "objects/";
+		this.authorization = credentials != null
+				? "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(UTF8)) : null;
+		this.retries = retries;
+		this.connections = new Semaphore(connections);
+		this.failureFile = failureFile;
+	}
+
+	/**
+	 * Lets the JVM keep <i>connections</i> idle connections per server
+	 * alive, instead of 5, unless http.maxConnections is set already. The
+	 * JVM reads the property only once, when the first HTTP connection is
+	 * made, so this must be called before that.
+	 * @param connections The maximum number of requests sent at once
+	 */
+	public static void setMaxIdleConnections(int connections) {
+		if (System.getProperty("http.maxConnections") == null)
+			System.setProperty("http.maxConnections", String.valueOf(connections));
+	}
+
+	/**
+	 * Sets how long to wait for a connection to Fedora, and for every read
+	 * of a response, before the request counts as failed
+	 * @param timeoutMillis the timeout in milliseconds, at least 1
+	 */
+	public void setTimeout(int timeoutMillis) {
+		if (timeoutMillis < 1)
+			throw new IllegalArgumentException("timeout must be at least 1 ms");
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Returns the PID of the object a policy belongs to
+	 * @param name The policy name, possibly preceded by hash-prefix subdirectories
+	 * @return the PID, e.g. 'lat:1839_00_0000_0000_0001_2345_6'
+	 */
+	public static String getPid(String name) {
+		name = name.substring(name.lastIndexOf('/') + 1);
+		int separatorIdx = name.indexOf('_');
+		if (separatorIdx == -1)
+			return name;
+		return name.substring(0, separatorIdx) + ":" + name.substring(separatorIdx + 1);
+	}
+
+	/**
+	 * Stores the policy as the POLICY datastream, retrying failed requests
+	 * @return the PID and datastream ID, e.g. 'lat:1839_00_MEM_1/POLICY',
+	 * or null if the policy could not be stored and was recorded in the failure log
+	 */
+	public String write(String handle, String name, byte[] policy) throws IOException {
+		String pid = getPid(name);
+		String datastreamUrl = objectsUrl + URLEncoder.encode(pid, "UTF-8") + "/datastreams/" + DATASTREAM_ID;
+		long delay = FIRST_RETRY_DELAY_MILLIS;
+		for (int attempt = 0; ; attempt++) {
+			String error;
+			boolean retryable = true;
+			try {
+				int status = send("PUT", datastreamUrl + "?mimeType=text/xml", policy);
+				// modifyDatastream does not create the datastream
+				if (status == HttpURLConnection.HTTP_NOT_FOUND)
+					status = send("POST", datastreamUrl + "?controlGroup=X&mimeType=text/xml&dsLabel=XACML%20Policy", policy);
+				if (status >= 200 && status < 300)
+					return pid + "/" + DATASTREAM_ID;
+				error = "HTTP status " + status;
+				// only a server error, timeout or overload may go away
+				retryable = status >= 500 || status == 408 || status == 429;
+			} catch (IOException e) {
+				// including a SocketTimeoutException
+				error = String.valueOf(e);
+			}
+			if (!retryable || attempt >= retries) {
+				recordFailure(handle, pid, error);
+				return null;
+			}
+			System.err.println("WRN: Could not store the policy of " + pid + " (" + error + "), retrying in " + delay + " ms");
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while storing policy " + pid, e);
+			}
+			delay *= 2;
+		}
+	}
+
+	/**
+	 * Sends one request with the policy as body and reads the response
+	 * completely, so that the connection can be reused
+	 * @return the HTTP status
+	 */
+	private int send(String method, String url, byte[] policy) throws IOException {
+		try {
+			connections.acquire();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for a connection", e);
+		}
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+			connection.setRequestMethod(method);
+			connection.setConnectTimeout(timeoutMillis);
+			connection.setReadTimeout(timeoutMillis);
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "text/xml; charset=UTF-8");
+			if (authorization != null)
+				connection.setRequestProperty("Authorization", authorization);
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(policy);
+			} finally {
+				out.close();
+			}
+			int status = connection.getResponseCode();
+			InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if (in != null) {
+				try {
+					byte[] buffer = new byte[4096];
+					while (in.read(buffer) != -1)
+						;
+				} finally {
+					in.close();
+				}
+			}
+			return status;
+		} finally {
+			connections.release();
+		}
+	}
+
+	private synchronized void recordFailure(String handle, String pid, String error) throws IOException {
+		failures++;
+		System.err.println("ERR: Could not store the policy of " + pid + ": " + error);
+		if (failureLog == null)
+			failureLog = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(failureFile), UTF8));
+		failureLog.write(handle + "\t" + pid + "\t" + error.replace('\n', ' ').replace('\t', ' ') + "\n");
+		failureLog.flush();
+	}
+
+	/**
+	 * @return false, the datastreams are not checked before they are replaced
+	 */
+	public boolean isStored(String name) {
+		return false;
+	}
+
+	/**
+	 * Does nothing, every policy is stored when it is written
+	 */
+	public void flush() {
+	}
+
+	public synchronized void close() throws IOException {
+		if (failureLog != null)
+			failureLog.close();
+	}
+
+	/**
+	 * @return the number of policies that could not be stored
+	 */
+	public synchronized int getFailures() {
+		return failures;
+	}
+}
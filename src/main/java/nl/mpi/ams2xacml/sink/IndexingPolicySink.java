@@ -0,0 +1,80 @@
+package nl.mpi.ams2xacml.sink;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import nl.mpi.ams2xacml.metrics.JsonWriter;
+
+/**
+ * Passes the policies on to another {@link PolicySink} and appends a
+ * JSON line with the handle, path and size of each stored policy to an
+ * index file, written with a compact {@link JsonWriter}
+ */
+public class IndexingPolicySink implements PolicySink {
+	private final PolicySink sink;
+	private final Writer index;
+
+	/**
+	 * Returns the default index file of a policies directory or archive: a
+	 * file next to it, named after it
+	 * @param output the policies directory or archive
+	 * @return the index file
+	 */
+	public static File getIndexFile(String output) {
+		File file = new File(output).getAbsoluteFile();
+		return new File(file.getParentFile(), file.getName() + ".index.jsonl");
+	}
+
+	/**
+	 * @param sink The sink that stores the policies
+	 * @param indexFile The JSON lines file to append the index entries to
+	 * @throws IOException
+	 */
+	public IndexingPolicySink(PolicySink sink, File indexFile) throws IOException {
+		this.sink = sink;
+		this.index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), Charset.forName("UTF-8")));
+	}
+
+	/**
+	 * Stores the policy and, if it was stored, appends its index entry
+	 */
+	public String write(String handle, String name, byte[] policy) throws IOException {
+		String path = sink.write(handle, name, policy);
+		if (path == null)
+			return null;
+		synchronized (index) {
+			new JsonWriter(index, true).beginObject(null)
+					.field("handle", handle)
+					.field("path", path)
+					.field("bytes", policy.length)
+					.endObject();
+		}
+		return path;
+	}
+
+	public boolean isStored(String name) {
+		return sink.isStored(name);
+	}
+
+	public void flush() throws IOException {
+		sink.flush();
+		synchronized (index) {
+			index.flush();
+		}
+	}
+
+	public void close() throws IOException {
+		try {
+			sink.close();
+		} finally {
+			synchronized (index) {
+				index.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package nl.mpi.ams2xacml.sink;
+
+import java.io.IOException;
+
+import nl.mpi.ams2xacml.xacml.PolicyManifest;
+
+/**
+ * Passes only the policies that changed since the last run on to another
+ * {@link PolicySink}, and records a policy in the {@link PolicyManifest}
+ * once that sink has stored it. A policy that could not be stored is not
+ * recorded, so the next incremental run writes it again. When wrapped in
+ * an {@link AsyncPolicySink}, the policies are hashed and recorded on the
+ * writer threads.
+ */
+public class ManifestPolicySink implements PolicySink {
+	private final PolicySink sink;
+	private final PolicyManifest manifest;
+
+	/**
+	 * @param sink The sink that stores the policies
+	 * @param manifest The manifest of the policies written by earlier runs
+	 */
+	public ManifestPolicySink(PolicySink sink, PolicyManifest manifest) {
+		this.sink = sink;
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Stores the policy, unless the sink still has the same version of it
+	 * @return the path of the stored policy, or null if it was not stored
+	 */
+	public String write(String handle, String name, byte[] policy) throws IOException {
+		byte[] digest = PolicyManifest.digest(policy);
+		// only a directory keeps the policies of earlier runs
+		if (sink.isStored(name) && manifest.isUnchanged(name, digest))
+			return DirectoryPolicySink.getPath(name);
+		String path = sink.write(handle, name, policy);
+		if (path != null)
+			manifest.recordWritten(name, digest);
+		return path;
+	}
+
+	public boolean isStored(String name) {
+		return sink.isStored(name);
+	}
+
+	public void flush() throws IOException {
+		sink.flush();
+	}
+
+	public void close() throws IOException {
+		sink.close();
+	}
+}
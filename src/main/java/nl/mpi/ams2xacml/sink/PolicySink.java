@@ -0,0 +1,42 @@
+package nl.mpi.ams2xacml.sink;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * Destination of the generated XACML policies. Implementations must be
+ * thread safe, since one sink is shared by all conversion threads.
+ */
+public interface PolicySink extends Closeable, Flushable {
+
+	/**
+	 * Stores a serialized policy
+	 * @param handle The handle (PID) of the node the policy belongs to
+	 * @param name The policy name derived from the handle, e.g. 'lat_1839_00_0000_0000_0001_2345_6',
+	 * possibly preceded by hash-prefix subdirectories, e.g. '9c/87/lat_1839_00_0000_0000_0001_2345_6'
+	 * @param policy The serialized policy
+	 * @return the path of the stored policy, relative to the sink's
+	 * destination, or null if the policy is stored later by another thread,
+	 * or was not stored
+	 * @throws IOException
+	 */
+	String write(String handle, String name, byte[] policy) throws IOException;
+
+	/**
+	 * Tells whether a policy written by an earlier run is still available
+	 * at the sink's destination, so that an unchanged policy does not
+	 * need to be written again
+	 * @param name The policy name
+	 * @return true if the earlier version of the policy is still there
+	 */
+	boolean isStored(String name);
+
+	/**
+	 * Passes the policies written so far on to the storage, and, if the
+	 * sink is configured to do so, waits until they are on disk. Called
+	 * after every group of policies by an {@link AsyncPolicySink}.
+	 * @throws IOException
+	 */
+	void flush() throws IOException;
+}
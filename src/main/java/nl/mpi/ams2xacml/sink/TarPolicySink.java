@@ -0,0 +1,104 @@
+package nl.mpi.ams2xacml.sink;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes all policies as '&lt;name&gt;.xml' entries of a single (optionally
+ * gzipped) POSIX ustar archive
+ */
+public class TarPolicySink implements PolicySink {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int BLOCK_SIZE = 512;
+
+	private final OutputStream out;
+	private final byte[] header = new byte[BLOCK_SIZE];
+	private final long mtime = System.currentTimeMillis() / 1000;
+
+	/**
+	 * @param archive The tar file to create
+	 * @param gzip true to gzip the archive
+	 * @throws IOException
+	 */
+	public TarPolicySink(File archive, boolean gzip) throws IOException {
+		OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(archive), 1 << 16);
+		out = gzip ? new GZIPOutputStream(fileOut, 1 << 16) : fileOut;
+	}
+
+	public synchronized String write(String handle, String name, byte[] policy) throws IOException {
+		String path = name + ".xml";
+		writeHeader(path, policy.length);
+		out.write(policy);
+		int padding = (BLOCK_SIZE - policy.length % BLOCK_SIZE) % BLOCK_SIZE;
+		out.write(new byte[padding]);
+		return path;
+	}
+
+	private void writeHeader(String path, long size) throws IOException {
+		byte[] pathBytes = path.getBytes(ASCII);
+		Arrays.fill(header, (byte) 0);
+		if (pathBytes.length <= 100) {
+			System.arraycopy(pathBytes, 0, header, 0, pathBytes.length);
+		} else {
+			// split into the 155 byte prefix and 100 byte name fields
+			int split = path.lastIndexOf('/', 155);
+			if (split == -1 || pathBytes.length - split - 1 > 100)
+				throw new IOException("Path too long for a tar archive: " + path);
+			System.arraycopy(pathBytes, split + 1, header, 0, pathBytes.length - split - 1);
+			System.arraycopy(pathBytes, 0, header, 345, split);
+		}
+		writeOctal(0644, 100, 8);
+		writeOctal(0, 108, 8);
+		writeOctal(0, 116, 8);
+		writeOctal(size, 124, 12);
+		writeOctal(mtime, 136, 12);
+		header[156] = '0';
+		System.arraycopy("ustar\0".getBytes(ASCII), 0, header, 257, 6);
+		header[263] = '0';
+		header[264] = '0';
+
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		long checksum = 0;
+		for (byte b : header)
+			checksum += b & 0xFF;
+		writeOctal(checksum, 148, 7);
+		header[155] = ' ';
+		out.write(header);
+	}
+
+	/**
+	 * Writes <i>value</i> as a NUL terminated, zero padded octal number
+	 */
+	private void writeOctal(long value, int offset, int length) {
+		String octal = Long.toOctalString(value);
+		int digits = length - 1;
+		for (int i = 0; i < digits; i++) {
+			int idx = octal.length() - digits + i;
+			header[offset + i] = (byte) (idx < 0 ? '0' : octal.charAt(idx));
+		}
+		header[offset + digits] = 0;
+	}
+
+	/**
+	 * @return false, the archive only contains the policies of this run
+	 */
+	public boolean isStored(String name) {
+		return false;
+	}
+
+	public synchronized void flush() throws IOException {
+		out.flush();
+	}
+
+	public synchronized void close() throws IOException {
+		// end of archive: two empty blocks
+		out.write(new byte[2 * BLOCK_SIZE]);
+		out.close();
+	}
+}
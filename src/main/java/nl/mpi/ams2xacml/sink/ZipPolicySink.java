@@ -0,0 +1,46 @@
+package nl.mpi.ams2xacml.sink;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes all policies as '&lt;name&gt;.xml' entries of a single ZIP archive
+ */
+public class ZipPolicySink implements PolicySink {
+	private final ZipOutputStream zip;
+
+	/**
+	 * @param archive The ZIP file to create
+	 * @throws IOException
+	 */
+	public ZipPolicySink(File archive) throws IOException {
+		zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive), 1 << 16));
+	}
+
+	public synchronized String write(String handle, String name, byte[] policy) throws IOException {
+		String path = name + ".xml";
+		zip.putNextEntry(new ZipEntry(path));
+		zip.write(policy);
+		zip.closeEntry();
+		return path;
+	}
+
+	/**
+	 * @return false, the archive only contains the policies of this run
+	 */
+	public boolean isStored(String name) {
+		return false;
+	}
+
+	public synchronized void flush() throws IOException {
+		zip.flush();
+	}
+
+	public synchronized void close() throws IOException {
+		zip.close();
+	}
+}
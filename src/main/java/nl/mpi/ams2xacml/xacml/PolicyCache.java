@@ -0,0 +1,97 @@
+package nl.mpi.ams2xacml.xacml;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of serialized XACML policies, keyed
+ * by everything the content of a policy depends on: the ACL, the
+ * {@link PolicyRule rule} that is kept, the username format and the
+ * maximum number of users per group. The cache is shared by all the
+ * conversion threads.
+ */
+public class PolicyCache {
+	private final int maxEntries;
+	private final long maxBytes;
+	private final LinkedHashMap<String, byte[]> policies = new LinkedHashMap<String, byte[]>(256, 0.75f, true);
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param maxEntries the maximum number of cached policies
+	 * @param maxBytes the maximum total size of the cached policies
+	 */
+	public PolicyCache(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Builds the cache key of a policy
+	 * @param acl the ACL string, or the AccessInfo constant it stands for
+	 * @param rule the rule that is kept in the policy
+	 * @param usernameFormat 'keep', 'strip' or 'both'
+	 * @param maxUsersPerGroup the maximum number of users per group
+	 * @return the cache key
+	 */
+	public static String key(String acl, PolicyRule rule, String usernameFormat, int maxUsersPerGroup) {
+		return rule.name() + '\n' + usernameFormat + '\n' + maxUsersPerGroup + '\n' + acl;
+	}
+
+	/**
+	 * @param key the key built by {@link #key(String, PolicyRule, String, int)}
+	 * @return the cached policy, or null if it is not cached
+	 */
+	public synchronized byte[] get(String key) {
+		byte[] policy = policies.get(key);
+		if (policy == null)
+			misses++;
+		else
+			hits++;
+		return policy;
+	}
+
+	/**
+	 * Caches a policy, evicting the least recently used policies when
+	 * the cache is full. Policies larger than the byte limit are not cached.
+	 * @param key the key built by {@link #key(String, PolicyRule, String, int)}
+	 * @param policy the serialized policy
+	 */
+	public synchronized void put(String key, byte[] policy) {
+		if (policy.length > maxBytes || maxEntries < 1)
+			return;
+		byte[] previous = policies.put(key, policy);
+		if (previous != null)
+			bytes -= previous.length;
+		bytes += policy.length;
+		Iterator<Map.Entry<String, byte[]>> eldest = policies.entrySet().iterator();
+		while (policies.size() > maxEntries || bytes > maxBytes) {
+			bytes -= eldest.next().getValue().length;
+			eldest.remove();
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of cached policies
+	 */
+	public synchronized int size() {
+		return policies.size();
+	}
+
+	/**
+	 * @return the total size of the cached policies
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+}
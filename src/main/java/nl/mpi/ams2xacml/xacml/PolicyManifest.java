@@ -0,0 +1,283 @@
+package nl.mpi.ams2xacml.xacml;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+
+/**
+ * Remembers a hash of the content of every policy file written to a
+ * policies directory, so that an incremental run only rewrites the
+ * policies that changed. The manifest is a text file with one
+ * '&lt;policy name&gt; &lt;MD5 hex&gt;' line per policy.
+ * <p>A shard of a run reads the manifest of the policies directory, but
+ * saves only the policies it wrote or found unchanged to a manifest of its
+ * own, which is {@link #merge(File) merged} into the directory's manifest
+ * when all the shards are done.</p>
+ * <p>The names are kept in an open addressing hash table, with the two
+ * halves of each hash in a long array next to it, instead of a map of
+ * byte arrays, so that the manifest of millions of policies stays small.</p>
+ */
+public class PolicyManifest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final File manifestFile;
+	private String[] names = new String[1024];
+	/** the hash of names[i] is in digests[2 * i] and digests[2 * i + 1] */
+	private long[] digests = new long[2 * names.length];
+	private int size = 0;
+	/** the slots of the policies of this shard, or null to save all policies */
+	private BitSet shardPolicies;
+	private long added = 0;
+	private long changed = 0;
+	private long unchanged = 0;
+
+	private PolicyManifest(File manifestFile) {
+		this.manifestFile = manifestFile;
+	}
+
+	/**
+	 * Returns the manifest file that belongs to a policies directory: a
+	 * file next to the directory, named after it
+	 * @param policiesDir the policies directory
+	 * @return the manifest file
+	 */
+	public static File getManifestFile(String policiesDir) {
+		File dir = new File(policiesDir).getAbsoluteFile();
+		return new File(dir.getParentFile(), dir.getName() + ".manifest");
+	}
+
+	/**
+	 * Reads a manifest file, or starts an empty manifest if the file does
+	 * not exist yet
+	 * @param manifestFile the manifest file
+	 * @return the manifest
+	 * @throws IOException
+	 */
+	public static PolicyManifest load(File manifestFile) throws IOException {
+		PolicyManifest manifest = new PolicyManifest(manifestFile);
+		manifest.read(manifestFile);
+		return manifest;
+	}
+
+	/**
+	 * Reads the manifest of a policies directory for one shard of a run
+	 * @param manifestFile the manifest file of the policies directory
+	 * @param shardManifestFile the file to save the policies of the shard to
+	 * @return the manifest
+	 * @throws IOException
+	 */
+	public static PolicyManifest loadForShard(File manifestFile, File shardManifestFile) throws IOException {
+		PolicyManifest manifest = new PolicyManifest(shardManifestFile);
+		manifest.read(manifestFile);
+		manifest.shardPolicies = new BitSet();
+		return manifest;
+	}
+
+	private void read(File manifestFile) throws IOException {
+		if (!manifestFile.isFile())
+			return;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), UTF8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int separatorIdx = line.lastIndexOf(' ');
+				// a line without a valid hash is left out, so the policy is written again
+				if (separatorIdx == -1 || line.length() - separatorIdx - 1 != 32)
+					continue;
+				try {
+					put(line.substring(0, separatorIdx), Long.parseUnsignedLong(line.substring(separatorIdx + 1, separatorIdx + 17), 16),
+							Long.parseUnsignedLong(line.substring(separatorIdx + 17), 16));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Takes over the policies of the manifest of a shard
+	 * @param shardManifestFile the manifest saved by the shard
+	 * @throws IOException
+	 */
+	public synchronized void merge(File shardManifestFile) throws IOException {
+		read(shardManifestFile);
+	}
+
+	/**
+	 * @param policy a serialized policy
+	 * @return the hash of the policy, as stored in the manifest
+	 */
+	public static byte[] digest(byte[] policy) {
+		return MD5.get().digest(policy);
+	}
+
+	/**
+	 * Checks whether a policy has the same content as the last time it was
+	 * written. Unchanged policies are counted.
+	 * @param name the name of the policy file
+	 * @param digest the {@link #digest(byte[]) hash} of the policy
+	 * @return true if the policy was written before with the same content
+	 */
+	public synchronized boolean isUnchanged(String name, byte[] digest) {
+		int slot = find(name);
+		boolean same = names[slot] != null && digests[2 * slot] == high(digest) && digests[2 * slot + 1] == low(digest);
+		if (same) {
+			unchanged++;
+			if (shardPolicies != null)
+				shardPolicies.set(slot);
+		}
+		return same;
+	}
+
+	/**
+	 * Records that a policy was written, counting it as added or changed
+	 * @param name the name of the policy file
+	 * @param digest the {@link #digest(byte[]) hash} of the policy
+	 */
+	public synchronized void recordWritten(String name, byte[] digest) {
+		if (put(name, high(digest), low(digest)))
+			added++;
+		else
+			changed++;
+		if (shardPolicies != null)
+			shardPolicies.set(find(name));
+	}
+
+	/**
+	 * Returns the slot of a name: the slot it is in, or the empty slot it
+	 * would go in
+	 */
+	private int find(String name) {
+		int mask = names.length - 1;
+		int hash = name.hashCode();
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		while (names[slot] != null && !names[slot].equals(name))
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * Sets the hash of a policy
+	 * @return true if the policy was not in the manifest yet
+	 */
+	private boolean put(String name, long high, long low) {
+		int slot = find(name);
+		boolean added = names[slot] == null;
+		if (added) {
+			if (4 * (size + 1) > 3 * names.length) {
+				grow();
+				slot = find(name);
+			}
+			names[slot] = name;
+			size++;
+		}
+		digests[2 * slot] = high;
+		digests[2 * slot + 1] = low;
+		return added;
+	}
+
+	private void grow() {
+		String[] oldNames = names;
+		long[] oldDigests = digests;
+		BitSet oldShardPolicies = shardPolicies;
+		names = new String[2 * oldNames.length];
+		digests = new long[2 * names.length];
+		if (shardPolicies != null)
+			shardPolicies = new BitSet();
+		for (int i = 0; i < oldNames.length; i++) {
+			if (oldNames[i] == null)
+				continue;
+			int slot = find(oldNames[i]);
+			names[slot] = oldNames[i];
+			digests[2 * slot] = oldDigests[2 * i];
+			digests[2 * slot + 1] = oldDigests[2 * i + 1];
+			if (oldShardPolicies != null && oldShardPolicies.get(i))
+				shardPolicies.set(slot);
+		}
+	}
+
+	private static long high(byte[] digest) {
+		return toLong(digest, 0);
+	}
+
+	private static long low(byte[] digest) {
+		return toLong(digest, 8);
+	}
+
+	private static long toLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++)
+			value = (value << 8) | (bytes[i] & 0xFF);
+		return value;
+	}
+
+	/**
+	 * Writes the manifest to its file, replacing the previous version
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		File tmpFile = new File(manifestFile.getPath() + ".tmp");
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), UTF8));
+		try {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i] == null || (shardPolicies != null && !shardPolicies.get(i)))
+					continue;
+				out.write(names[i]);
+				out.write(' ');
+				out.write(toHex(digests[2 * i]));
+				out.write(toHex(digests[2 * i + 1]));
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmpFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public synchronized long getAdded() {
+		return added;
+	}
+
+	public synchronized long getChanged() {
+		return changed;
+	}
+
+	public synchronized long getUnchanged() {
+		return unchanged;
+	}
+
+	private static String toHex(long value) {
+		char[] chars = new char[16];
+		for (int i = 15; i >= 0; i--) {
+			chars[i] = HEX[(int) (value & 0xF)];
+			value >>>= 4;
+		}
+		return new String(chars);
+	}
+}
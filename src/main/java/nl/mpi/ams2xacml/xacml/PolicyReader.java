@@ -0,0 +1,95 @@
+package nl.mpi.ams2xacml.xacml;
+
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the access lists of a stored XACML policy with a streaming parser,
+ * without building a DOM: for every Rule, the AttributeValues of the bags
+ * that the subject attributes are compared with. The user names the loginId
+ * is compared with are returned as they are, the values of other subject
+ * attributes, such as the fedoraRole, as '&lt;AttributeId&gt;=&lt;value&gt;'.
+ * Like the template handler, a reader is not thread safe.
+ */
+public class PolicyReader {
+	private static final String LOGIN_ID = "urn:fedora:names:fedora:2.1:subject:loginId";
+
+	private final XMLInputFactory inputFactory;
+
+	public PolicyReader() {
+		inputFactory = XMLInputFactory.newInstance();
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+	}
+
+	/**
+	 * Reads the subjects that each rule of a policy applies to
+	 * @param in the serialized policy, not closed
+	 * @return the sorted subjects by RuleId, sorted by RuleId
+	 * @throws XMLStreamException if the policy is not well-formed XML
+	 */
+	public Map<String, Set<String>> readSubjects(InputStream in) throws XMLStreamException {
+		Map<String, Set<String>> subjects = new TreeMap<String, Set<String>>();
+		XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+		try {
+			Set<String> ruleSubjects = null;
+			// per open Apply element: the subject attribute it compares with, or ""
+			Deque<String> applies = new ArrayDeque<String>();
+			int bagDepth = -1;
+			String valuePrefix = null;
+			StringBuilder value = null;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					if (name.equals("Rule")) {
+						ruleSubjects = new TreeSet<String>();
+						subjects.put(reader.getAttributeValue(null, "RuleId"), ruleSubjects);
+					} else if (name.equals("Apply")) {
+						if (!applies.isEmpty() && applies.peek().length() > 0 && bagDepth == -1) {
+							bagDepth = applies.size() + 1;
+							valuePrefix = applies.peek().equals(LOGIN_ID) ? "" : applies.peek() + "=";
+						}
+						applies.push("");
+					} else if (name.equals("SubjectAttributeDesignator")) {
+						String attributeId = reader.getAttributeValue(null, "AttributeId");
+						if (!applies.isEmpty() && attributeId != null) {
+							applies.pop();
+							applies.push(attributeId);
+						}
+					} else if (name.equals("AttributeValue") && ruleSubjects != null && applies.size() == bagDepth) {
+						value = new StringBuilder(valuePrefix);
+					}
+				} else if (event == XMLStreamConstants.CHARACTERS && value != null) {
+					value.append(reader.getText());
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					String name = reader.getLocalName();
+					if (name.equals("AttributeValue") && value != null) {
+						ruleSubjects.add(value.toString());
+						value = null;
+					} else if (name.equals("Apply")) {
+						if (applies.size() == bagDepth)
+							bagDepth = -1;
+						applies.pop();
+					} else if (name.equals("Rule")) {
+						ruleSubjects = null;
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return subjects;
+	}
+}
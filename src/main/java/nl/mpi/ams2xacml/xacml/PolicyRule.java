@@ -0,0 +1,25 @@
+package nl.mpi.ams2xacml.xacml;
+
+/**
+ * The rule of the template policy that restricts access to a node. The
+ * generated policy keeps this rule and removes the other one.
+ */
+public enum PolicyRule {
+	/** Write rights: deny the management functions on the object */
+	MANAGE_OBJECT("deny-management-functions"),
+	/** Read rights: deny dissemination of the object's OBJ data stream */
+	READ_OBJ_DATASTREAM("deny-dsid-mime");
+
+	private final String ruleId;
+
+	private PolicyRule(String ruleId) {
+		this.ruleId = ruleId;
+	}
+
+	/**
+	 * @return the RuleId of the rule in the template policy
+	 */
+	public String getRuleId() {
+		return ruleId;
+	}
+}
@@ -0,0 +1,142 @@
+package nl.mpi.ams2xacml.xacml;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The shared user groups of a run: instead of listing the users of a large
+ * ACL in every policy, the policies grant access to a group, as a fedoraRole
+ * value, and the members of each distinct group are written once to the
+ * group file. The ID of a group is derived from its sorted user names, so
+ * it stays the same between runs as long as the users do. The group file
+ * has the layout of Fedora's fedora-users.xml, without passwords: for each
+ * user the fedoraRole values of the groups the user is a member of.
+ * <p>The groups are shared by all the conversion threads.</p>
+ */
+public class UserGroups {
+	public static final String GROUP_ROLE_PREFIX = "acl-";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final int minUsers;
+	private final Map<List<String>, String> groupIds = new HashMap<List<String>, String>();
+	private final Map<String, List<String>> members = new TreeMap<String, List<String>>();
+	/** the number of groups in the group file written last */
+	private int writtenGroups = 0;
+
+	/**
+	 * @param minUsers the minimum number of user names of a list that is
+	 * referenced as a group instead of being written into the policy
+	 */
+	public UserGroups(int minUsers) {
+		this.minUsers = minUsers;
+	}
+
+	/**
+	 * @param userNames the user names of a policy
+	 * @return true if the policy should reference the users as a group
+	 */
+	public boolean isGroup(List<String> userNames) {
+		return userNames.size() >= minUsers;
+	}
+
+	/**
+	 * Returns the ID of the group of users, registering the group if it is
+	 * new
+	 * @param userNames the user names, as they should appear in the group file
+	 * @return the group ID, used as fedoraRole value in the policies
+	 */
+	public synchronized String getGroupId(List<String> userNames) {
+		String groupId = groupIds.get(userNames);
+		if (groupId == null) {
+			List<String> sortedNames = new ArrayList<String>(new TreeSet<String>(userNames));
+			StringBuilder joined = new StringBuilder();
+			for (String userName : sortedNames)
+				joined.append(userName).append('\n');
+			byte[] hash = PolicyManifest.digest(joined.toString().getBytes(UTF8));
+			StringBuilder id = new StringBuilder(GROUP_ROLE_PREFIX);
+			for (int i = 0; i < 8; i++)
+				id.append(HEX[(hash[i] >> 4) & 0xF]).append(HEX[hash[i] & 0xF]);
+			groupId = id.toString();
+			groupIds.put(new ArrayList<String>(userNames), groupId);
+			members.put(groupId, Collections.unmodifiableList(sortedNames));
+		}
+		return groupId;
+	}
+
+	/**
+	 * @return the number of distinct groups
+	 */
+	public synchronized int size() {
+		return members.size();
+	}
+
+	/**
+	 * Writes the group file if groups were registered since it was written
+	 * last, e.g. before a policy that references a new group is handed out
+	 * @param groupFile the file to write the users and their groups to
+	 * @throws IOException
+	 */
+	public synchronized void writeIfChanged(File groupFile) throws IOException {
+		if (members.size() != writtenGroups)
+			write(groupFile);
+	}
+
+	/**
+	 * Writes the group file, replacing the previous version
+	 * @param groupFile the file to write the users and their groups to
+	 * @throws IOException
+	 */
+	public synchronized void write(File groupFile) throws IOException {
+		Map<String, Set<String>> groupsByUser = new TreeMap<String, Set<String>>();
+		for (Map.Entry<String, List<String>> group : members.entrySet()) {
+			for (String userName : group.getValue()) {
+				Set<String> userGroups = groupsByUser.get(userName);
+				if (userGroups == null) {
+					userGroups = new TreeSet<String>();
+					groupsByUser.put(userName, userGroups);
+				}
+				userGroups.add(group.getKey());
+			}
+		}
+		File tmpFile = new File(groupFile.getPath() + ".tmp");
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), UTF8));
+		try {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			out.write("<users>\n");
+			for (Map.Entry<String, Set<String>> user : groupsByUser.entrySet()) {
+				out.write("  <user name=\"" + escape(user.getKey()) + "\">\n");
+				out.write("    <attribute name=\"fedoraRole\">\n");
+				for (String groupId : user.getValue())
+					out.write("      <value>" + groupId + "</value>\n");
+				out.write("    </attribute>\n");
+				out.write("  </user>\n");
+			}
+			out.write("</users>\n");
+		} finally {
+			out.close();
+		}
+		Files.move(tmpFile.toPath(), groupFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		writtenGroups = members.size();
+	}
+
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+}
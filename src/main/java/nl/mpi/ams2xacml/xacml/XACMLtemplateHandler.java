@@ -1,45 +1,147 @@
 package nl.mpi.ams2xacml.xacml;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
 
 import nl.mpi.ams2xacml.conversion.CSrights2xacml;
+import nl.mpi.ams2xacml.dao.ParsedAcl;
+import nl.mpi.ams2xacml.sink.DirectoryPolicySink;
+import nl.mpi.ams2xacml.sink.PolicySink;
 import nl.mpi.corpusstructure.AccessInfo;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
 /**
- * A class to do generate XACML documents and write them to disk.
+ * A class to do generate XACML documents and store them in a {@link PolicySink}.
  * This class uses the defaultPolicy.xacml file as a template to
  * generate and manipulate new XACML policy files
  *
  * @author André Moreira
  */
 public class XACMLtemplateHandler {
+	public static final String DEFAULT_POLICIES_DIR = "generatedPolicies/";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
 	private int maxUsersPerGroup = -1;
-	private String policiesDir = "generatedPolicies/";
+	private int hashDirLevels = 0;
+	private PolicySink policySink = new DirectoryPolicySink(DEFAULT_POLICIES_DIR);
 	private Document templateXACMLdocument;
 	private Document workingXACMLdocument;
+
+	private final XPathExpression templateReadObjDSXPath;
+	private final XPathExpression templateReadObjDSRuleXPath;
+	private final XPathExpression templateManageObjXPath;
+	private final XPathExpression templateManageObjRuleXPath;
+	private final XPathExpression templateReadObjDSRoleXPath;
+	private final XPathExpression templateManageObjRoleXPath;
 	
 	public XACMLtemplateHandler () throws Exception {
 		DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
 		DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
 		templateXACMLdocument = docBuilder.parse(CSrights2xacml.class.getResourceAsStream("/defaultPolicy.xml"));
+
+		// compiled per handler, XPath objects are not thread safe
+		XPathFactory xPathfactory = XPathFactory.newInstance();
+		XPath xpath = xPathfactory.newXPath();
+
+		templateReadObjDSXPath = xpath.compile("/Policy/Rule[@RuleId='deny-dsid-mime']/Condition"
+				+ "//SubjectAttributeDesignator[@AttributeId='urn:fedora:names:fedora:2.1:subject:loginId']"
+				+ "/following-sibling::node()/AttributeValue[1]");
+
+		templateReadObjDSRuleXPath = xpath.compile("/Policy/Rule[@RuleId='deny-dsid-mime']");
+
+		templateManageObjXPath = xpath.compile("/Policy/Rule[@RuleId='deny-management-functions']/Condition"
+				+ "//SubjectAttributeDesignator[@AttributeId='urn:fedora:names:fedora:2.1:subject:loginId']"
+				+ "/following-sibling::node()/AttributeValue[1]");
+
+		templateManageObjRuleXPath = xpath.compile("/Policy/Rule[@RuleId='deny-management-functions']");
+
+		templateReadObjDSRoleXPath = xpath.compile("/Policy/Rule[@RuleId='deny-dsid-mime']/Condition"
+				+ "//SubjectAttributeDesignator[@AttributeId='fedoraRole']"
+				+ "/following-sibling::node()/AttributeValue[1]");
+
+		templateManageObjRoleXPath = xpath.compile("/Policy/Rule[@RuleId='deny-management-functions']/Condition"
+				+ "//SubjectAttributeDesignator[@AttributeId='fedoraRole']"
+				+ "/following-sibling::node()/AttributeValue[1]");
 	}
 	
+	/**
+	 * Resets the working XACML policy {@link org.w3c.dom.Document Document}
+	 * and turns it into the policy for the given rights: the <i>rule</i> is
+	 * kept and gets the <i>users</i>, the other rule is removed
+	 * @param rule The rule that restricts access to the node
+	 * @param users The list of rights as returned by CorpusStructureDAO: Either
+	 * one AccessInfo constant or an encoded string (first) followed by 1 or
+	 * more user names
+	 * @param usernameFormat 'keep', 'strip' or 'both'
+	 * @throws XPathExpressionException
+	 */
+	public void generateXACMLDocument(PolicyRule rule, List<String> users, String usernameFormat) throws XPathExpressionException {
+		generateXACMLDocument(rule, getPolicyUserNames(users, usernameFormat));
+	}
+
+	/**
+	 * Resets the working XACML policy {@link org.w3c.dom.Document Document}
+	 * and adds the given <i>userNames</i> to the <i>rule</i>, removing the
+	 * other rule
+	 * @param rule The rule that restricts access to the node
+	 * @param userNames The user names to add, as they should appear in the policy
+	 * @throws XPathExpressionException
+	 */
+	public void generateXACMLDocument(PolicyRule rule, List<String> userNames) throws XPathExpressionException {
+		generateXACMLDocument(rule, userNames, Collections.<String>emptyList());
+	}
+
+	/**
+	 * Resets the working XACML policy {@link org.w3c.dom.Document Document}
+	 * and adds the given <i>userNames</i> and <i>roleNames</i> to the
+	 * <i>rule</i>, removing the other rule
+	 * @param rule The rule that restricts access to the node
+	 * @param userNames The user names to add, as they should appear in the policy
+	 * @param roleNames The fedoraRole values to add after those of the template
+	 * @throws XPathExpressionException
+	 */
+	public void generateXACMLDocument(PolicyRule rule, List<String> userNames, List<String> roleNames) throws XPathExpressionException {
+		resetXACMLtemplateDocument();
+		Node templateNode;
+		Node roleTemplateNode;
+		Node nodeToRemove;
+		if (rule == PolicyRule.MANAGE_OBJECT) {
+			templateNode = getXPathTemplateNode(templateManageObjXPath);
+			roleTemplateNode = getXPathTemplateNode(templateManageObjRoleXPath);
+			nodeToRemove = getXPathTemplateNode(templateReadObjDSRuleXPath);
+		} else {
+			templateNode = getXPathTemplateNode(templateReadObjDSXPath);
+			roleTemplateNode = getXPathTemplateNode(templateReadObjDSRoleXPath);
+			nodeToRemove = getXPathTemplateNode(templateManageObjRuleXPath);
+		}
+		for (String userName : userNames)
+			addNewUserNode(templateNode, userName);
+		for (String roleName : roleNames)
+			addNewUserNode(roleTemplateNode, roleName);
+		nodeToRemove.getParentNode().removeChild(nodeToRemove);
+	}
+
 	/**
 	 * Given a list of <i>users</i>, generates a new <i>templateNode</i> in the
 	 * template policy {@link org.w3c.dom.Document Document} for each of them 
@@ -51,28 +153,50 @@ public class XACMLtemplateHandler {
 	 * the template policy file
 	 */
 	public void generateXACMLAccessList(List<String> users, Node templateNode, Node nodeToRemove, String usernameFormat) {
+		for (String userName : getPolicyUserNames(users, usernameFormat))
+			addNewUserNode(templateNode, userName);
+
+		nodeToRemove.getParentNode().removeChild(nodeToRemove);
+	}
+
+	/**
+	 * Returns the user names that go into the policy for the given rights
+	 * @param users The list of rights as returned by CorpusStructureDAO
+	 * @param usernameFormat 'keep', 'strip' or 'both'
+	 * @return the user names, in the order they appear in the policy. The
+	 * list must not be modified.
+	 */
+	public List<String> getPolicyUserNames(List<String> users, String usernameFormat) {
+		if (users instanceof ParsedAcl) {
+			// the user names of each format are computed when the ACL is parsed
+			ParsedAcl acl = (ParsedAcl) users;
+			if (acl.getUserCount() > 0 && (maxUsersPerGroup == -1 || acl.getUserCount() < maxUsersPerGroup))
+				return acl.getUserNames(usernameFormat);
+		}
+		List<String> userNames = new ArrayList<String>();
 		if (users.size() > 1) {
-			users.remove(0);
-			if (maxUsersPerGroup == -1 || users.size() < maxUsersPerGroup) {
-				for (String user : users) {
-					if (usernameFormat.equals("strip")) {
-						user = user.substring(0, user.indexOf("@"));
-					} else if (usernameFormat.equals("both")) {
-						String userAlternativeFormat = user.substring(0, user.indexOf("@"));
-						addNewUserNode(templateNode, userAlternativeFormat);
+			// the first item is the encoded ACL string
+			List<String> aclUsers = users.subList(1, users.size());
+			if (maxUsersPerGroup == -1 || aclUsers.size() < maxUsersPerGroup) {
+				for (String user : aclUsers) {
+					int atIdx = user.indexOf("@");
+					if (usernameFormat.equals("strip") && atIdx != -1) {
+						user = user.substring(0, atIdx);
+					} else if (usernameFormat.equals("both") && atIdx != -1) {
+						String userAlternativeFormat = user.substring(0, atIdx);
+						userNames.add(userAlternativeFormat);
 					}
-					addNewUserNode(templateNode, user);
+					userNames.add(user);
 				}
 			} else {
-				addNewUserNode(templateNode, "authenticated");
+				userNames.add("authenticated");
 			}
 		} else if (users.get(0) == AccessInfo.EVERYBODY) {
-			addNewUserNode(templateNode, "anonymous");
+			userNames.add("anonymous");
 		} else if (users.get(0) == AccessInfo.ALL_AUTH) {
-			addNewUserNode(templateNode, "authenticated");
+			userNames.add("authenticated");
 		}
-
-		nodeToRemove.getParentNode().removeChild(nodeToRemove);
+		return userNames;
 	}
 
 	private void addNewUserNode(Node templateNode, String userName) {
@@ -82,40 +206,85 @@ public class XACMLtemplateHandler {
 	}
 	
 	/**
-	 * Stores the XACML {@link org.w3c.dom.Document Document} passed
-	 * in the <i>doc</i> parameter, on a file named after the <i>handle</i> parameter
-	 * inside the specified policiesDir
-	 * @param doc The document to save
+	 * Stores the XACML {@link org.w3c.dom.Document Document} generated
+	 * last in the {@link PolicySink}, named after the <i>handle</i> parameter
 	 * @param handle The handle to name the file after
 	 */
 	public void storeXACMLfile(String handle) throws Exception {
-            
-                System.out.println("writing XACML for Handle/NodeID: "+handle);
-            
+		storeXACMLfile(handle, serializeXACMLdocument());
+	}
+
+	/**
+	 * Stores an already serialized XACML policy in the {@link PolicySink},
+	 * named after the <i>handle</i> parameter
+	 * @param handle The handle to name the file after
+	 * @param policy The serialized policy
+	 * @return the path of the stored policy, or null if it is stored later
+	 * by another thread, or could not be stored
+	 */
+	public String storeXACMLfile(String handle, byte[] policy) throws Exception {
+		String name = getPolicyPath(getPolicyName(handle), hashDirLevels);
+		return policySink.write(handle, name, policy);
+	}
+
+	/**
+	 * Returns the name of the policy of a node, which is derived from its
+	 * handle, e.g. 'hdl:1839/00-0000-0000-0001-2345-6' becomes
+	 * 'lat_1839_00_0000_0000_0001_2345_6'
+	 * @param handle The handle of the node
+	 * @return the policy name
+	 */
+	public static String getPolicyName(String handle) {
 		int partIdentifierIdx = handle.indexOf("@");
 		
 		if (partIdentifierIdx != -1)
 			handle = handle.substring(0, partIdentifierIdx);
-		handle = handle.replaceAll("[^a-zA-Z0-9]", "_").replace("hdl_", "lat_");
-
-		File resultFile = new File(policiesDir + handle + ".xml");
+		return handle.replaceAll("[^a-zA-Z0-9]", "_").replace("hdl_", "lat_");
+	}
 
-		if(!resultFile.getParentFile().exists() && !resultFile.getParentFile().mkdirs()) {
-			System.err.println("Cannot create destination XACML directory!");
-			return;
-		}
+	/**
+	 * Returns the path of a policy in a tree of hash-prefix subdirectories:
+	 * every level is named after the next byte, in hex, of the MD5 hash of
+	 * the UTF-8 encoded policy name, e.g. with 2 levels 'lat_1839_00_MEM_1'
+	 * becomes '21/e1/lat_1839_00_MEM_1'
+	 * @param name The policy name
+	 * @param levels The number of subdirectory levels, 0 for none
+	 * @return the policy path, without extension
+	 */
+	public static String getPolicyPath(String name, int levels) {
+		if (levels <= 0)
+			return name;
+		byte[] hash = PolicyManifest.digest(name.getBytes(UTF8));
+		StringBuilder path = new StringBuilder(levels * 3 + name.length());
+		for (int i = 0; i < levels; i++)
+			path.append(HEX[(hash[i] >> 4) & 0xF]).append(HEX[hash[i] & 0xF]).append('/');
+		return path.append(name).toString();
+	}
 
+	/**
+	 * Serializes the working XACML policy {@link org.w3c.dom.Document Document}
+	 * @return the policy as UTF-8 encoded bytes
+	 * @throws TransformerException
+	 */
+	public byte[] serializeXACMLdocument() throws TransformerException {
 		TransformerFactory transformerFactory = TransformerFactory.newInstance();
 		Transformer transformer = transformerFactory.newTransformer();
 		DOMSource source = new DOMSource(workingXACMLdocument);
 
 		transformer.setOutputProperty(OutputKeys.INDENT, "yes");
 		transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-                
-                System.out.println("writing XACML to: "+resultFile);
 
-		StreamResult result =  new StreamResult(new FileOutputStream(resultFile));
-		transformer.transform(source, result);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		transformer.transform(source, new StreamResult(out));
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return the maximum number of users within the same XACML authorization
+	 * list, or -1 if lists are never collapsed
+	 */
+	public int getMaxUsersPerGroup() {
+		return maxUsersPerGroup;
 	}
 
 	/**
@@ -128,12 +297,30 @@ public class XACMLtemplateHandler {
 		this.maxUsersPerGroup = xacmlMaxUsers;
 	}
 	
+	/**
+	 * Spreads the policies over a tree of hash-prefix subdirectories, see
+	 * {@link #getPolicyPath(String, int)}, instead of storing them all in
+	 * one directory
+	 * @param hashDirLevels The number of subdirectory levels, 0 for none
+	 */
+	public void setHashDirLevels(int hashDirLevels) {
+		this.hashDirLevels = hashDirLevels;
+	}
+
 	/**
 	 * Sets the output directory for the generated XACML files
 	 * @param directory The output directory
 	 */
 	public void setPoliciesDir(String directory) {
-		this.policiesDir = directory;
+		this.policySink = new DirectoryPolicySink(directory);
+	}
+
+	/**
+	 * Sets where the generated XACML policies are stored
+	 * @param policySink The sink to store the policies in
+	 */
+	public void setPolicySink(PolicySink policySink) {
+		this.policySink = policySink;
 	}
 	
 	/**
@@ -0,0 +1,187 @@
+package nl.mpi.ams2xacml.xacml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders XACML policies without building a DOM per policy. For each
+ * {@link PolicyRule} the serialized template is split once, with the DOM
+ * of an {@link XACMLtemplateHandler}, into the bytes before and after the
+ * user list and the bytes around a single user AttributeValue. Rendering
+ * a policy then only writes these segments with the escaped user names in
+ * between. The output is the same, byte for byte, as the one of
+ * {@link XACMLtemplateHandler#serializeXACMLdocument()}; this is checked
+ * when the splicer is created.
+ * <p>Like the handler it is built on, a splicer is not thread safe.</p>
+ */
+public class XACMLtemplateSplicer {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String USER_PLACEHOLDER = "xacml-template-splicer-user";
+	private static final List<String> CHECK_USER_NAMES = Arrays.asList("a&b<c>d", "élève@mpi.nl", "q\"u'o te");
+
+	private final XACMLtemplateHandler xacmlHandler;
+	private final String usernameFormat;
+	private final Map<PolicyRule, Segments> segments = new EnumMap<PolicyRule, Segments>(PolicyRule.class);
+
+	/**
+	 * The template of one rule variant, split around the user list
+	 */
+	private static class Segments {
+		byte[] head;
+		byte[] userPrefix;
+		byte[] userSuffix;
+		byte[] tail;
+	}
+
+	/**
+	 * Splits the template of <i>xacmlHandler</i> for each {@link PolicyRule}
+	 * @param xacmlHandler the handler used to split the template and to
+	 * render policies with user names that cannot be spliced
+	 * @param usernameFormat 'keep', 'strip' or 'both'
+	 * @throws Exception
+	 * @throws IllegalStateException if the spliced output differs from the
+	 * output of the DOM
+	 */
+	public XACMLtemplateSplicer(XACMLtemplateHandler xacmlHandler, String usernameFormat) throws Exception {
+		this.xacmlHandler = xacmlHandler;
+		this.usernameFormat = usernameFormat;
+		for (PolicyRule rule : PolicyRule.values()) {
+			segments.put(rule, splitTemplate(rule));
+			xacmlHandler.generateXACMLDocument(rule, CHECK_USER_NAMES);
+			byte[] expected = xacmlHandler.serializeXACMLdocument();
+			ByteArrayOutputStream spliced = new ByteArrayOutputStream(expected.length);
+			writePolicy(rule, CHECK_USER_NAMES, spliced);
+			if (!Arrays.equals(expected, spliced.toByteArray()))
+				throw new IllegalStateException("Spliced " + rule.getRuleId() + " policy differs from the XACML template output");
+		}
+	}
+
+	private Segments splitTemplate(PolicyRule rule) throws Exception {
+		xacmlHandler.generateXACMLDocument(rule, Collections.<String>emptyList());
+		byte[] empty = xacmlHandler.serializeXACMLdocument();
+		xacmlHandler.generateXACMLDocument(rule, Collections.singletonList(USER_PLACEHOLDER));
+		byte[] single = xacmlHandler.serializeXACMLdocument();
+
+		// the single user policy is the empty one with one user element inserted
+		int prefix = 0;
+		while (prefix < empty.length && empty[prefix] == single[prefix])
+			prefix++;
+		int suffix = 0;
+		while (suffix < empty.length - prefix && empty[empty.length - 1 - suffix] == single[single.length - 1 - suffix])
+			suffix++;
+		byte[] userElement = Arrays.copyOfRange(single, prefix, single.length - suffix);
+		int placeholderIdx = indexOf(userElement, USER_PLACEHOLDER.getBytes(UTF8));
+		if (placeholderIdx == -1)
+			throw new IllegalStateException("Cannot find the user list of the " + rule.getRuleId() + " rule in the XACML template");
+
+		Segments ruleSegments = new Segments();
+		ruleSegments.head = Arrays.copyOfRange(empty, 0, prefix);
+		ruleSegments.tail = Arrays.copyOfRange(empty, prefix, empty.length);
+		ruleSegments.userPrefix = Arrays.copyOfRange(userElement, 0, placeholderIdx);
+		ruleSegments.userSuffix = Arrays.copyOfRange(userElement, placeholderIdx + USER_PLACEHOLDER.length(), userElement.length);
+		return ruleSegments;
+	}
+
+	/**
+	 * Renders the policy for the given rights
+	 * @param rule The rule that restricts access to the node
+	 * @param users The list of rights as returned by CorpusStructureDAO
+	 * @return the policy as UTF-8 encoded bytes
+	 * @throws Exception
+	 */
+	public byte[] render(PolicyRule rule, List<String> users) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		render(rule, users, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Renders the policy for the given rights to <i>out</i>
+	 * @param rule The rule that restricts access to the node
+	 * @param users The list of rights as returned by CorpusStructureDAO
+	 * @param out The stream to write the UTF-8 encoded policy to
+	 * @throws Exception
+	 */
+	public void render(PolicyRule rule, List<String> users, OutputStream out) throws Exception {
+		List<String> userNames = xacmlHandler.getPolicyUserNames(users, usernameFormat);
+		for (String userName : userNames) {
+			if (!canSplice(userName)) {
+				// let the serializer decide how to escape unusual characters
+				xacmlHandler.generateXACMLDocument(rule, userNames);
+				out.write(xacmlHandler.serializeXACMLdocument());
+				return;
+			}
+		}
+		writePolicy(rule, userNames, out);
+	}
+
+	private void writePolicy(PolicyRule rule, List<String> userNames, OutputStream out) throws IOException {
+		Segments ruleSegments = segments.get(rule);
+		out.write(ruleSegments.head);
+		for (String userName : userNames) {
+			out.write(ruleSegments.userPrefix);
+			out.write(escape(userName).getBytes(UTF8));
+			out.write(ruleSegments.userSuffix);
+		}
+		out.write(ruleSegments.tail);
+	}
+
+	/**
+	 * @return true if all characters of <i>userName</i> are written either
+	 * as is or as one of the predefined entities by the serializer
+	 */
+	private static boolean canSplice(String userName) {
+		for (int i = 0; i < userName.length(); i++) {
+			char c = userName.charAt(i);
+			if (c < 0x20 || (c >= 0x7F && c < 0xA0) || Character.isSurrogate(c) || c == 0x2028 || c >= 0xFFFE)
+				return false;
+		}
+		return true;
+	}
+
+	private static String escape(String text) {
+		StringBuilder escaped = null;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			String entity;
+			if (c == '&')
+				entity = "&amp;";
+			else if (c == '<')
+				entity = "&lt;";
+			else if (c == '>')
+				entity = "&gt;";
+			else
+				entity = null;
+			if (entity != null && escaped == null) {
+				escaped = new StringBuilder(text.length() + 8);
+				escaped.append(text, 0, i);
+			}
+			if (escaped != null) {
+				if (entity != null)
+					escaped.append(entity);
+				else
+					escaped.append(c);
+			}
+		}
+		return escaped != null ? escaped.toString() : text;
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern) {
+		outer:
+		for (int i = 0; i <= data.length - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (data[i + j] != pattern[j])
+					continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,127 @@
+package nl.mpi.ams2xacml.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import nl.mpi.corpusstructure.AccessInfo;
+import nl.mpi.corpusstructure.CorpusNode;
+
+import org.junit.Test;
+
+public class LinkedNodeIteratorTest {
+
+	/**
+	 * A tree of 1 + 4 + 16 + 64 nodes below MPI1#
+	 */
+	private static InMemoryCorpusStructureDAO newTree() {
+		InMemoryCorpusStructureDAO tree = new InMemoryCorpusStructureDAO();
+		int root = tree.addNode(0, CorpusNode.CORPUS, true, AccessInfo.EVERYBODY, AccessInfo.NOBODY);
+		addChildren(tree, root, 3);
+		return tree;
+	}
+
+	private static void addChildren(InMemoryCorpusStructureDAO tree, int parent, int depth) {
+		if (depth == 0)
+			return;
+		for (int i = 0; i < 4; i++)
+			addChildren(tree, tree.addNode(parent, CorpusNode.SESSION, true, AccessInfo.EVERYBODY, AccessInfo.NOBODY), depth - 1);
+	}
+
+	private static List<String> drain(LinkedNodeIterator nodeIds) {
+		List<String> result = new ArrayList<String>();
+		while (nodeIds.hasNext())
+			result.add(nodeIds.next());
+		return result;
+	}
+
+	@Test
+	public void walksTheTreeInPreOrder() {
+		InMemoryCorpusStructureDAO tree = newTree();
+		List<String> expected = new ArrayList<String>();
+		expected.add("MPI1#");
+		expected.addAll(Arrays.asList(tree.getDescendants("MPI1#")));
+		LinkedNodeIterator nodeIds = new LinkedNodeIterator(tree, Collections.singletonList("MPI1#"));
+		assertEquals(expected, drain(nodeIds));
+		assertEquals(85, nodeIds.getDiscoveredNodes());
+	}
+
+	@Test
+	public void returnsOverlappingSubtreesOnce() {
+		InMemoryCorpusStructureDAO tree = newTree();
+		String child = tree.getChildren("MPI1#")[1];
+		List<String> result = drain(new LinkedNodeIterator(tree, Arrays.asList(child, "MPI1#", child)));
+		assertEquals(85, result.size());
+		assertEquals(85, new HashSet<String>(result).size());
+		assertEquals(child, result.get(0));
+	}
+
+	@Test
+	public void returnsLinkedNodesOnce() {
+		final InMemoryCorpusStructureDAO tree = newTree();
+		final String[] rootChildren = tree.getChildren("MPI1#");
+		// the last child of the root is also linked from the first one
+		CorpusStructureDAO linked = new InMemoryCorpusStructureDAO() {
+			@Override
+			public String[] getChildren(String nodeId) {
+				String[] children = tree.getChildren(nodeId);
+				if (!nodeId.equals(rootChildren[0]))
+					return children;
+				String[] withLink = Arrays.copyOf(children, children.length + 1);
+				withLink[children.length] = rootChildren[3];
+				return withLink;
+			}
+		};
+		List<String> result = drain(new LinkedNodeIterator(linked, Collections.singletonList("MPI1#")));
+		assertEquals(85, result.size());
+		assertEquals(85, new HashSet<String>(result).size());
+	}
+
+	@Test
+	public void onlyStartNodesWithoutDescendants() {
+		InMemoryCorpusStructureDAO tree = newTree();
+		List<String> startNodeIds = Arrays.asList("MPI3#", "MPI1#", "MPI3#");
+		assertEquals(Arrays.asList("MPI3#", "MPI1#"), drain(new LinkedNodeIterator(tree, startNodeIds, false)));
+	}
+
+	@Test
+	public void resumesAfterAPosition() {
+		InMemoryCorpusStructureDAO tree = newTree();
+		String child = tree.getChildren("MPI1#")[2];
+		assertResumes(tree, Collections.singletonList("MPI1#"), new int[] { 1, 2, 7, 22, 50, 85 });
+		// positions in the first of two start nodes
+		assertResumes(tree, Arrays.asList(child, "MPI3#"), new int[] { 1, 5, 21 });
+	}
+
+	private static void assertResumes(InMemoryCorpusStructureDAO tree, List<String> startNodeIds, int[] handledCounts) {
+		List<String> all = drain(new LinkedNodeIterator(tree, startNodeIds));
+		for (int handled : handledCounts) {
+			LinkedNodeIterator first = new LinkedNodeIterator(tree, startNodeIds);
+			for (int i = 0; i < handled; i++)
+				first.next();
+			LinkedNodeIterator resumed = new LinkedNodeIterator(tree, startNodeIds);
+			assertTrue(resumed.resume(first.getPosition()));
+			assertEquals("after " + handled + " nodes", all.subList(handled, all.size()), drain(resumed));
+		}
+	}
+
+	@Test
+	public void restartsAChangedSubtree() {
+		InMemoryCorpusStructureDAO tree = newTree();
+		LinkedNodeIterator first = new LinkedNodeIterator(tree, Collections.singletonList("MPI1#"));
+		for (int i = 0; i < 10; i++)
+			first.next();
+		LinkedNodeIterator.Position position = first.getPosition();
+		LinkedNodeIterator resumed = new LinkedNodeIterator(tree, Collections.singletonList("MPI1#"));
+		assertFalse(resumed.resume(new LinkedNodeIterator.Position(0, position.getOffset(), "MPI999#")));
+		List<String> rest = drain(resumed);
+		assertEquals(84, rest.size());
+		assertFalse(rest.contains("MPI1#"));
+	}
+}
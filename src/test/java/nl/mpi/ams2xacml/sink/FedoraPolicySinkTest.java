@@ -0,0 +1,201 @@
+package nl.mpi.ams2xacml.sink;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Drives the {@link FedoraPolicySink} against a stub of the Fedora REST
+ * API that answers with a scripted list of statuses
+ */
+public class FedoraPolicySinkTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] POLICY = "<Policy/>".getBytes(UTF8);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HttpServer server;
+	private ExecutorService executor;
+	/** released when the test ends, to let the handler that never answers return */
+	private final CountDownLatch released = new CountDownLatch(1);
+	private final List<Integer> statuses = Collections.synchronizedList(new ArrayList<Integer>());
+	private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+	private final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<byte[]>());
+	private final List<String> authorizations = Collections.synchronizedList(new ArrayList<String>());
+	private File failureFile;
+
+	@Before
+	public void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/fedora/objects/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI());
+				authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+				bodies.add(readAll(exchange.getRequestBody()));
+				// the last scripted status answers all further requests
+				int status = statuses.size() > 1 ? statuses.remove(0) : statuses.get(0);
+				exchange.sendResponseHeaders(status, -1);
+				exchange.close();
+			}
+		});
+		server.createContext("/hanging/objects/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI());
+				try {
+					released.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				exchange.close();
+			}
+		});
+		server.start();
+		failureFile = new File(folder.getRoot(), "policies.fedora-failures");
+	}
+
+	@After
+	public void stopServer() {
+		released.countDown();
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private FedoraPolicySink newSink(String credentials, int retries) {
+		return new FedoraPolicySink("http://localhost:" + server.getAddress().getPort() + "/fedora", credentials, 2, retries,
+				failureFile);
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+			out.write(buffer, 0, read);
+		return out.toByteArray();
+	}
+
+	private void answer(Integer... scripted) {
+		for (Integer status : scripted)
+			statuses.add(status);
+	}
+
+	@Test
+	public void replacesTheDatastream() throws IOException {
+		answer(200);
+		FedoraPolicySink sink = newSink("fedoraAdmin:secret", 3);
+		assertEquals("lat:1839_00_MEM_1/POLICY", sink.write("hdl:1839/00-MEM-1", "lat_1839_00_MEM_1", POLICY));
+		sink.close();
+		assertEquals(Collections.singletonList("PUT /fedora/objects/lat%3A1839_00_MEM_1/datastreams/POLICY?mimeType=text/xml"),
+				requests);
+		assertArrayEquals(POLICY, bodies.get(0));
+		assertEquals("Basic ZmVkb3JhQWRtaW46c2VjcmV0", authorizations.get(0));
+		assertFalse(failureFile.exists());
+	}
+
+	@Test
+	public void addsAMissingDatastream() throws IOException {
+		answer(404, 201);
+		FedoraPolicySink sink = newSink(null, 3);
+		assertEquals("lat:1839_00_MEM_1/POLICY", sink.write("hdl:1839/00-MEM-1", "9c/lat_1839_00_MEM_1", POLICY));
+		sink.close();
+		assertEquals(2, requests.size());
+		assertTrue(requests.get(0).startsWith("PUT "));
+		assertEquals("POST /fedora/objects/lat%3A1839_00_MEM_1/datastreams/POLICY"
+				+ "?controlGroup=X&mimeType=text/xml&dsLabel=XACML%20Policy", requests.get(1));
+		assertArrayEquals(POLICY, bodies.get(1));
+		assertNull(authorizations.get(1));
+	}
+
+	@Test
+	public void retriesServerErrorsWithBackoff() throws IOException {
+		answer(503, 429, 200);
+		FedoraPolicySink sink = newSink(null, 3);
+		long start = System.currentTimeMillis();
+		assertEquals("lat:1839_00_MEM_1/POLICY", sink.write("hdl:1839/00-MEM-1", "lat_1839_00_MEM_1", POLICY));
+		long elapsed = System.currentTimeMillis() - start;
+		sink.close();
+		assertEquals(3, requests.size());
+		// waits 0.5 s and then 1 s
+		assertTrue("retried after " + elapsed + " ms", elapsed >= 1500);
+		assertEquals(0, sink.getFailures());
+		assertFalse(failureFile.exists());
+	}
+
+	@Test
+	public void recordsAPolicyThatKeepsFailing() throws IOException {
+		answer(500);
+		FedoraPolicySink sink = newSink(null, 1);
+		assertNull(sink.write("hdl:1839/00-MEM-1", "lat_1839_00_MEM_1", POLICY));
+		sink.close();
+		assertEquals(2, requests.size());
+		assertEquals(1, sink.getFailures());
+		assertEquals(Collections.singletonList("hdl:1839/00-MEM-1\tlat:1839_00_MEM_1\tHTTP status 500"),
+				Files.readAllLines(failureFile.toPath(), UTF8));
+	}
+
+	@Test
+	public void doesNotRetryClientErrors() throws IOException {
+		answer(403, 200);
+		FedoraPolicySink sink = newSink(null, 3);
+		assertNull(sink.write("hdl:1839/00-MEM-1", "lat_1839_00_MEM_1", POLICY));
+		assertEquals("lat:1839_00_MEM_2/POLICY", sink.write("hdl:1839/00-MEM-2", "lat_1839_00_MEM_2", POLICY));
+		sink.close();
+		assertEquals(2, requests.size());
+		assertEquals(1, sink.getFailures());
+		assertEquals(Collections.singletonList("hdl:1839/00-MEM-1\tlat:1839_00_MEM_1\tHTTP status 403"),
+				Files.readAllLines(failureFile.toPath(), UTF8));
+	}
+
+	@Test
+	public void retriesARequestThatGetsNoAnswer() throws IOException {
+		FedoraPolicySink sink = new FedoraPolicySink("http://localhost:" + server.getAddress().getPort() + "/hanging", null, 2, 1,
+				failureFile);
+		sink.setTimeout(200);
+		assertNull(sink.write("hdl:1839/00-MEM-1", "lat_1839_00_MEM_1", POLICY));
+		sink.close();
+		assertEquals(2, requests.size());
+		assertEquals(1, sink.getFailures());
+		List<String> failures = Files.readAllLines(failureFile.toPath(), UTF8);
+		assertEquals(1, failures.size());
+		assertTrue(failures.get(0), failures.get(0).startsWith("hdl:1839/00-MEM-1\tlat:1839_00_MEM_1\tjava.net.SocketTimeoutException"));
+	}
+
+	@Test
+	public void derivesThePidFromThePolicyName() {
+		assertEquals("lat:1839_00_0000_0000_0001_2345_6", FedoraPolicySink.getPid("lat_1839_00_0000_0000_0001_2345_6"));
+		assertEquals("lat:1839_00_MEM_1", FedoraPolicySink.getPid("9c/87/lat_1839_00_MEM_1"));
+		assertEquals("policy", FedoraPolicySink.getPid("policy"));
+	}
+}
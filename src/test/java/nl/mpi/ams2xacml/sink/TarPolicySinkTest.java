@@ -0,0 +1,176 @@
+package nl.mpi.ams2xacml.sink;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes archives with the {@link TarPolicySink} and parses them back
+ * block by block, as a tar reader would
+ */
+public class TarPolicySinkTest {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int BLOCK_SIZE = 512;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static class Entry {
+		final String path;
+		final byte[] content;
+
+		Entry(String path, byte[] content) {
+			this.path = path;
+			this.content = content;
+		}
+	}
+
+	private static byte[] policy(int length) {
+		byte[] policy = new byte[length];
+		for (int i = 0; i < length; i++)
+			policy[i] = (byte) ('a' + i % 26);
+		return policy;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+			out.write(buffer, 0, read);
+		in.close();
+		return out.toByteArray();
+	}
+
+	private static String readString(byte[] block, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && block[end] != 0)
+			end++;
+		return new String(block, offset, end - offset, ASCII);
+	}
+
+	private static long readOctal(byte[] block, int offset, int length) {
+		return Long.parseLong(readString(block, offset, length).trim(), 8);
+	}
+
+	/**
+	 * Parses the entries of an archive, checking the header of each entry,
+	 * the padding of its content and the end of archive marker
+	 */
+	private static List<Entry> parse(byte[] archive) {
+		assertEquals("archive length is not a multiple of the block size", 0, archive.length % BLOCK_SIZE);
+		List<Entry> entries = new ArrayList<Entry>();
+		int offset = 0;
+		while (true) {
+			assertTrue("no end of archive marker", offset + 2 * BLOCK_SIZE <= archive.length);
+			byte[] header = Arrays.copyOfRange(archive, offset, offset + BLOCK_SIZE);
+			if (isZero(header)) {
+				assertTrue("the end of archive marker is not two empty blocks",
+						isZero(Arrays.copyOfRange(archive, offset + BLOCK_SIZE, offset + 2 * BLOCK_SIZE)));
+				assertEquals("data after the end of archive marker", archive.length, offset + 2 * BLOCK_SIZE);
+				return entries;
+			}
+			assertEquals("ustar", readString(header, 257, 6));
+			assertEquals("00", new String(header, 263, 2, ASCII));
+			assertEquals('0', header[156]);
+			assertEquals(0644, readOctal(header, 100, 8));
+			long checksum = readOctal(header, 148, 8);
+			Arrays.fill(header, 148, 156, (byte) ' ');
+			long sum = 0;
+			for (byte b : header)
+				sum += b & 0xFF;
+			assertEquals("checksum", sum, checksum);
+
+			String name = readString(header, 0, 100);
+			String prefix = readString(header, 345, 155);
+			String path = prefix.length() == 0 ? name : prefix + "/" + name;
+			int size = (int) readOctal(header, 124, 12);
+			offset += BLOCK_SIZE;
+			byte[] content = Arrays.copyOfRange(archive, offset, offset + size);
+			int padded = (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+			assertTrue("the padding of " + path + " is not empty", isZero(Arrays.copyOfRange(archive, offset + size, offset + padded)));
+			offset += padded;
+			entries.add(new Entry(path, content));
+		}
+	}
+
+	private static boolean isZero(byte[] bytes) {
+		for (byte b : bytes) {
+			if (b != 0)
+				return false;
+		}
+		return true;
+	}
+
+	@Test
+	public void writesPaddedEntries() throws IOException {
+		File archive = folder.newFile("policies.tar");
+		TarPolicySink sink = new TarPolicySink(archive, false);
+		byte[][] policies = { policy(9), policy(BLOCK_SIZE), policy(BLOCK_SIZE + 1) };
+		assertEquals("lat_1839_00_MEM_1.xml", sink.write("hdl:1839/00-MEM-1", "lat_1839_00_MEM_1", policies[0]));
+		sink.write("hdl:1839/00-MEM-2", "lat_1839_00_MEM_2", policies[1]);
+		sink.write("hdl:1839/00-MEM-3", "9c/87/lat_1839_00_MEM_3", policies[2]);
+		sink.close();
+
+		byte[] bytes = readAll(new FileInputStream(archive));
+		// three headers, 1 + 1 + 2 content blocks and the end of archive marker
+		assertEquals((3 + 4 + 2) * BLOCK_SIZE, bytes.length);
+		List<Entry> entries = parse(bytes);
+		assertEquals(3, entries.size());
+		assertEquals("lat_1839_00_MEM_1.xml", entries.get(0).path);
+		assertEquals("lat_1839_00_MEM_2.xml", entries.get(1).path);
+		assertEquals("9c/87/lat_1839_00_MEM_3.xml", entries.get(2).path);
+		for (int i = 0; i < policies.length; i++)
+			assertArrayEquals(policies[i], entries.get(i).content);
+	}
+
+	@Test
+	public void splitsLongHashedPaths() throws IOException {
+		File archive = folder.newFile("policies.tar.gz");
+		TarPolicySink sink = new TarPolicySink(archive, true);
+		// a 96 byte file name below the hash directories
+		char[] digits = new char[80];
+		Arrays.fill(digits, '7');
+		String name = "9c/87/lat_1839_00_" + new String(digits);
+		byte[] policy = policy(100);
+		String path = sink.write("hdl:1839/00-" + new String(digits), name, policy);
+		sink.close();
+		assertTrue(path.length() > 100);
+
+		List<Entry> entries = parse(readAll(new GZIPInputStream(new FileInputStream(archive))));
+		assertEquals(1, entries.size());
+		assertEquals(path, entries.get(0).path);
+		assertArrayEquals(policy, entries.get(0).content);
+	}
+
+	@Test
+	public void rejectsAPathThatCannotBeSplit() throws IOException {
+		TarPolicySink sink = new TarPolicySink(folder.newFile("policies.tar"), false);
+		char[] digits = new char[120];
+		Arrays.fill(digits, '7');
+		try {
+			sink.write("hdl:1839/00-1", "9c/lat_1839_00_" + new String(digits), policy(10));
+			fail("wrote a file name of more than 100 bytes");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Path too long"));
+		} finally {
+			sink.close();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package nl.mpi.ams2xacml.xacml;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import nl.mpi.ams2xacml.dao.ParsedAclCache;
+import nl.mpi.corpusstructure.AccessInfo;
+
+import org.junit.Test;
+
+/**
+ * Checks that the {@link XACMLtemplateSplicer} renders the same bytes as the
+ * DOM of the {@link XACMLtemplateHandler}, for both rules and all username
+ * formats
+ */
+public class XACMLtemplateSplicerTest {
+	private static final String[] USERNAME_FORMATS = { "keep", "strip", "both" };
+
+	@Test
+	public void noUsers() throws Exception {
+		assertSameOutput(Collections.singletonList(AccessInfo.NOBODY));
+		assertSameOutput(Collections.singletonList(AccessInfo.EVERYBODY));
+		assertSameOutput(Collections.singletonList(AccessInfo.ALL_AUTH));
+	}
+
+	@Test
+	public void oneUser() throws Exception {
+		assertSameOutput(users("corpman@mpi.nl"));
+		assertSameOutput(users("corpman"));
+	}
+
+	@Test
+	public void manyUsers() throws Exception {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 200; i++)
+			names.add("user" + i + (i % 2 == 0 ? "@mpi.nl" : ""));
+		assertSameOutput(users(names.toArray(new String[names.size()])));
+	}
+
+	@Test
+	public void markupAndQuotes() throws Exception {
+		assertSameOutput(users("a&b@mpi.nl", "<script>", "x>y", "q\"uote", "it's", "&amp;", "]]>", "a b@c d"));
+	}
+
+	@Test
+	public void nonAsciiNames() throws Exception {
+		assertSameOutput(users("élève@mpi.nl", "Jürgen", "Łukasz@uni.pl", "日本語@example.jp", "\u00A0nbsp"));
+	}
+
+	@Test
+	public void namesThatCannotBeSpliced() throws Exception {
+		// the splicer falls back to the DOM for these names
+		assertSameOutput(users("tab\tname", "line\nbreak", "cr\rname"));
+		assertSameOutput(users("ok@mpi.nl", "nel\u0085name"));
+		assertSameOutput(users("clef\uD834\uDD1E@mpi.nl"));
+		assertSameOutput(users("line\u2028separator"));
+		assertSameOutput(users("del\u007Fname", "c1\u0090name"));
+	}
+
+	@Test
+	public void parsedAcls() throws Exception {
+		ParsedAclCache acls = new ParsedAclCache();
+		assertSameOutput(acls.get("corpman@mpi.nl a&b <c> élève@mpi.nl"));
+		assertSameOutput(acls.get("single"));
+		assertSameOutput(acls.get(AccessInfo.EVERYBODY));
+	}
+
+	@Test
+	public void replacedLargeGroups() throws Exception {
+		for (String usernameFormat : USERNAME_FORMATS) {
+			XACMLtemplateHandler domHandler = new XACMLtemplateHandler();
+			XACMLtemplateHandler splicerHandler = new XACMLtemplateHandler();
+			domHandler.setMaxUsersPerGroup(3);
+			splicerHandler.setMaxUsersPerGroup(3);
+			assertSameOutput(domHandler, new XACMLtemplateSplicer(splicerHandler, usernameFormat), usernameFormat,
+					users("a", "b", "c", "d"));
+		}
+	}
+
+	private static List<String> users(String... userNames) {
+		List<String> users = new ArrayList<String>();
+		// the first item of a rights list is the ACL string itself
+		StringBuilder acl = new StringBuilder();
+		for (String userName : userNames)
+			acl.append(acl.length() > 0 ? " " : "").append(userName);
+		users.add(acl.toString());
+		users.addAll(Arrays.asList(userNames));
+		return users;
+	}
+
+	private static void assertSameOutput(List<String> users) throws Exception {
+		for (String usernameFormat : USERNAME_FORMATS) {
+			XACMLtemplateHandler domHandler = new XACMLtemplateHandler();
+			XACMLtemplateSplicer splicer = new XACMLtemplateSplicer(new XACMLtemplateHandler(), usernameFormat);
+			assertSameOutput(domHandler, splicer, usernameFormat, users);
+		}
+	}
+
+	private static void assertSameOutput(XACMLtemplateHandler domHandler, XACMLtemplateSplicer splicer,
+			String usernameFormat, List<String> users) throws Exception {
+		for (PolicyRule rule : PolicyRule.values()) {
+			domHandler.generateXACMLDocument(rule, users, usernameFormat);
+			byte[] expected = domHandler.serializeXACMLdocument();
+			assertArrayEquals(rule + " policy with format " + usernameFormat + " for " + users,
+					expected, splicer.render(rule, users));
+		}
+	}
+}